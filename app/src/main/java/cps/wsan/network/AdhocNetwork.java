@@ -1,151 +1,329 @@
 package cps.wsan.network;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.le.AdvertiseCallback;
-import android.bluetooth.le.AdvertiseData;
-import android.bluetooth.le.AdvertiseSettings;
-import android.bluetooth.le.BluetoothLeAdvertiser;
-import android.bluetooth.le.BluetoothLeScanner;
-import android.bluetooth.le.ScanCallback;
-import android.bluetooth.le.ScanResult;
-import android.bluetooth.le.ScanSettings;
-import android.os.Handler;
-import android.os.ParcelUuid;
 import android.util.Log;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
-import java.util.concurrent.LinkedBlockingQueue;
-
+import java.util.UUID;
+
+import cps.wsan.network.AdvertiseScheduler.Packet;
+import cps.wsan.network.AdvertiseScheduler.Priority;
+
+/**
+ * A node of the mesh. All protocol state lives on the thread of its {@link Clock}, which on a
+ * phone is the shared {@link EventLoop}. The public methods may be called from any thread, and
+ * hand their work over to that thread; listeners are called on it, so listeners that touch the UI
+ * need to post to the main thread themselves.
+ * <p>
+ * The node owns the radio, so every protocol on top of it shares a single scanner, a single
+ * {@link AdvertiseScheduler} and the duplicate filters of {@link #accept(UUID, byte, byte)}, and
+ * the radio's time is only spent once. Besides the services of this package, other protocols
+ * plug in the same way: they listen for the packets of their own UUID with a
+ * {@link NetworkListener}, and queue their packets with {@link #advertise(UUID, byte[], Priority, long)}.
+ * <p>
+ * The scanner listens all the time, a {@link ScanScheduler} restarts it before Android throttles
+ * it.
+ */
 public class AdhocNetwork {
     private final static String TAG = AdhocNetwork.class.getSimpleName();
 
     public static final long ADVERTISE_PERIOD = 1000;
-    private static final long SCAN_PERIOD = 10000;
-
-    private final BluetoothLeAdvertiser advertiser;
-    private final BluetoothAdapter bt;
-    private final BluetoothLeScanner scanner;
+    public static final long MESSAGE_TTL = 10 * ADVERTISE_PERIOD;
+    private static final int RECEIVE_CAPACITY = 64;
+    // Copies of a reliable message keep coming for a while, and may take a detour over a hop that
+    // retransmits them in turn, so sources are remembered for two of those stretches
+    private static final long DUPLICATE_PERIOD = 2 * MessageService.RETRANSMIT_HORIZON;
 
-    private AdvertiseCallback advertiseCallback;
-    private ScanCallback scanCallback;
+    private final Radio radio;
+    private final Clock clock;
+    private final TimerWheel timers;
 
     private final MessageService messageService;
     private final RoutingService routingService;
+    private final PropagationService propagationService;
+    private final TimeSyncService timeSyncService;
 
     private final List<NetworkListener> listeners;
-    private final LinkedBlockingQueue<Packet> packetQueue;
-
-    private boolean advertising;
+    private final NetworkListener dispatcher;
+    private final AdvertiseScheduler scheduler;
+    private final PacketPool pool;
+    private final Advertiser[] advertisers;
+    private final ScanScheduler scanScheduler;
+    private final Scanner scanner;
+
+    // <protocol, the packets it has seen>
+    private final Map<UUID, DuplicateFilter> duplicates;
+
+    private static AdhocNetwork shared;
+
+    private Frame frame;
+    private volatile int advertiserCount;
+    private volatile boolean framing;
+
+    // Counted from the first advertisement on
+    private long advertisements;
+    private long advertisedPackets;
+    private long advertiseStart;
     private byte ip;
-    private boolean scanning;
 
     public AdhocNetwork(byte ip) {
-        this.ip = ip;
+        this(ip, new BleRadio(), EventLoop.getShared(), EventLoop.getShared().getTimers());
+    }
 
-        // Initialize the bluetooth adapter
-        bt = BluetoothAdapter.getDefaultAdapter();
-        if (bt == null) throw new IllegalStateException("This device does not support BT");
-        if (!bt.isEnabled()) throw new IllegalStateException("Bluetooth is not enabled");
-        if (!bt.isMultipleAdvertisementSupported()) throw new IllegalStateException("Multiple advertisment is not supported");
+    /**
+     * @return The node of this device, created on the BLE radio with the given address the first
+     * time. All parts of the app that use the radio share it, the address of later calls is ignored.
+     */
+    public static synchronized AdhocNetwork getShared(byte ip) {
+        if (shared == null) shared = new AdhocNetwork(ip);
+        return shared;
+    }
 
-        // Initialize the advertiser
-        advertiser = bt.getBluetoothLeAdvertiser();
-        if (advertiser == null) throw new IllegalStateException("BLE not supported");
+    /**
+     * @return The node of this device, or null if it wasn't created yet
+     */
+    public static synchronized AdhocNetwork getShared() {
+        return shared;
+    }
 
-        // Initialize the scanner
-        scanner = bt.getBluetoothLeScanner();
-        if (scanner == null) throw new IllegalStateException("BLE not supported");
+    /**
+     * Creates a network node on top of any radio and clock, for instance those of the simulator.
+     */
+    public AdhocNetwork(byte ip, Radio radio, Clock clock) {
+        this(ip, radio, clock, new TimerWheel(clock));
+    }
 
-        listeners = new LinkedList<>();
-        packetQueue = new LinkedBlockingQueue<>();
+    /**
+     * Creates a network node that shares a timer wheel with others on the same clock.
+     */
+    public AdhocNetwork(byte ip, Radio radio, Clock clock, TimerWheel timers) {
+        this.ip = ip;
+        this.radio = radio;
+        this.clock = clock;
+        this.timers = timers;
+
+        listeners = new ArrayList<>();
+        dispatcher = new Dispatcher();
+        pool = new PacketPool();
+        scheduler = new AdvertiseScheduler(pool);
+        advertisers = new Advertiser[Math.max(1, radio.getMaxAdvertisers())];
+        for (int i = 0; i < advertisers.length; i++) advertisers[i] = new Advertiser(i);
+        advertiserCount = 1;
+        scanner = new Scanner();
+        scanScheduler = new ScanScheduler(clock, timers, scanner);
+        duplicates = new HashMap<>();
 
         // Initialize services
         routingService = new RoutingService(this, ip);
         messageService = new MessageService(this, routingService, ip);
+        propagationService = new PropagationService(this, ip);
+        timeSyncService = new TimeSyncService(this, propagationService, ip);
 
         routingService.start();
     }
 
-    public void send(byte dest, byte[] payload) {
-        byte[] packet = new byte[payload.length + 4];
+    /**
+     * Sends a message to the given node, see {@link MessageService#send(byte, byte[])}.
+     */
+    public byte send(byte dest, byte[] payload) {
+        return messageService.send(dest, payload);
+    }
 
-        // Set headers
-        packet[0] = routingService.getNextHop(dest);
-        packet[1] = ip;
-        packet[2] = dest;
-        packet[3] = (byte) new Random().nextInt(127);
+    /**
+     * Advertises this device to other BLE devices.
+     */
+    public void advertise(UUID uuid, byte[] bytes) {
+        advertise(uuid, bytes, Priority.DATA, -1);
+    }
 
-        // Copy payload
-        System.arraycopy(payload, 0, packet, 4, payload.length);
-        advertise(MessageService.UUID, packet);
+    /**
+     * Queues a packet for advertising.
+     * @param priority  The traffic class of the packet
+     * @param ttl       The time in milliseconds after which the packet is no longer worth
+     *                  advertising, or a negative value if it never expires
+     */
+    public void advertise(UUID uuid, byte[] bytes, Priority priority, long ttl) {
+        clock.execute(() -> advertise(uuid, bytes, priority, ttl, false));
     }
 
     /**
-     * Advertises this device to other BLE devices.
+     * Queues a packet for advertising.
+     * @param pooled    Whether the packet was taken from {@link #getPacketPool()}, and may be
+     *                  returned to it once it has been advertised or dropped
      */
-    public void advertise(ParcelUuid uuid, byte[] bytes) {
-        Packet packet = new Packet();
-        packet.uuid = uuid;
-        packet.packet = bytes;
-        packetQueue.add(packet);
+    void advertise(UUID uuid, byte[] bytes, Priority priority, long ttl, boolean pooled) {
+        long deadline = ttl < 0 ? AdvertiseScheduler.NO_DEADLINE : clock.now() + ttl;
+        scheduler.add(uuid, bytes, priority, deadline, pooled);
 
-        if (!advertising) this.restartAdvertise();
+        Advertiser idle = findIdle();
+        if (idle != null) this.restartAdvertise(idle);
     }
 
-    private synchronized void startAdvertise(ParcelUuid uuid, byte[] bytes) {
-        if (advertising) return;
-        advertising = true;
+    /**
+     * @return An advertiser in use that has nothing to advertise, or null if all are busy
+     */
+    private Advertiser findIdle() {
+        int count = Math.min(advertiserCount, radio.getMaxAdvertisers());
+        for (int i = 0; i < count; i++) {
+            if (!advertisers[i].advertising) return advertisers[i];
+        }
+        return null;
+    }
 
-        // Set advertise settings
-        AdvertiseSettings.Builder settings = new AdvertiseSettings.Builder()
-                .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_LOW)
-                .setConnectable(false)
-                .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY); // or LOW_LATENCY / LOW_POWER
+    private synchronized void startAdvertise(Advertiser a, UUID uuid, byte[] bytes, int packets) {
+        if (a.advertising) return;
+        a.advertising = true;
 
-        // Set advertised data
-        AdvertiseData.Builder data = new AdvertiseData.Builder()
-                .setIncludeDeviceName(false)
-                .setIncludeTxPowerLevel(false)
-                .addServiceData(uuid, bytes);
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, String.format(
+                    "Advertising packet (%s bytes @ '%s') on advertiser %s",
+                    bytes.length, uuid.toString(), a.index));
+        }
 
-        Log.v(TAG, String.format(
-                "Advertising packet (%s bytes @ '%s')",
-                bytes.length, uuid.toString()));
+        if (advertisements == 0) advertiseStart = clock.now();
+        advertisements++;
+        advertisedPackets += packets;
+        radio.startAdvertising(a.index, uuid, bytes);
+    }
 
-        advertiseCallback = new AdvertiseCallback() {
-            @Override
-            public void onStartFailure(int errorCode) {
-                super.onStartFailure(errorCode);
-                Log.e(TAG, String.format("Advertising could not start (error: %s)", errorCode));
-            }
-        };
+    /**
+     * Replaces what the advertiser advertises with the next packet, and keeps doing so every
+     * {@link #ADVERTISE_PERIOD} for as long as there are packets. Advertisers that are no longer
+     * in use, or have nothing left to advertise, stop until the next packet is queued.
+     */
+    private synchronized void restartAdvertise(Advertiser a) {
+        this.stopAdvertise(a);
+        if (a.index >= Math.min(advertiserCount, radio.getMaxAdvertisers())) return;
+
+        Packet p = scheduler.poll(clock.now());
+        if (p == null) return;
+
+        dispatcher.onAdvertise(p.uuid, p.packet);
+        if (framing && Frame.isFramed(p.uuid)) startAdvertiseFrame(a, p);
+        else {
+            this.startAdvertise(a, p.uuid, p.packet, 1);
+            a.advertised = p;
+        }
 
-        advertiser.startAdvertising(settings.build(), data.build(), advertiseCallback);
+        clock.postDelayed(a.restart, ADVERTISE_PERIOD);
     }
 
-    private synchronized void restartAdvertise() {
-        this.stopAdvertise();
-        if (this.packetQueue.size() == 0) return;
+    /**
+     * Advertises the given packet together with as many of the packets queued behind it as fit in
+     * a single frame.
+     */
+    private synchronized void startAdvertiseFrame(Advertiser a, Packet first) {
+        int capacity = radio.getMaxAdvertisingDataLength() - Frame.getOverhead(Frame.UUID);
+        if (frame == null || frame.getCapacity() != capacity) frame = new Frame(capacity);
+        frame.clear();
+
+        // Packets that would not even fit in an empty frame are advertised on their own
+        if (!frame.add(first.uuid, first.packet)) {
+            this.startAdvertise(a, first.uuid, first.packet, 1);
+            a.advertised = first;
+            return;
+        }
+        scheduler.recycle(first);
+
+        // The frame holds a copy, so the packets can be recycled right away. Listeners are only
+        // told about packets that made it in, and before the copy, so their stamps go along
+        Packet next;
+        long now = clock.now();
+        while ((next = scheduler.peek(now)) != null && frame.fits(next.uuid, next.packet)) {
+            dispatcher.onAdvertise(next.uuid, next.packet);
+            frame.add(next.uuid, next.packet);
+            scheduler.recycle(scheduler.poll(now));
+        }
 
-        try {
-            Packet p = packetQueue.take();
-            this.startAdvertise(p.uuid, p.packet);
-        } catch (InterruptedException e) {
-            Log.e(TAG, "Interrupted while advertising", e);
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, String.format("Framing %s packets", frame.getCount()));
         }
+        a.advertisedFrame = frame.toBytes(pool);
+        this.startAdvertise(a, Frame.UUID, a.advertisedFrame, frame.getCount());
+    }
+
+    private synchronized void stopAdvertise(Advertiser a) {
+        if (!a.advertising) return;
+        a.advertising = false;
+
+        radio.stopAdvertising(a.index);
 
-        new Handler().postDelayed(this::restartAdvertise, ADVERTISE_PERIOD);
+        // The radio is done with whatever it advertised
+        if (a.advertised != null) scheduler.recycle(a.advertised);
+        if (a.advertisedFrame != null) pool.release(a.advertisedFrame);
+        a.advertised = null;
+        a.advertisedFrame = null;
     }
 
-    private synchronized void stopAdvertise() {
-        if (!advertising) return;
-        advertising = false;
+    /**
+     * Advertises with several advertisers of the radio at once, each of which takes the next
+     * queued packet in turn. Every packet still stays on the air for {@link #ADVERTISE_PERIOD},
+     * but up to the given amount of packets go out per period rather than one. Each advertiser
+     * takes airtime of its own, so this only pays off while packets are queueing up.
+     * @param count The amount of advertisers, at most {@link Radio#getMaxAdvertisers()} of the
+     *              radio at the time the network was created
+     */
+    public void setAdvertisers(int count) {
+        clock.execute(() -> {
+            advertiserCount = Math.max(1, Math.min(advertisers.length, count));
+
+            // Advertisers beyond the count stop once their packet has had its period
+            Advertiser idle;
+            while (scheduler.peek(clock.now()) != null && (idle = findIdle()) != null) {
+                this.restartAdvertise(idle);
+            }
+        });
+    }
 
-        advertiser.stopAdvertising(advertiseCallback);
+    /**
+     * @return The amount of advertisers in use, which the radio may not all support after all
+     */
+    public int getAdvertisers() {
+        return Math.min(advertiserCount, radio.getMaxAdvertisers());
+    }
+
+    /**
+     * @return The amount of packets that went on the air per second since the first one, where
+     * every packet in a frame counts
+     */
+    public double getAdvertiseRate() {
+        long elapsed = clock.now() - advertiseStart;
+        return elapsed <= 0 ? 0 : advertisedPackets * 1000.0 / elapsed;
+    }
+
+    /**
+     * @return The amount of packets that went on the air, where every packet in a frame counts
+     */
+    public long getAdvertisedPackets() {
+        return advertisedPackets;
+    }
+
+    /**
+     * @return The fraction of advertisements the radio failed to start
+     */
+    public double getAdvertiseFailureRate() {
+        return advertisements == 0 ? 0 : (double) radio.getAdvertiseFailures() / advertisements;
+    }
+
+    /**
+     * Records a packet that was received, for protocols whose sources number their packets with a
+     * byte that wraps around, see {@link DuplicateFilter}. Sources that go quiet for a while are
+     * forgotten, so they may start over with any number.
+     * @param protocol  The UUID of the protocol, each protocol numbers its packets on its own
+     * @return Whether the packet is new, or false if it was received before
+     */
+    public boolean accept(UUID protocol, byte source, byte sequence) {
+        DuplicateFilter filter;
+        synchronized (duplicates) {
+            filter = duplicates.get(protocol);
+            if (filter == null) {
+                filter = new DuplicateFilter(DUPLICATE_PERIOD);
+                duplicates.put(protocol, filter);
+            }
+        }
+        return filter.accept(source, sequence, clock.now());
     }
 
     /**
@@ -153,59 +331,99 @@ public class AdhocNetwork {
      * new device has been found.
      */
     public void scan() {
-        startScan();
-        restartScan();
+        clock.execute(scanScheduler::start);
     }
 
-    private void restartScan() {
-        // Either stop scanning
-        if (!scanning) return;
-
-        // Or extend the scanning period
-        new Handler().postDelayed(this::restartScan, SCAN_PERIOD);
+    private void receive(UUID uuid, byte[] bytes, int rssi) {
+        // Unpack frames, and send data to listeners
+        if (uuid.equals(Frame.UUID)) Frame.decode(bytes, rssi, dispatcher);
+        else dispatcher.onMessage(uuid, bytes, 0, bytes.length, rssi);
     }
 
-    private synchronized void startScan() {
-        if (scanning) return;
-        scanning = true;
-
-        ScanSettings.Builder settings = new ScanSettings.Builder()
-                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-                .setMatchMode(ScanSettings.MATCH_MODE_AGGRESSIVE)
-                .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
-                .setNumOfMatches(ScanSettings.MATCH_NUM_ONE_ADVERTISEMENT);
+    public void stopScan() {
+        clock.execute(scanScheduler::stop);
+    }
 
-        scanCallback = new ScanCallback() {
-            @Override
-            public void onScanResult(int callbackType, ScanResult result) {
-                super.onScanResult(callbackType, result);
+    /**
+     * @return The amount of received packets that were dropped because the thread of the clock
+     * didn't keep up with the radio
+     */
+    public long getReceiveOverflows() {
+        return scanner.getOverflows();
+    }
 
-                // Send data to listeners
-                Map<ParcelUuid, byte[]> data = result.getScanRecord().getServiceData();
-                data.forEach((uuid, bytes) -> listeners.forEach((l) -> l.onMessage(uuid, bytes)));
+    /**
+     * @return The fraction of packets that were skipped in the sequence numbers of their source,
+     * over all protocols that use {@link #accept(UUID, byte, byte)}. Not all packets of a source
+     * pass by every node, so this is an upper bound on the packets the scanner missed
+     */
+    public double getMissRate() {
+        long received = 0;
+        long missed = 0;
+        synchronized (duplicates) {
+            for (DuplicateFilter filter : duplicates.values()) {
+                received += filter.getReceived();
+                missed += filter.getMissed();
             }
-        };
-
-        scanner.startScan(new LinkedList<>(), settings.build(), scanCallback);
+        }
+        return received + missed == 0 ? 0 : (double) missed / (received + missed);
     }
 
-    public synchronized void stopScan() {
-        if (!scanning) return;
-        scanning = false;
+    /**
+     * @return The maximum length of a single packet of the given service, such that it can still
+     * be advertised
+     */
+    public int getMaxPacketLength(UUID uuid) {
+        if (framing && Frame.isFramed(uuid)) {
+            return radio.getMaxAdvertisingDataLength() - Frame.getOverhead(Frame.UUID) - Frame.ELEMENT_HEADER;
+        }
+        return radio.getMaxAdvertisingDataLength() - Frame.getOverhead(uuid);
+    }
 
-        scanner.stopScan(scanCallback);
+    /**
+     * Enables or disables packing multiple packets into a single advertisement. Received frames
+     * are always unpacked, regardless of this setting.
+     */
+    public void setFraming(boolean framing) {
+        this.framing = framing;
     }
 
     public void addListener(NetworkListener l) {
-        listeners.add(l);
+        clock.execute(() -> listeners.add(l));
     }
 
     public void removeListener(NetworkListener l) {
-        listeners.remove(l);
+        clock.execute(() -> listeners.remove(l));
     }
 
     public void clearListeners() {
-        listeners.clear();
+        clock.execute(listeners::clear);
+    }
+
+    public byte getIp() {
+        return ip;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * @return The wheel that the protocol timeouts of this node are scheduled on
+     */
+    public TimerWheel getTimers() {
+        return timers;
+    }
+
+    public AdvertiseScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return The pool that the buffers of packets passed to the pooled advertise come from
+     */
+    PacketPool getPacketPool() {
+        return pool;
     }
 
     public RoutingService getRoutingService() {
@@ -216,8 +434,126 @@ public class AdhocNetwork {
         return messageService;
     }
 
-    private static class Packet {
-        public ParcelUuid uuid;
-        public byte[] packet;
+    public PropagationService getPropagationService() {
+        return propagationService;
+    }
+
+    /**
+     * @return The mesh wide time, which has to be started before it synchronizes
+     */
+    public TimeSyncService getTimeSyncService() {
+        return timeSyncService;
+    }
+
+    /**
+     * One of the advertisers of the radio, and what it is advertising right now, which is recycled
+     * once the next advertisement replaces it.
+     */
+    private class Advertiser {
+
+        public final int index;
+        public final Runnable restart;
+        public boolean advertising;
+        public Packet advertised;
+        public byte[] advertisedFrame;
+
+        public Advertiser(int index) {
+            this.index = index;
+            restart = () -> restartAdvertise(this);
+        }
+
+    }
+
+    /**
+     * Passes every received packet on to the listeners, without copying it, and tells them about
+     * every packet that is about to be advertised.
+     */
+    private class Dispatcher implements NetworkListener {
+
+        @Override
+        public void onMessage(UUID uuid, byte[] data) {
+            onMessage(uuid, data, 0, data.length, 0);
+        }
+
+        @Override
+        public void onMessage(UUID uuid, byte[] buffer, int offset, int length, int rssi) {
+            for (int i = 0; i < listeners.size(); i++) {
+                listeners.get(i).onMessage(uuid, buffer, offset, length, rssi);
+            }
+        }
+
+        @Override
+        public void onAdvertise(UUID uuid, byte[] packet) {
+            for (int i = 0; i < listeners.size(); i++) listeners.get(i).onAdvertise(uuid, packet);
+        }
+
+    }
+
+    /**
+     * Scans with the radio, which reports on a thread of its own choosing. Received packets wait
+     * in a ring until the thread of the clock takes them, so handing them over doesn't allocate.
+     */
+    private class Scanner implements ScanScheduler.Scanner, Radio.Receiver {
+
+        private final UUID[] uuids = new UUID[RECEIVE_CAPACITY];
+        private final byte[][] packets = new byte[RECEIVE_CAPACITY][];
+        private final int[] rssis = new int[RECEIVE_CAPACITY];
+        private final Runnable drain = this::drain;
+        private int head;
+        private int count;
+        private long overflows;
+
+        @Override
+        public void onReceive(UUID uuid, byte[] data, int rssi) {
+            boolean wake;
+            synchronized (this) {
+                if (count == RECEIVE_CAPACITY) {
+                    overflows++;
+                    return;
+                }
+                int i = (head + count) % RECEIVE_CAPACITY;
+                uuids[i] = uuid;
+                packets[i] = data;
+                rssis[i] = rssi;
+                wake = count++ == 0;
+            }
+
+            // A drain that is under way takes this packet as well
+            if (wake) clock.execute(drain);
+        }
+
+        private void drain() {
+            while (true) {
+                UUID uuid;
+                byte[] data;
+                int rssi;
+                synchronized (this) {
+                    if (count == 0) return;
+                    uuid = uuids[head];
+                    data = packets[head];
+                    rssi = rssis[head];
+                    uuids[head] = null;
+                    packets[head] = null;
+                    head = (head + 1) % RECEIVE_CAPACITY;
+                    count--;
+                }
+                receive(uuid, data, rssi);
+            }
+        }
+
+        synchronized long getOverflows() {
+            return overflows;
+        }
+
+        @Override
+        public void startScan() {
+            radio.startScan(this);
+        }
+
+        @Override
+        public void stopScan() {
+            radio.stopScan();
+        }
+
     }
 }
@@ -0,0 +1,247 @@
+package cps.wsan.network;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.UUID;
+
+/**
+ * Decides which packet is advertised next. Every priority has its own bounded queue, a packet is
+ * only taken from a queue if all queues of a higher priority are empty. Packets whose deadline has
+ * passed are dropped before they are advertised, and a full queue drops packets according to its
+ * drop policy.
+ * <p>
+ * Queued packets are kept in recycled {@link Packet} objects, and packets whose buffer came from
+ * the {@link PacketPool} return it there once they are dropped or recycled.
+ */
+public class AdvertiseScheduler {
+    private final static String TAG = AdvertiseScheduler.class.getSimpleName();
+
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private static final int[] DEFAULT_CAPACITY = {64, 32, 16};
+    private static final int MAX_FREE_PACKETS = 32;
+    private static final DropPolicy[] DEFAULT_POLICY = {
+            DropPolicy.DROP_OLDEST, DropPolicy.DROP_NEWEST, DropPolicy.DROP_OLDEST};
+
+    private final ArrayDeque<Packet>[] queues;
+    private final ArrayDeque<Packet> free;
+    private final PacketPool pool;
+    private final int[] capacity;
+    private final DropPolicy[] policy;
+
+    private final long[] overflows;
+    private final long[] expired;
+
+    public AdvertiseScheduler() {
+        this(new PacketPool());
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public AdvertiseScheduler(PacketPool pool) {
+        this.pool = pool;
+        int classes = Priority.values().length;
+
+        queues = new ArrayDeque[classes];
+        capacity = DEFAULT_CAPACITY.clone();
+        policy = DEFAULT_POLICY.clone();
+        overflows = new long[classes];
+        expired = new long[classes];
+
+        // Sized and filled up front, so that how deep the queues get doesn't decide when they
+        // allocate
+        for (int i = 0; i < classes; i++) queues[i] = new ArrayDeque<>(capacity[i]);
+        free = new ArrayDeque<>(MAX_FREE_PACKETS);
+        for (int i = 0; i < MAX_FREE_PACKETS; i++) free.add(new Packet());
+    }
+
+    /**
+     * Queues a packet for advertising.
+     * @param deadline  The time after which the packet is worthless, or {@link #NO_DEADLINE}
+     * @return Whether the packet has been queued
+     */
+    public synchronized boolean add(UUID uuid, byte[] bytes, Priority priority, long deadline) {
+        return add(uuid, bytes, priority, deadline, false);
+    }
+
+    /**
+     * Queues a packet for advertising.
+     * @param pooled    Whether the buffer of the packet may be returned to the pool once the
+     *                  packet is dropped or recycled
+     * @return Whether the packet has been queued
+     */
+    public synchronized boolean add(UUID uuid, byte[] bytes, Priority priority, long deadline, boolean pooled) {
+        int i = priority.ordinal();
+        ArrayDeque<Packet> queue = queues[i];
+
+        if (queue.size() >= capacity[i]) {
+            overflows[i]++;
+            if (policy[i] == DropPolicy.DROP_NEWEST || capacity[i] == 0) {
+                Log.w(TAG, String.format("Dropping new %s packet, queue is full", priority));
+                if (pooled) pool.release(bytes);
+                return false;
+            }
+
+            Log.w(TAG, String.format("Dropping oldest %s packet, queue is full", priority));
+            recycle(queue.poll());
+        }
+
+        Packet packet = free.isEmpty() ? new Packet() : free.poll();
+        packet.uuid = uuid;
+        packet.packet = bytes;
+        packet.priority = priority;
+        packet.deadline = deadline;
+        packet.pooled = pooled;
+        queue.add(packet);
+        return true;
+    }
+
+    /**
+     * Takes back a packet returned by {@link #poll(long)} once it has been advertised. The packet
+     * must not be used afterwards.
+     */
+    public synchronized void recycle(Packet packet) {
+        if (packet.pooled) pool.release(packet.packet);
+        packet.uuid = null;
+        packet.packet = null;
+        if (free.size() < MAX_FREE_PACKETS) free.add(packet);
+    }
+
+    /**
+     * @return The packet that should be advertised next without removing it, or {@code null} if
+     * there is none
+     */
+    public synchronized Packet peek(long now) {
+        for (int i = 0; i < queues.length; i++) {
+            ArrayDeque<Packet> queue = queues[i];
+
+            // Packets that are already stale never get any airtime
+            while (!queue.isEmpty() && queue.peek().deadline < now) {
+                recycle(queue.poll());
+                expired[i]++;
+            }
+
+            if (!queue.isEmpty()) return queue.peek();
+        }
+
+        return null;
+    }
+
+    /**
+     * @return The packet that should be advertised next, or {@code null} if there is none
+     */
+    public synchronized Packet poll(long now) {
+        Packet packet = peek(now);
+        if (packet != null) queues[packet.priority.ordinal()].poll();
+        return packet;
+    }
+
+    /**
+     * @return Whether the given packet, the same array rather than an equal one, is still queued
+     */
+    public synchronized boolean contains(byte[] bytes) {
+        for (ArrayDeque<Packet> queue : queues) {
+            for (Packet packet : queue) {
+                if (packet.packet == bytes) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes the given packet, the same array rather than an equal one, out of its queue. Its
+     * buffer is left to the caller, rather than returned to the pool.
+     * @return Whether the packet was queued
+     */
+    public synchronized boolean remove(byte[] bytes) {
+        return remove(null, bytes);
+    }
+
+    /**
+     * Takes the given packet out of its queue if it was queued under the given UUID, or under any
+     * UUID if that is {@code null}. A pooled buffer that was handed out again once it was
+     * advertised may be queued by another protocol in the meantime, which the UUID tells apart.
+     * @return Whether the packet was queued
+     */
+    public synchronized boolean remove(UUID uuid, byte[] bytes) {
+        for (ArrayDeque<Packet> queue : queues) {
+            for (Iterator<Packet> it = queue.iterator(); it.hasNext(); ) {
+                Packet packet = it.next();
+                if (packet.packet != bytes || (uuid != null && !uuid.equals(packet.uuid))) continue;
+
+                it.remove();
+                packet.pooled = false;
+                recycle(packet);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized boolean isEmpty() {
+        for (ArrayDeque<Packet> queue : queues) {
+            if (!queue.isEmpty()) return false;
+        }
+        return true;
+    }
+
+    public synchronized void setCapacity(Priority priority, int capacity) {
+        this.capacity[priority.ordinal()] = capacity;
+    }
+
+    public synchronized void setDropPolicy(Priority priority, DropPolicy policy) {
+        this.policy[priority.ordinal()] = policy;
+    }
+
+    public synchronized int getDepth(Priority priority) {
+        return queues[priority.ordinal()].size();
+    }
+
+    public synchronized int getDepth() {
+        int depth = 0;
+        for (ArrayDeque<Packet> queue : queues) depth += queue.size();
+        return depth;
+    }
+
+    /**
+     * @return The amount of packets dropped because the queue was full
+     */
+    public synchronized long getOverflows(Priority priority) {
+        return overflows[priority.ordinal()];
+    }
+
+    /**
+     * @return The amount of packets dropped because their deadline had passed
+     */
+    public synchronized long getExpired(Priority priority) {
+        return expired[priority.ordinal()];
+    }
+
+    /**
+     * Traffic classes, from most to least important.
+     */
+    public enum Priority {
+        // Routing beacons that keep the mesh alive
+        CONTROL,
+        // Messages sent or forwarded towards a destination
+        DATA,
+        // Packets flooded through the whole mesh
+        FLOOD
+    }
+
+    public enum DropPolicy {
+        DROP_OLDEST,
+        DROP_NEWEST
+    }
+
+    public static class Packet {
+
+        public UUID uuid;
+        public byte[] packet;
+        public Priority priority;
+        public long deadline;
+        public boolean pooled;
+
+    }
+}
@@ -0,0 +1,224 @@
+package cps.wsan.network;
+
+import java.util.Arrays;
+
+/**
+ * The events of one aggregation window, merged on their way to the destination: the total amount
+ * of events, and the few with the highest values, highest first. Every node shows up at most once
+ * among those, with its highest value and the global time it happened at. On the air an aggregate
+ * has the form {@code [epoch][count][count]} followed by entries of the form
+ * {@code [origin][value x2][flags | label length]([time x4][error])[label]}, where the time and its
+ * error are only there for events whose time is known.
+ * <p>
+ * Times are the lowest 32 bits of the global time in milliseconds, which wrap around after some
+ * seven weeks, and the error of a time is how far it may be off. Events whose times are closer
+ * than their errors combined may have been the same event, heard at different places.
+ */
+public class Aggregate {
+
+    static final int HEADER = 3;
+    static final int ENTRY = 4;
+    static final int TIME = 5;
+    static final int MAX_LABEL = 16;
+    static final int MAX_VALUE = 0xFFFF;
+
+    private static final int TIMED = 0x80;
+    private static final int LABEL_LENGTH = 0x1F;
+
+    /**
+     * The error of events whose time is not known, or is off by this much or more.
+     */
+    public static final int UNKNOWN_ERROR = 0xFF;
+
+    public byte epoch;
+    public int count;
+
+    // The events with the highest values, the first size of them are used
+    public int size;
+    public final byte[] origins;
+    public final int[] values;
+    public final int[] times;
+    public final int[] errors;
+    public final byte[][] labels;
+
+    Aggregate(int capacity) {
+        origins = new byte[capacity];
+        values = new int[capacity];
+        times = new int[capacity];
+        errors = new int[capacity];
+        labels = new byte[capacity][];
+    }
+
+    /**
+     * @return The node the event with the highest value came from, or -1 if there are no events
+     */
+    public byte getMaxOrigin() {
+        return size == 0 ? -1 : origins[0];
+    }
+
+    public int getMax() {
+        return size == 0 ? 0 : values[0];
+    }
+
+    /**
+     * @return Whether the events at the given indices may have happened at the same moment, give
+     * or take the given tolerance in milliseconds
+     */
+    public boolean isSimultaneous(int a, int b, long tolerance) {
+        if (errors[a] == UNKNOWN_ERROR || errors[b] == UNKNOWN_ERROR) return false;
+        return Math.abs((long) (times[a] - times[b])) <= errors[a] + errors[b] + tolerance;
+    }
+
+    /**
+     * Adds an event, which only stays if it is among the highest, or raises the value of its
+     * origin.
+     */
+    void add(byte origin, int value, int time, int error, byte[] label) {
+        value = Math.max(0, Math.min(MAX_VALUE, value));
+        error = error < 0 ? UNKNOWN_ERROR : Math.min(UNKNOWN_ERROR, error);
+
+        int index = indexOf(origin);
+        if (index >= 0) {
+            if (values[index] >= value) return;
+            remove(index);
+        }
+
+        // Find the place of the event, lowest values drop off the end
+        int position = size;
+        while (position > 0 && values[position - 1] < value) position--;
+        if (position >= origins.length) return;
+
+        int last = Math.min(size, origins.length - 1);
+        for (int i = last; i > position; i--) {
+            origins[i] = origins[i - 1];
+            values[i] = values[i - 1];
+            times[i] = times[i - 1];
+            errors[i] = errors[i - 1];
+            labels[i] = labels[i - 1];
+        }
+        origins[position] = origin;
+        values[position] = value;
+        times[position] = time;
+        errors[position] = error;
+        labels[position] = label;
+        size = last + 1;
+    }
+
+    private void remove(int index) {
+        for (int i = index; i < size - 1; i++) {
+            origins[i] = origins[i + 1];
+            values[i] = values[i + 1];
+            times[i] = times[i + 1];
+            errors[i] = errors[i + 1];
+            labels[i] = labels[i + 1];
+        }
+        size--;
+        labels[size] = null;
+    }
+
+    private int indexOf(byte origin) {
+        for (int i = 0; i < size; i++) {
+            if (origins[i] == origin) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Merges an aggregate read from a packet into this one.
+     * @return Whether the packet was well formed, a malformed tail is ignored
+     */
+    boolean merge(byte[] buffer, int offset, int length) {
+        if (length < HEADER) return false;
+
+        int end = offset + length;
+        int merged = ((buffer[offset + 1] & 0xFF) << 8) | (buffer[offset + 2] & 0xFF);
+        count = Math.min(MAX_VALUE, count + merged);
+
+        for (int i = offset + HEADER; i < end; ) {
+            if (i + ENTRY > end) return false;
+            boolean timed = (buffer[i + 3] & TIMED) != 0;
+            int labelLength = buffer[i + 3] & LABEL_LENGTH;
+            int entryLength = ENTRY + (timed ? TIME : 0) + labelLength;
+            if (labelLength > MAX_LABEL || i + entryLength > end) return false;
+
+            byte origin = buffer[i];
+            int value = ((buffer[i + 1] & 0xFF) << 8) | (buffer[i + 2] & 0xFF);
+            int time = 0;
+            int error = UNKNOWN_ERROR;
+            if (timed) {
+                for (int j = i + ENTRY; j < i + ENTRY + 4; j++) time = (time << 8) | (buffer[j] & 0xFF);
+                error = buffer[i + ENTRY + 4] & 0xFF;
+            }
+
+            // Only copy the label of events that make it in
+            if (size < origins.length || value > values[size - 1]) {
+                add(origin, value, time, error, Arrays.copyOfRange(buffer, i + entryLength - labelLength, i + entryLength));
+            }
+            i += entryLength;
+        }
+        return true;
+    }
+
+    /**
+     * @return The length of the packet holding this aggregate, with as many of the highest events
+     * as fit in the given length
+     */
+    int getLength(int maxLength) {
+        int length = HEADER;
+        for (int i = 0; i < size && length + getEntryLength(i) <= maxLength; i++) {
+            length += getEntryLength(i);
+        }
+        return length;
+    }
+
+    private int getEntryLength(int index) {
+        return ENTRY + (errors[index] == UNKNOWN_ERROR ? 0 : TIME) + labels[index].length;
+    }
+
+    /**
+     * Writes the aggregate to a packet of the length {@link #getLength(int)} returned.
+     */
+    void write(byte[] packet) {
+        packet[0] = epoch;
+        packet[1] = (byte) (count >> 8);
+        packet[2] = (byte) count;
+
+        int index = HEADER;
+        for (int i = 0; i < size && index + getEntryLength(i) <= packet.length; i++) {
+            boolean timed = errors[i] != UNKNOWN_ERROR;
+            packet[index] = origins[i];
+            packet[index + 1] = (byte) (values[i] >> 8);
+            packet[index + 2] = (byte) values[i];
+            packet[index + 3] = (byte) ((timed ? TIMED : 0) | labels[i].length);
+            if (timed) {
+                int time = times[i];
+                for (int j = index + ENTRY + 3; j >= index + ENTRY; j--) {
+                    packet[j] = (byte) time;
+                    time >>= 8;
+                }
+                packet[index + ENTRY + 4] = (byte) errors[i];
+            }
+            System.arraycopy(labels[i], 0, packet, index + getEntryLength(i) - labels[i].length, labels[i].length);
+            index += getEntryLength(i);
+        }
+    }
+
+    Aggregate copy() {
+        Aggregate copy = new Aggregate(origins.length);
+        copy.epoch = epoch;
+        copy.count = count;
+        copy.size = size;
+        System.arraycopy(origins, 0, copy.origins, 0, size);
+        System.arraycopy(values, 0, copy.values, 0, size);
+        System.arraycopy(times, 0, copy.times, 0, size);
+        System.arraycopy(errors, 0, copy.errors, 0, size);
+        System.arraycopy(labels, 0, copy.labels, 0, size);
+        return copy;
+    }
+
+    void clear() {
+        count = 0;
+        Arrays.fill(labels, 0, size, null);
+        size = 0;
+    }
+}
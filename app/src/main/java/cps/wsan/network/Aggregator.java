@@ -0,0 +1,199 @@
+package cps.wsan.network;
+
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Merges the events that travel towards the same destination in the same window, so every hop
+ * sends a single {@link Aggregate} per destination and window, rather than one message per event.
+ * Events reported by this node, and aggregates that pass through it, are held until the end of
+ * the current window, and then sent on together. At the destination they are merged the same
+ * way, and the result is delivered once per window.
+ * <p>
+ * Windows are numbered by epochs. Clocks aren't synchronized, so a node that hears an aggregate
+ * of a newer epoch than its own moves its own epoch forward, and the epochs of the mesh follow
+ * the node that is furthest ahead. Events of different epochs are never merged.
+ * <p>
+ * Holding events costs up to one and a half window of latency per hop, in exchange for the traffic
+ * towards the destination no longer growing with the amount of nodes behind it. As an aggregate
+ * stands for many events, aggregates are always sent reliably.
+ */
+class Aggregator {
+    private static final String TAG = Aggregator.class.getSimpleName();
+
+    static final long DEFAULT_WINDOW = 5000;
+    private static final int DEFAULT_SIZE = 3;
+    private static final int MAX_SIZE = 8;
+    private static final int MAX_BUCKETS = 4;
+
+    private final MessageService messages;
+    private final RoutingService routing;
+    private final Clock clock;
+    private final TimerWheel timers;
+    private final TimerWheel.Timer flushTimer;
+    private final Random random;
+    private final byte ip;
+
+    // The aggregates being collected, a bucket is free when it is not active
+    private final Bucket[] buckets;
+
+    private long window;
+    private int size;
+
+    // Added to the window number of the clock, so that epochs follow the newest one heard
+    private int offset;
+
+    Aggregator(MessageService messages, RoutingService routing, Clock clock, TimerWheel timers, byte ip) {
+        this.messages = messages;
+        this.routing = routing;
+        this.clock = clock;
+        this.timers = timers;
+        this.ip = ip;
+
+        flushTimer = new TimerWheel.Timer(this::flush);
+        random = new Random();
+        buckets = new Bucket[MAX_BUCKETS];
+        for (int i = 0; i < buckets.length; i++) buckets[i] = new Bucket();
+
+        window = DEFAULT_WINDOW;
+        size = DEFAULT_SIZE;
+    }
+
+    byte getEpoch() {
+        return (byte) (clock.now() / window + offset);
+    }
+
+    /**
+     * Changes the length of the windows, the epoch carries on where it was.
+     */
+    void setWindow(long window) {
+        byte epoch = getEpoch();
+        this.window = Math.max(1, window);
+        offset = epoch - (int) (clock.now() / this.window);
+    }
+
+    /**
+     * @param size The amount of events with the highest values every aggregate keeps
+     */
+    void setSize(int size) {
+        this.size = Math.max(1, Math.min(MAX_SIZE, size));
+    }
+
+    /**
+     * Adds an event of our own to the aggregate of the current window.
+     * @param time  The global time of the event
+     * @param error How far that time may be off, in milliseconds
+     */
+    void report(byte dest, int value, long time, long error, byte[] label) {
+        if (label.length > Aggregate.MAX_LABEL) {
+            Log.w(TAG, String.format("Label of %s bytes is too long, cutting it short", label.length));
+            byte[] shortened = new byte[Aggregate.MAX_LABEL];
+            System.arraycopy(label, 0, shortened, 0, shortened.length);
+            label = shortened;
+        }
+
+        Aggregate aggregate = find(dest, getEpoch());
+        aggregate.count = Math.min(Aggregate.MAX_VALUE, aggregate.count + 1);
+        aggregate.add(ip, value, (int) time, (int) Math.min(Aggregate.UNKNOWN_ERROR, error), label);
+    }
+
+    /**
+     * Merges an aggregate that reached us into the one of its epoch.
+     */
+    void onAggregate(byte dest, byte[] buffer, int offset, int length) {
+        if (length < Aggregate.HEADER) return;
+
+        onHeard(buffer[offset]);
+        if (!find(dest, buffer[offset]).merge(buffer, offset, length)) {
+            Log.w(TAG, String.format("Dropping the malformed part of an aggregate for %s", dest));
+        }
+    }
+
+    /**
+     * Moves our epoch forward if the given one, of an aggregate we heard, is newer.
+     */
+    void onHeard(byte epoch) {
+        int ahead = (byte) (epoch - getEpoch());
+        if (ahead > 0) offset += ahead;
+    }
+
+    private Aggregate find(byte dest, byte epoch) {
+        Bucket free = null;
+        Bucket oldest = null;
+        for (Bucket bucket : buckets) {
+            if (!bucket.active) {
+                if (free == null) free = bucket;
+            } else if (bucket.dest == dest && bucket.aggregate.epoch == epoch) {
+                return bucket.aggregate;
+            } else if (oldest == null || bucket.created < oldest.created) {
+                oldest = bucket;
+            }
+        }
+
+        // Too many destinations or epochs at once, make room by sending the oldest one early
+        if (free == null) {
+            send(oldest);
+            free = oldest;
+        }
+
+        free.active = true;
+        free.dest = dest;
+        free.created = clock.now();
+        free.aggregate.epoch = epoch;
+        if (free.aggregate.origins.length != size) free.aggregate = new Aggregate(size);
+
+        if (!flushTimer.isScheduled()) scheduleFlush();
+        return free.aggregate;
+    }
+
+    /**
+     * Sends what was collected once the current window is over, a bit later on some nodes than on
+     * others so that neighbours don't all send at once.
+     */
+    private void scheduleFlush() {
+        long jitter = random.nextInt((int) Math.max(1, window / 2));
+        timers.schedule(flushTimer, window - clock.now() % window + jitter);
+    }
+
+    private void flush() {
+        byte epoch = getEpoch();
+        boolean pending = false;
+        for (Bucket bucket : buckets) {
+            if (!bucket.active) continue;
+
+            // Keep collecting the current window, events of newer epochs wait for theirs as well
+            if ((byte) (bucket.aggregate.epoch - epoch) >= 0) pending = true;
+            else send(bucket);
+        }
+        if (pending) scheduleFlush();
+    }
+
+    private void send(Bucket bucket) {
+        Aggregate aggregate = bucket.aggregate;
+        if (routing.isLocal(bucket.dest)) {
+            messages.deliver(aggregate.copy());
+        } else {
+            byte[] payload = new byte[aggregate.getLength(messages.getMaxPayloadLength())];
+            aggregate.write(payload);
+
+            // Losing an aggregate loses all events in it, so it is worth acknowledging
+            messages.send(bucket.dest, payload, (byte) (MessageService.AGGREGATE | MessageService.RELIABLE));
+        }
+
+        aggregate.clear();
+        bucket.active = false;
+    }
+
+    /**
+     * The aggregate of a destination and epoch.
+     */
+    private class Bucket {
+
+        public boolean active;
+        public byte dest;
+        public long created;
+        public Aggregate aggregate = new Aggregate(size);
+
+    }
+}
@@ -0,0 +1,317 @@
+package cps.wsan.network;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.AdvertiseCallback;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.AdvertisingSet;
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A {@link Radio} on top of the Android BLE advertiser and scanner of the default adapter.
+ * <p>
+ * On controllers that support it, packets are advertised with BLE 5 extended advertising, which
+ * fits up to {@link #EXTENDED_ADVERTISING_DATA_LENGTH} bytes in an advertisement rather than 31.
+ * Every advertiser keeps its advertising set for as long as the radio lives, and every new packet
+ * only replaces its data. Optionally it uses the coded PHY, which reaches further at the cost of eight
+ * times the airtime, but can only be heard by controllers that support it as well. Should the
+ * controller refuse the set after all, the radio falls back to legacy advertising for good.
+ * <p>
+ * Extended advertisements are only heard by BLE 5 scanners, so a mesh with older phones in it
+ * should turn extended advertising off on all nodes.
+ * <p>
+ * Android can't tell how many advertisers the controller runs at once, so the radio assumes
+ * {@link #DEFAULT_MAX_ADVERTISERS} and lowers that whenever the controller runs out.
+ */
+public class BleRadio implements Radio {
+    private final static String TAG = BleRadio.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_ADVERTISERS = 4;
+
+    private final BluetoothLeAdvertiser advertiser;
+    private final BluetoothLeScanner scanner;
+    private final int maxExtendedLength;
+    private final boolean coded;
+    private final Advertiser[] advertisers;
+
+    private ScanCallback scanCallback;
+
+    // Changed while holding the lock, as the advertise callbacks come on the main thread
+    private volatile boolean extended;
+    private volatile int maxAdvertisers;
+    private volatile long advertiseFailures;
+
+    public BleRadio() {
+        this(true, false);
+    }
+
+    /**
+     * @param extended  Whether to use extended advertising if the controller supports it
+     * @param coded     Whether to advertise on the coded PHY if the controller supports it
+     */
+    public BleRadio(boolean extended, boolean coded) {
+        // Initialize the bluetooth adapter
+        BluetoothAdapter bt = BluetoothAdapter.getDefaultAdapter();
+        if (bt == null) throw new IllegalStateException("This device does not support BT");
+        if (!bt.isEnabled()) throw new IllegalStateException("Bluetooth is not enabled");
+        if (!bt.isMultipleAdvertisementSupported()) throw new IllegalStateException("Multiple advertisment is not supported");
+
+        // Initialize the advertiser
+        advertiser = bt.getBluetoothLeAdvertiser();
+        if (advertiser == null) throw new IllegalStateException("BLE not supported");
+
+        // Initialize the scanner
+        scanner = bt.getBluetoothLeScanner();
+        if (scanner == null) throw new IllegalStateException("BLE not supported");
+
+        this.extended = extended && isExtendedAdvertisingSupported(bt);
+        this.coded = this.extended && coded && bt.isLeCodedPhySupported();
+        maxExtendedLength = this.extended ? getMaxAdvertisingDataLength(bt) : LEGACY_ADVERTISING_DATA_LENGTH;
+        Log.i(TAG, String.format("Advertising %s bytes per packet%s",
+                maxExtendedLength, this.coded ? " on the coded PHY" : ""));
+
+        maxAdvertisers = DEFAULT_MAX_ADVERTISERS;
+        advertisers = new Advertiser[DEFAULT_MAX_ADVERTISERS];
+        for (int i = 0; i < advertisers.length; i++) advertisers[i] = new Advertiser(i);
+    }
+
+    /**
+     * @return Whether the controller of the given adapter can send extended advertisements
+     */
+    public static boolean isExtendedAdvertisingSupported(BluetoothAdapter bt) {
+        return bt != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && bt.isLeExtendedAdvertisingSupported();
+    }
+
+    /**
+     * @return The advertising data that fits in a single advertisement of the given adapter
+     */
+    public static int getMaxAdvertisingDataLength(BluetoothAdapter bt) {
+        if (!isExtendedAdvertisingSupported(bt)) return LEGACY_ADVERTISING_DATA_LENGTH;
+        return Math.max(LEGACY_ADVERTISING_DATA_LENGTH,
+                Math.min(EXTENDED_ADVERTISING_DATA_LENGTH, bt.getLeMaximumAdvertisingDataLength()));
+    }
+
+    @Override
+    public int getMaxAdvertisingDataLength() {
+        return extended ? maxExtendedLength : LEGACY_ADVERTISING_DATA_LENGTH;
+    }
+
+    @Override
+    public int getMaxAdvertisers() {
+        return maxAdvertisers;
+    }
+
+    @Override
+    public long getAdvertiseFailures() {
+        return advertiseFailures;
+    }
+
+    @Override
+    public synchronized void startAdvertising(int index, UUID uuid, byte[] data) {
+        // Set advertised data
+        AdvertiseData.Builder advertiseData = new AdvertiseData.Builder()
+                .setIncludeDeviceName(false)
+                .setIncludeTxPowerLevel(false)
+                .addServiceData(new ParcelUuid(uuid), data);
+
+        if (extended) startAdvertisingSet(advertisers[index], advertiseData.build());
+        else startLegacyAdvertising(advertisers[index], advertiseData.build());
+    }
+
+    private void startLegacyAdvertising(Advertiser a, AdvertiseData data) {
+        // Set advertise settings
+        AdvertiseSettings.Builder settings = new AdvertiseSettings.Builder()
+                .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_LOW)
+                .setConnectable(false)
+                .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY); // or LOW_LATENCY / LOW_POWER
+
+        advertiser.startAdvertising(settings.build(), data, a.advertiseCallback);
+    }
+
+    /**
+     * Advertises the given data with the advertising set of the advertiser, which is started on
+     * first use. Until the controller reports it started, the newest data waits.
+     */
+    private void startAdvertisingSet(Advertiser a, AdvertiseData data) {
+        a.enabled = true;
+        if (a.set != null) {
+            a.set.setAdvertisingData(data);
+            a.set.enableAdvertising(true, 0, 0);
+            return;
+        }
+
+        a.pending = data;
+        if (a.starting) return;
+
+        // The same interval and power as legacy advertising in low latency mode
+        int phy = coded ? BluetoothDevice.PHY_LE_CODED : BluetoothDevice.PHY_LE_1M;
+        AdvertisingSetParameters parameters = new AdvertisingSetParameters.Builder()
+                .setLegacyMode(false)
+                .setConnectable(false)
+                .setScannable(false)
+                .setInterval(AdvertisingSetParameters.INTERVAL_LOW)
+                .setTxPowerLevel(AdvertisingSetParameters.TX_POWER_LOW)
+                .setPrimaryPhy(phy)
+                .setSecondaryPhy(phy)
+                .build();
+
+        a.starting = true;
+        advertiser.startAdvertisingSet(parameters, data, null, null, null, a.setCallback);
+        a.pending = null;
+    }
+
+    @Override
+    public synchronized void stopAdvertising(int index) {
+        Advertiser a = advertisers[index];
+        if (!extended) {
+            advertiser.stopAdvertising(a.advertiseCallback);
+            return;
+        }
+
+        // The set stays, so the next packet doesn't have to wait for a new one
+        a.enabled = false;
+        a.pending = null;
+        if (a.set != null) a.set.enableAdvertising(false, 0, 0);
+    }
+
+    /**
+     * Stops all advertisers and releases their advertising sets, the radio may be used again
+     * afterwards.
+     */
+    public synchronized void close() {
+        for (Advertiser a : advertisers) {
+            if (a.starting || a.set != null) advertiser.stopAdvertisingSet(a.setCallback);
+            else advertiser.stopAdvertising(a.advertiseCallback);
+            a.starting = false;
+            a.set = null;
+            a.enabled = false;
+        }
+    }
+
+    private synchronized void onStartFailure(Advertiser a, int error) {
+        advertiseFailures++;
+
+        // Other apps may hold on to some of the advertisers of the controller as well
+        if (error == AdvertiseCallback.ADVERTISE_FAILED_TOO_MANY_ADVERTISERS && a.index < maxAdvertisers) {
+            maxAdvertisers = Math.max(1, a.index);
+            Log.w(TAG, String.format("Controller is out of advertisers, using %s", maxAdvertisers));
+        }
+    }
+
+    private synchronized void onSetStarted(Advertiser a, AdvertisingSet started, int status) {
+        a.starting = false;
+        if (status != AdvertisingSetCallback.ADVERTISE_SUCCESS) {
+            Log.e(TAG, String.format("Advertising set could not start (error: %s)", status));
+            onStartFailure(a, status);
+
+            // The controller claimed support, but won't do it after all
+            if (status != AdvertisingSetCallback.ADVERTISE_FAILED_TOO_MANY_ADVERTISERS) {
+                Log.e(TAG, "Falling back to legacy advertising");
+                close();
+                extended = false;
+            }
+            return;
+        }
+
+        a.set = started;
+        if (a.pending != null) a.set.setAdvertisingData(a.pending);
+        if (!a.enabled) a.set.enableAdvertising(false, 0, 0);
+        a.pending = null;
+    }
+
+    @Override
+    public void startScan(Receiver receiver) {
+        if (scanCallback != null) stopScan();
+
+        ScanSettings.Builder settings = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                .setMatchMode(ScanSettings.MATCH_MODE_AGGRESSIVE)
+                .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+                .setNumOfMatches(ScanSettings.MATCH_NUM_ONE_ADVERTISEMENT);
+
+        // Listen for extended advertisements on every PHY as well, whatever we advertise ourselves
+        if (isExtendedAdvertisingSupported(BluetoothAdapter.getDefaultAdapter())) {
+            settings.setLegacy(false).setPhy(ScanSettings.PHY_LE_ALL_SUPPORTED);
+        }
+
+        scanCallback = new ScanCallback() {
+            @Override
+            public void onScanResult(int callbackType, ScanResult result) {
+                super.onScanResult(callbackType, result);
+
+                // Send data to the receiver
+                Map<ParcelUuid, byte[]> data = result.getScanRecord().getServiceData();
+                int rssi = result.getRssi();
+                data.forEach((uuid, bytes) -> receiver.onReceive(uuid.getUuid(), bytes, rssi));
+            }
+        };
+
+        scanner.startScan(new LinkedList<>(), settings.build(), scanCallback);
+    }
+
+    @Override
+    public void stopScan() {
+        if (scanCallback == null) return;
+        scanner.stopScan(scanCallback);
+        scanCallback = null;
+    }
+
+    /**
+     * One of the advertisers of the controller, with the callbacks that come on the main thread.
+     */
+    private class Advertiser {
+
+        public final int index;
+        public final AdvertiseCallback advertiseCallback;
+        public final AdvertisingSetCallback setCallback;
+
+        // The advertising set, once it started, and the newest data until then
+        public AdvertisingSet set;
+        public AdvertiseData pending;
+        public boolean starting;
+        public boolean enabled;
+
+        public Advertiser(int index) {
+            this.index = index;
+
+            advertiseCallback = new AdvertiseCallback() {
+                @Override
+                public void onStartFailure(int errorCode) {
+                    super.onStartFailure(errorCode);
+                    Log.e(TAG, String.format("Advertising could not start (error: %s)", errorCode));
+                    BleRadio.this.onStartFailure(Advertiser.this, errorCode);
+                }
+            };
+
+            setCallback = new AdvertisingSetCallback() {
+                @Override
+                public void onAdvertisingSetStarted(AdvertisingSet set, int txPower, int status) {
+                    onSetStarted(Advertiser.this, set, status);
+                }
+
+                @Override
+                public void onAdvertisingDataSet(AdvertisingSet set, int status) {
+                    if (status != AdvertisingSetCallback.ADVERTISE_SUCCESS) {
+                        Log.e(TAG, String.format("Advertising data could not be set (error: %s)", status));
+                    }
+                }
+            };
+        }
+
+    }
+}
@@ -0,0 +1,91 @@
+package cps.wsan.network;
+
+/**
+ * A map with byte keys, such as node addresses. Unlike a {@code HashMap<Byte, V>} it doesn't box
+ * its keys, and lookups, updates, removals and iteration never allocate. Iterate over it with
+ * {@link #keyAt(int)} and {@link #valueAt(int)}; a removal moves the last entry into the removed
+ * one's place, so iterate backwards when removing entries along the way.
+ */
+public class ByteMap<V> {
+
+    private static final int KEYS = 256;
+
+    private final Object[] values;
+    private final byte[] keys;
+
+    // The index of every key in keys plus one, or zero if it is absent
+    private final int[] positions;
+    private int size;
+
+    public ByteMap() {
+        values = new Object[KEYS];
+        keys = new byte[KEYS];
+        positions = new int[KEYS];
+        size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(byte key) {
+        return (V) values[key & 0xFF];
+    }
+
+    public boolean containsKey(byte key) {
+        return positions[key & 0xFF] != 0;
+    }
+
+    /**
+     * @return The previous value of the key, or {@code null} if it had none
+     */
+    public V put(byte key, V value) {
+        int k = key & 0xFF;
+        V previous = get(key);
+        if (positions[k] == 0) {
+            keys[size] = key;
+            positions[k] = ++size;
+        }
+        values[k] = value;
+        return previous;
+    }
+
+    /**
+     * @return The removed value, or {@code null} if the key was absent
+     */
+    public V remove(byte key) {
+        int k = key & 0xFF;
+        if (positions[k] == 0) return null;
+
+        V previous = get(key);
+        int index = positions[k] - 1;
+        byte last = keys[--size];
+        keys[index] = last;
+        positions[last & 0xFF] = index + 1;
+        positions[k] = 0;
+        values[k] = null;
+        return previous;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            int k = keys[i] & 0xFF;
+            positions[k] = 0;
+            values[k] = null;
+        }
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public byte keyAt(int index) {
+        return keys[index];
+    }
+
+    public V valueAt(int index) {
+        return get(keys[index]);
+    }
+}
@@ -0,0 +1,29 @@
+package cps.wsan.network;
+
+/**
+ * Source of time and delayed execution for the network stack. On a phone this is an
+ * {@link EventLoop} with a thread of its own, in the simulator it is virtual time.
+ */
+public interface Clock {
+
+    /**
+     * @return The current time in milliseconds
+     */
+    long now();
+
+    /**
+     * Runs a task once the given delay has passed.
+     * @param task  The task to run
+     * @param delay The delay in milliseconds
+     */
+    void postDelayed(Runnable task, long delay);
+
+    /**
+     * Runs a task on the thread that runs the posted tasks, right away if the caller is on that
+     * thread already. Clocks that run everything on the caller's thread simply run it.
+     */
+    default void execute(Runnable task) {
+        task.run();
+    }
+
+}
@@ -0,0 +1,116 @@
+package cps.wsan.network;
+
+/**
+ * Suppresses duplicate messages using the sequence numbers their sources assign. For every source
+ * it keeps the highest sequence number seen and a bitmap of the {@link #WINDOW} sequence numbers
+ * before it, so checking a message takes constant time and never allocates. Sequence numbers are
+ * a byte and wrap around, so a source that sent more than half of them since we last heard it
+ * looks like it went back. A message further behind than the window therefore starts the source
+ * over, rather than taking all its new messages for duplicates until the source is forgotten.
+ * <p>
+ * Sequence numbers a source skipped are counted as missed, until they turn up late after all. Not
+ * every message of a source passes by every node, so this is an upper bound on what the node
+ * failed to receive.
+ */
+class DuplicateFilter {
+
+    static final int WINDOW = Long.SIZE;
+
+    private static final int SOURCES = 256;
+
+    private final long[] windows;
+    private final byte[] highest;
+    private final long[] lastSeen;
+    private final boolean[] known;
+    // Sequence numbers the window moved on since the source became known, up to WINDOW
+    private final int[] advanced;
+    private final long resetPeriod;
+
+    private long received;
+    private long missed;
+    private long resets;
+
+    /**
+     * @param resetPeriod The time after which a silent source is forgotten, so a source that
+     *                    restarted with a different sequence number is not taken for a duplicate
+     */
+    DuplicateFilter(long resetPeriod) {
+        this.resetPeriod = resetPeriod;
+
+        windows = new long[SOURCES];
+        highest = new byte[SOURCES];
+        lastSeen = new long[SOURCES];
+        known = new boolean[SOURCES];
+        advanced = new int[SOURCES];
+    }
+
+    /**
+     * Records the given message.
+     * @return Whether the message is new, or false if it was seen before
+     */
+    synchronized boolean accept(byte source, byte sequence, long now) {
+        int s = source & 0xFF;
+        if (!known[s] || now >= lastSeen[s] + resetPeriod) {
+            reset(s, sequence, now);
+            return true;
+        }
+
+        int ahead = (byte) (sequence - highest[s]);
+        if (ahead > 0) {
+            // Slide the window forward, bit 0 is always the highest sequence number
+            windows[s] = ahead >= WINDOW ? 1L : (windows[s] << ahead) | 1L;
+            highest[s] = sequence;
+            lastSeen[s] = now;
+            advanced[s] = Math.min(WINDOW, advanced[s] + ahead);
+            received++;
+            missed += ahead - 1;
+            return true;
+        }
+
+        int behind = -ahead;
+        if (behind >= WINDOW) {
+            resets++;
+            reset(s, sequence, now);
+            return true;
+        }
+
+        long bit = 1L << behind;
+        if ((windows[s] & bit) != 0) return false;
+        windows[s] |= bit;
+        lastSeen[s] = now;
+        received++;
+        if (behind < advanced[s]) missed--; // It was counted as missed when the window moved on
+        return true;
+    }
+
+    private void reset(int s, byte sequence, long now) {
+        known[s] = true;
+        highest[s] = sequence;
+        windows[s] = 1L;
+        lastSeen[s] = now;
+        advanced[s] = 0;
+        received++;
+    }
+
+    /**
+     * @return The fraction of messages that were skipped in the sequence numbers of their source
+     */
+    synchronized double getMissRate() {
+        return received + missed == 0 ? 0 : (double) missed / (received + missed);
+    }
+
+    synchronized long getReceived() {
+        return received;
+    }
+
+    synchronized long getMissed() {
+        return missed;
+    }
+
+    /**
+     * @return The amount of times a message further behind than the window started its source over
+     */
+    synchronized long getResets() {
+        return resets;
+    }
+}
@@ -0,0 +1,75 @@
+package cps.wsan.network;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * A clock that runs all tasks on a thread of its own, so that the protocols keep their timing when
+ * the UI thread is busy. All protocol state is only touched from this thread: methods that may be
+ * called from other threads hand their work over with {@link #execute(Runnable)}.
+ * <p>
+ * Time is the time since boot, which doesn't jump when the user changes the wall clock.
+ */
+public class EventLoop implements Clock {
+
+    private static EventLoop shared;
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final TimerWheel timers;
+
+    public EventLoop(String name) {
+        thread = new HandlerThread(name, Process.THREAD_PRIORITY_MORE_FAVORABLE);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        timers = new TimerWheel(this);
+    }
+
+    /**
+     * @return The loop shared by the network stack and the cluster head, started on first use
+     */
+    public static synchronized EventLoop getShared() {
+        if (shared == null) shared = new EventLoop("network");
+        return shared;
+    }
+
+    @Override
+    public long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delay) {
+        handler.postDelayed(task, delay);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (isCurrentThread()) task.run();
+        else handler.post(task);
+    }
+
+    /**
+     * @return The timer wheel of this loop, for timeouts that are often moved or cancelled
+     */
+    public TimerWheel getTimers() {
+        return timers;
+    }
+
+    /**
+     * @return Whether the caller runs on the thread of this loop
+     */
+    public boolean isCurrentThread() {
+        return Looper.myLooper() == thread.getLooper();
+    }
+
+    /**
+     * Stops the thread once the tasks that are due have run, tasks posted later are dropped.
+     */
+    public void quit() {
+        thread.quitSafely();
+    }
+}
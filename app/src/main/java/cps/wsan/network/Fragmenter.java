@@ -0,0 +1,285 @@
+package cps.wsan.network;
+
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Splits payloads that don't fit in a single message into fragments, and puts them back together
+ * at the destination. Every fragment is a message of its own, with a payload of the form
+ * {@code [group][index][count]} followed by its part of the data.
+ * <p>
+ * When fragments of a group stop arriving before it is complete, the destination requests the
+ * missing ones from the source, with a message of the form {@code [group][index]...}. The source
+ * keeps the fragments it sent for a while to answer such requests. Both sides only keep a few
+ * groups at a time, the oldest one is dropped to make room for a new one. The destination also
+ * remembers the groups it delivered for as long as the source keeps them, and drops fragments of
+ * those that still come in, late or resent.
+ * <p>
+ * All fragments are queued at once, and go out one per advertisement, so every fragment may wait
+ * in the queue one {@link AdhocNetwork#ADVERTISE_PERIOD} longer for every message queued ahead of
+ * it, whether earlier fragments or other messages.
+ * <p>
+ * Fragmentation is meant for framing, see {@link AdhocNetwork#setFraming(boolean)}. A message
+ * advertised on its own has a 128-bit UUID and the message header to carry, which leaves a legacy
+ * advertisement only a few bytes per fragment, so even short payloads take many advertisements
+ * and soon fill the queues of a busy mesh.
+ */
+class Fragmenter {
+    private static final String TAG = Fragmenter.class.getSimpleName();
+
+    private static final int HEADER = 3;
+    private static final int MAX_FRAGMENTS = 16;
+    private static final int MAX_GROUPS = 8;
+    private static final int MAX_REASSEMBLIES = 32;
+    private static final int MAX_COMPLETED = 64;
+
+    private static final long REQUEST_DELAY = 5 * AdhocNetwork.ADVERTISE_PERIOD;
+    private static final int MAX_REQUESTS = 3;
+    private static final long TIMEOUT = 30 * 1000;
+
+    // Fragments may wait in queues for a while, so the source keeps them longer than the destination
+    private static final long SENT_TIMEOUT = 2 * TIMEOUT;
+
+    private final MessageService messages;
+    private final Clock clock;
+    private final TimerWheel timers;
+    private final AdvertiseScheduler scheduler;
+
+    // <source and group, fragments received so far>
+    private final Map<Integer, Reassembly> reassemblies;
+
+    // <source and group, time of delivery>, so late copies of fragments don't start the group anew
+    private final Map<Integer, Long> completed;
+
+    // <group, fragments sent>
+    private final Map<Byte, Sent> sent;
+
+    private byte nextGroup;
+
+    Fragmenter(MessageService messages, Clock clock, TimerWheel timers, AdvertiseScheduler scheduler) {
+        this.messages = messages;
+        this.clock = clock;
+        this.timers = timers;
+        this.scheduler = scheduler;
+
+        reassemblies = new LinkedHashMap<>();
+        completed = new LinkedHashMap<>();
+        sent = new LinkedHashMap<>();
+    }
+
+    /**
+     * @return The amount of fragments a payload of the given length is split into, or -1 if it is
+     * too long to be sent
+     */
+    int getFragmentCount(int length) {
+        int size = messages.getMaxPayloadLength() - HEADER;
+        int count = size <= 0 ? 0 : (length + size - 1) / size;
+        if (size <= 0 || count > MAX_FRAGMENTS) {
+            Log.e(TAG, String.format("Payload of %s bytes is too long to be sent", length));
+            return -1;
+        }
+        return count;
+    }
+
+    /**
+     * Splits the payload up and sends all fragments, with consecutive message ids starting at the
+     * given one, taken in advance for {@link #getFragmentCount(int)} fragments.
+     */
+    void send(byte dest, byte[] payload, byte firstId) {
+        int size = messages.getMaxPayloadLength() - HEADER;
+        int count = getFragmentCount(payload.length);
+        if (count < 0) return;
+
+        int ahead = scheduler.getDepth(AdvertiseScheduler.Priority.DATA);
+        Sent group = new Sent();
+        group.dest = dest;
+        group.time = clock.now();
+        group.fragments = new byte[count][];
+
+        for (int i = 0; i < count; i++) {
+            int offset = i * size;
+            int length = Math.min(size, payload.length - offset);
+
+            byte[] fragment = new byte[HEADER + length];
+            fragment[0] = nextGroup;
+            fragment[1] = (byte) i;
+            fragment[2] = (byte) count;
+            System.arraycopy(payload, offset, fragment, HEADER, length);
+            group.fragments[i] = fragment;
+
+            messages.send(dest, fragment, MessageService.FRAGMENT, (byte) (firstId + i), getTtl(ahead + i));
+        }
+
+        // Keep the fragments around in case the destination misses some of them
+        if (sent.size() >= MAX_GROUPS) removeOldest(sent);
+        sent.put(nextGroup, group);
+        nextGroup++;
+    }
+
+    /**
+     * Handles a fragment that reached us, and delivers the payload once all fragments are in.
+     */
+    void onFragment(byte source, byte[] fragment) {
+        if (fragment.length < HEADER) return;
+
+        byte group = fragment[0];
+        int index = fragment[1] & 0xFF;
+        int count = fragment[2] & 0xFF;
+        if (count == 0 || count > MAX_FRAGMENTS || index >= count) {
+            Log.w(TAG, String.format("Dropping malformed fragment %s/%s of %s", index, count, source));
+            return;
+        }
+
+        int key = ((source & 0xFF) << 8) | (group & 0xFF);
+        Long delivered = completed.get(key);
+        if (delivered != null) {
+            // The source may still resend fragments of the group until it forgets it
+            if (clock.now() < delivered + SENT_TIMEOUT) return;
+            completed.remove(key);
+        }
+
+        Reassembly reassembly = reassemblies.get(key);
+        if (reassembly == null) {
+            if (reassemblies.size() >= MAX_REASSEMBLIES) {
+                Log.w(TAG, "Too many incomplete messages, dropping the oldest one");
+                timers.cancel(removeOldest(reassemblies).timer);
+            }
+
+            reassembly = new Reassembly();
+            reassembly.source = source;
+            reassembly.group = group;
+            reassembly.fragments = new byte[count][];
+            reassembly.started = clock.now();
+            reassemblies.put(key, reassembly);
+
+            Reassembly created = reassembly;
+            reassembly.timer = new TimerWheel.Timer(() -> check(key, created));
+            timers.schedule(reassembly.timer, REQUEST_DELAY);
+        }
+
+        if (count != reassembly.fragments.length || reassembly.fragments[index] != null) return;
+        reassembly.fragments[index] = fragment;
+        reassembly.received++;
+        reassembly.lastReceived = clock.now();
+
+        if (reassembly.received < count) return;
+        reassemblies.remove(key);
+        timers.cancel(reassembly.timer);
+        if (completed.size() >= MAX_COMPLETED) removeOldest(completed);
+        completed.put(key, clock.now());
+
+        // Put the payload back together
+        int length = 0;
+        for (byte[] f : reassembly.fragments) length += f.length - HEADER;
+
+        byte[] payload = new byte[length];
+        int offset = 0;
+        for (byte[] f : reassembly.fragments) {
+            System.arraycopy(f, HEADER, payload, offset, f.length - HEADER);
+            offset += f.length - HEADER;
+        }
+
+        Log.v(TAG, String.format("Reassembled a message of %s bytes from %s fragments", length, count));
+        messages.deliver(source, payload);
+    }
+
+    /**
+     * Requests the missing fragments of an incomplete group, or gives up on it.
+     */
+    private void check(int key, Reassembly reassembly) {
+        if (reassemblies.get(key) != reassembly) return;
+
+        long now = clock.now();
+        if (now >= reassembly.started + TIMEOUT || reassembly.requests >= MAX_REQUESTS) {
+            reassemblies.remove(key);
+            Log.w(TAG, String.format("Giving up on message %s of %s, received %s/%s fragments",
+                    reassembly.group, reassembly.source, reassembly.received, reassembly.fragments.length));
+            return;
+        }
+
+        // Fragments are still coming in, so give them some more time
+        if (now < reassembly.lastReceived + REQUEST_DELAY) {
+            timers.schedule(reassembly.timer, reassembly.lastReceived + REQUEST_DELAY - now);
+            return;
+        }
+
+        int capacity = messages.getMaxPayloadLength() - 1;
+        int missing = reassembly.fragments.length - reassembly.received;
+        byte[] request = new byte[1 + Math.min(capacity, missing)];
+        request[0] = reassembly.group;
+
+        int length = 1;
+        for (int i = 0; i < reassembly.fragments.length && length < request.length; i++) {
+            if (reassembly.fragments[i] == null) request[length++] = (byte) i;
+        }
+
+        reassembly.requests++;
+        reassembly.lastReceived = now;
+        Log.i(TAG, String.format("Requesting %s missing fragments of message %s from %s",
+                missing, reassembly.group, reassembly.source));
+
+        messages.send(reassembly.source, request, MessageService.FRAGMENT_REQUEST);
+        timers.schedule(reassembly.timer, REQUEST_DELAY);
+    }
+
+    /**
+     * Sends the fragments the destination asked for again.
+     */
+    void onRequest(byte dest, byte[] request) {
+        if (request.length < 1) return;
+
+        Sent group = sent.get(request[0]);
+        if (group == null || group.dest != dest || clock.now() >= group.time + SENT_TIMEOUT) {
+            Log.w(TAG, String.format("Can't answer the request of %s for message %s", dest, request[0]));
+            return;
+        }
+
+        int queued = scheduler.getDepth(AdvertiseScheduler.Priority.DATA);
+        for (int i = 1; i < request.length; i++) {
+            int index = request[i] & 0xFF;
+            if (index < group.fragments.length) {
+                messages.send(dest, group.fragments[index], MessageService.FRAGMENT,
+                        messages.takeId(), getTtl(queued++));
+            }
+        }
+    }
+
+    /**
+     * @return How long a fragment with the given amount of messages queued ahead of it may wait
+     * for its turn
+     */
+    private static long getTtl(int ahead) {
+        return AdhocNetwork.MESSAGE_TTL + ahead * AdhocNetwork.ADVERTISE_PERIOD;
+    }
+
+    private static <V> V removeOldest(Map<?, V> map) {
+        Iterator<V> it = map.values().iterator();
+        V oldest = it.next();
+        it.remove();
+        return oldest;
+    }
+
+    private static class Reassembly {
+
+        public byte source;
+        public byte group;
+        public byte[][] fragments;
+        public int received;
+        public int requests;
+        public long started;
+        public long lastReceived;
+        public TimerWheel.Timer timer;
+
+    }
+
+    private static class Sent {
+
+        public byte dest;
+        public long time;
+        public byte[][] fragments;
+
+    }
+}
@@ -0,0 +1,146 @@
+package cps.wsan.network;
+
+import android.util.Log;
+
+import java.util.UUID;
+
+/**
+ * Packs the packets of several services into a single service data element, so that one
+ * advertisement can carry more than one packet. A frame is a sequence of elements of the form
+ * {@code [service tag][length][payload]}, where the tag is the index of the service in
+ * {@link #SERVICES}. Frames are advertised under a 16-bit UUID to leave as much room as possible
+ * for the payload.
+ */
+public class Frame {
+    private static final String TAG = Frame.class.getSimpleName();
+
+    public static final UUID UUID = java.util.UUID.fromString("0000fff7-0000-1000-8000-00805f9b34fb");
+
+    // The tag of a service is its index in this array, so only ever append to it
+    private static final UUID[] SERVICES = {
+            RoutingService.UUID,
+            MessageService.UUID,
+            PropagationService.UUID,
+            MessageService.ACK_UUID
+    };
+
+    static final int ELEMENT_HEADER = 2;
+
+    // The Bluetooth base UUID, any UUID of this form is advertised as 16 or 32 bits
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+
+    private final byte[] buffer;
+    private int length;
+    private int count;
+
+    /**
+     * @param capacity The maximum amount of bytes of the frame
+     */
+    public Frame(int capacity) {
+        buffer = new byte[Math.max(0, capacity)];
+        length = 0;
+        count = 0;
+    }
+
+    /**
+     * Adds a packet to the frame.
+     * @return Whether the packet fitted in the frame
+     */
+    public boolean add(UUID service, byte[] packet) {
+        if (!fits(service, packet)) return false;
+
+        buffer[length] = (byte) getTag(service);
+        buffer[length + 1] = (byte) packet.length;
+        System.arraycopy(packet, 0, buffer, length + ELEMENT_HEADER, packet.length);
+
+        length += ELEMENT_HEADER + packet.length;
+        count++;
+        return true;
+    }
+
+    /**
+     * @return Whether the packet would fit in the frame, without adding it
+     */
+    public boolean fits(UUID service, byte[] packet) {
+        return getTag(service) >= 0 && packet.length <= 0xFF
+                && length + ELEMENT_HEADER + packet.length <= buffer.length;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getCapacity() {
+        return buffer.length;
+    }
+
+    /**
+     * Empties the frame, so that it can be reused.
+     */
+    public void clear() {
+        length = 0;
+        count = 0;
+    }
+
+    public byte[] toBytes() {
+        byte[] res = new byte[length];
+        System.arraycopy(buffer, 0, res, 0, length);
+        return res;
+    }
+
+    /**
+     * @return The frame in a buffer taken from the given pool
+     */
+    public byte[] toBytes(PacketPool pool) {
+        byte[] res = pool.acquire(length);
+        System.arraycopy(buffer, 0, res, 0, length);
+        return res;
+    }
+
+    /**
+     * Splits a received frame up into its packets and passes each of them to the listener. The
+     * packets are not copied, the listener gets their offset and length in the frame.
+     */
+    public static void decode(byte[] frame, int rssi, NetworkListener listener) {
+        int index = 0;
+        while (index + ELEMENT_HEADER <= frame.length) {
+            int tag = frame[index] & 0xFF;
+            int size = frame[index + 1] & 0xFF;
+            index += ELEMENT_HEADER;
+
+            if (tag >= SERVICES.length || index + size > frame.length) {
+                Log.w(TAG, String.format("Dropping malformed frame element (tag: %s, length: %s)", tag, size));
+                return;
+            }
+
+            listener.onMessage(SERVICES[tag], frame, index, size, rssi);
+            index += size;
+        }
+    }
+
+    /**
+     * @return Whether packets of the given service can be put in a frame
+     */
+    public static boolean isFramed(UUID service) {
+        return getTag(service) >= 0;
+    }
+
+    /**
+     * @return The amount of advertising data bytes taken by a service data element of the given
+     * UUID, without its data
+     */
+    public static int getOverhead(UUID uuid) {
+        if (uuid.getLeastSignificantBits() != BASE_UUID_LSB
+                || (uuid.getMostSignificantBits() & 0xFFFFFFFFL) != BASE_UUID_MSB) return 2 + 16;
+        if ((uuid.getMostSignificantBits() >>> 48) == 0) return 2 + 2;
+        return 2 + 4;
+    }
+
+    private static int getTag(UUID service) {
+        for (int i = 0; i < SERVICES.length; i++) {
+            if (SERVICES[i].equals(service)) return i;
+        }
+        return -1;
+    }
+}
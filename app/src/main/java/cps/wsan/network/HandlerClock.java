@@ -0,0 +1,25 @@
+package cps.wsan.network;
+
+import android.os.Handler;
+
+/**
+ * A clock backed by the wall clock, tasks are posted to the looper of the thread that created it.
+ */
+public class HandlerClock implements Clock {
+
+    private final Handler handler;
+
+    public HandlerClock() {
+        handler = new Handler();
+    }
+
+    @Override
+    public long now() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delay) {
+        handler.postDelayed(task, delay);
+    }
+}
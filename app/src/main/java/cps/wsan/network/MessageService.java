@@ -1,27 +1,100 @@
 package cps.wsan.network;
 
-import android.os.ParcelUuid;
 import android.util.Log;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import cps.wsan.network.AdvertiseScheduler.Priority;
+
+/**
+ * Routes messages hop by hop towards their destination. A message has a header of the form
+ * {@code [next hop][sender][source][dest][id][flags]}, followed by its payload, where the sender
+ * is the hop that advertised this copy. Payloads that don't fit in
+ * a single message are split up into fragments by the {@link Fragmenter}. The id is a sequence
+ * number that every source increments for each message it sends, which lets the duplicate filter
+ * of the network recognise messages that were received before.
+ * <p>
+ * Messages sent in reliable mode have the {@link #RELIABLE} flag set, and are kept by every hop
+ * until the next hop acknowledges them. Usually the acknowledgement is implicit: we overhear the
+ * next hop forwarding the message, which the sender of that copy shows. The destination, and a hop
+ * that receives a message it already forwarded, answer with an explicit acknowledgement of the
+ * form {@code [sender]([source][id])...} instead, which takes on the messages that come in while
+ * it waits for its turn, up to as many as fit. A message is heard many times while it is
+ * advertised, so it is acknowledged at most once per {@link #ACK_TIMEOUT}, the time the sender
+ * waits before it retransmits. Unacknowledged messages are retransmitted with an exponential backoff, a limited
+ * amount of times, and never later than {@link #RETRANSMIT_HORIZON} after the first copy, which is
+ * well within the time the duplicate filters of the network remember a source.
+ * <p>
+ * Received messages are read in place through a {@link MessageView}, and forwarded in buffers
+ * from the {@link PacketPool}, so forwarding a message doesn't allocate.
+ * <p>
+ * Messages to {@link RoutingService#SINKS} are anycast: every hop sends them towards the sink
+ * nearest to it, and the first sink they reach keeps them. The fragments of a long message must
+ * all end up at the same sink though, so those are sent to the sink that is nearest to the source.
+ * <p>
+ * Events that are reported rather than sent carry the {@link #AGGREGATE} flag. Every hop, and the
+ * destination, hands those to the {@link Aggregator}, which merges the events of a window into a
+ * single message instead of forwarding each of them.
+ */
 public class MessageService implements NetworkListener {
     private static final String TAG = MessageService.class.getSimpleName();
 
-    public static final ParcelUuid UUID = ParcelUuid.fromString("95112dfd-bd82-4f2d-8d3d-acc995b56b45");
+    public static final UUID UUID = java.util.UUID.fromString("95112dfd-bd82-4f2d-8d3d-acc995b56b45");
+    static final UUID ACK_UUID = java.util.UUID.fromString("1d6a8ee5-5b31-4f33-9d3e-6cfb4b7a0d2e");
+
+    private static final int HEADER = MessageView.HEADER;
+    private static final int ACK_ENTRY = 2;
+
+    static final byte RELIABLE = 0x01;
+    static final byte FRAGMENT = 0x02;
+    static final byte FRAGMENT_REQUEST = 0x04;
+    static final byte AGGREGATE = 0x08;
+
+    private static final long ACK_TIMEOUT = 4 * AdhocNetwork.ADVERTISE_PERIOD;
+    private static final int MAX_RETRIES = 3;
+    private static final int MAX_PENDING = 32;
+    private static final int MAX_ACKS = 16;
+
+    // No retransmission is queued later than this after the first transmission: the backoffs
+    // before the last retry, with their random extra of up to an advertise period each
+    private static final long RETRANSMIT_PERIOD =
+            ACK_TIMEOUT * ((1 << MAX_RETRIES) - 1) + MAX_RETRIES * AdhocNetwork.ADVERTISE_PERIOD;
+
+    /**
+     * How long after the first copy of a message another copy may still reach the next hop: the
+     * last retransmission may wait in the queue for the whole TTL.
+     */
+    static final long RETRANSMIT_HORIZON = RETRANSMIT_PERIOD + AdhocNetwork.MESSAGE_TTL;
+
+    // Messages waiting for an acknowledgement, a slot is free when it is not active
+    private Pending[] pending;
 
-    private Map<Byte, Long> recentMessages;
-    private Set<MessageListener> listeners;
+    // <source, id, time> of the last acknowledgements we sent, used as a ring
+    private byte[] ackSources;
+    private byte[] ackIds;
+    private long[] ackTimes;
+    private int nextAck;
+
+    // The acknowledgement we queued last, which later ones join while it is still queued
+    private byte[] queuedAck;
+
+    private List<MessageListener> listeners;
 
     private AdhocNetwork network;
     private RoutingService routing;
+    private Fragmenter fragmenter;
+    private Aggregator aggregator;
+    private PacketPool pool;
+    private MessageView view;
+    private Random random;
 
     private byte ip;
+    private AtomicInteger nextId;
+    private volatile boolean reliable;
 
     public MessageService(AdhocNetwork network, RoutingService routing, byte ip) {
         this.network = network;
@@ -30,56 +103,435 @@ public class MessageService implements NetworkListener {
         this.routing = routing;
         this.ip = ip;
 
-        listeners = new HashSet<>();
-        recentMessages = new HashMap<>();
+        listeners = new ArrayList<>();
+        pending = new Pending[MAX_PENDING];
+        for (int i = 0; i < pending.length; i++) pending[i] = new Pending();
+        ackSources = new byte[MAX_ACKS];
+        ackIds = new byte[MAX_ACKS];
+        ackTimes = new long[MAX_ACKS];
+        for (int i = 0; i < ackTimes.length; i++) ackTimes[i] = Long.MIN_VALUE / 2;
+
+        pool = network.getPacketPool();
+        view = new MessageView();
+        random = new Random();
+        nextId = new AtomicInteger(random.nextInt());
+        fragmenter = new Fragmenter(this, network.getClock(), network.getTimers(), network.getScheduler());
+        aggregator = new Aggregator(this, routing, network.getClock(), network.getTimers(), ip);
+    }
+
+    /**
+     * Sends a message towards the given destination, split up into fragments if it is too long.
+     * May be called from any thread, the payload must not be changed afterwards.
+     * @param dest A node, or {@link RoutingService#SINKS} for the nearest sink
+     * @return The id of the message, which is passed to the delivery callbacks in reliable mode.
+     * Those callbacks are called for every fragment, this returns the id of the first one. Every
+     * byte is a valid id
+     * @throws IllegalArgumentException If the payload is too long to be sent, even in fragments
+     */
+    public byte send(byte dest, byte[] payload) {
+        boolean fragmented = payload.length > getMaxPayloadLength();
+        int count = fragmented ? fragmenter.getFragmentCount(payload.length) : 1;
+        if (count < 0) {
+            throw new IllegalArgumentException(
+                    String.format("Payload of %s bytes is too long to be sent", payload.length));
+        }
+
+        // The ids are taken right away, so the caller gets them without waiting for the network
+        byte id = (byte) nextId.getAndAdd(count);
+        network.getClock().execute(() -> {
+            if (routing.isLocal(dest)) deliver(ip, payload);
+            else if (fragmented) fragmenter.send(resolve(dest), payload, id);
+            else send(dest, payload, (byte) 0, id);
+        });
+        return id;
+    }
+
+    /**
+     * Reports an event, which is merged with the other events towards the same destination in the
+     * same window, by us and by every hop on the way. May be called from any thread.
+     * @param value The value by which the events are ranked, from 0 to 65535
+     * @param label What the event is about, such as the name of a sensor, of at most 16 bytes
+     */
+    public void report(byte dest, int value, byte[] label) {
+        report(dest, value, 0, TimeSyncService.UNKNOWN_ERROR, label);
+    }
+
+    /**
+     * Reports an event that happened at the given time, see {@link TimeSyncService}.
+     * @param time  The global time of the event in milliseconds
+     * @param error How far that time may be off in milliseconds, or
+     *              {@link TimeSyncService#UNKNOWN_ERROR} if it is not known
+     */
+    public void report(byte dest, int value, long time, long error, byte[] label) {
+        network.getClock().execute(() -> aggregator.report(dest, value, time, error, label));
+    }
+
+    /**
+     * Sets the length of the windows in which reported events are merged, the default is 5 s.
+     */
+    public void setAggregationWindow(long window) {
+        network.getClock().execute(() -> aggregator.setWindow(window));
+    }
+
+    /**
+     * Sets the amount of events with the highest values an aggregate keeps, the default is 3.
+     * The total amount of events is always kept.
+     */
+    public void setAggregationSize(int size) {
+        network.getClock().execute(() -> aggregator.setSize(size));
+    }
+
+    /**
+     * @return The nearest sink for {@link RoutingService#SINKS}, the given destination otherwise
+     */
+    private byte resolve(byte dest) {
+        if (dest != RoutingService.SINKS) return dest;
+
+        byte sink = routing.getNearestSink();
+        return sink == -1 ? dest : sink;
+    }
+
+    /**
+     * Sends a single message with the given flags.
+     * @return The id of the message
+     */
+    byte send(byte dest, byte[] payload, byte flags) {
+        byte id = takeId();
+        send(dest, payload, flags, id);
+        return id;
+    }
+
+    /**
+     * @return The id of the next message we send
+     */
+    byte takeId() {
+        return (byte) nextId.getAndIncrement();
+    }
+
+    /**
+     * Sends a single message with an id that was taken in advance.
+     */
+    void send(byte dest, byte[] payload, byte flags, byte id) {
+        send(dest, payload, flags, id, AdhocNetwork.MESSAGE_TTL);
+    }
+
+    /**
+     * Sends a single message that may wait in the queue for the given time, in milliseconds,
+     * before it is no longer worth advertising.
+     */
+    void send(byte dest, byte[] payload, byte flags, byte id, long ttl) {
+        byte[] packet = pool.acquire(payload.length + HEADER);
+
+        // Set headers
+        MessageView.writeHeader(packet, routing.getNextHop(dest), ip, ip, dest, id,
+                reliable ? (byte) (flags | RELIABLE) : flags);
+
+        // Copy payload
+        System.arraycopy(payload, 0, packet, HEADER, payload.length);
+        transmit(packet, ttl);
+    }
+
+    /**
+     * @return The maximum length of the payload of a single message
+     */
+    int getMaxPayloadLength() {
+        return network.getMaxPacketLength(UUID) - HEADER;
     }
 
     @Override
-    public void onMessage(ParcelUuid uuid, byte[] data) {
+    public void onMessage(UUID uuid, byte[] data) {
+        onMessage(uuid, data, 0, data.length, 0);
+    }
+
+    @Override
+    public void onMessage(UUID uuid, byte[] buffer, int offset, int length, int rssi) {
+        if (uuid.equals(ACK_UUID)) {
+            for (int i = offset + 1; i + 1 < offset + length; i += 2) {
+                onAck(buffer[offset], buffer[i], buffer[i + 1]);
+            }
+            return;
+        }
+
         if (!uuid.equals(UUID)) return;
+        if (!view.wrap(buffer, offset, length).isValid()) {
+            Log.w(TAG, String.format("Received a message of length %s", length));
+            return;
+        }
+
+        byte nextHop = view.getNextHop();
+        byte sender = view.getSender();
+        byte source = view.getSource();
+        byte dest = view.getDest();
+        byte id = view.getId();
+        byte flags = view.getFlags();
 
-        byte nextHop = data[0];
-        byte source = data[1];
-        byte dest = data[2];
-        byte id = data[3];
+        // Don't do anything if we are not supposed to do anything, unless it is the next hop
+        // passing on a message we sent it. Other copies, such as a retransmission by the hop
+        // before us, say nothing about whether the next hop has it
+        if (nextHop != ip) {
+            Pending p = findPending(source, id);
+            if (p != null && sender == p.nextHop) {
+                routing.onHeard(sender);
+                acknowledged(p);
+            }
+
+            // Overheard aggregates keep our epoch in line with the rest of the mesh
+            if ((flags & AGGREGATE) != 0 && view.getPayloadLength() > 0) {
+                aggregator.onHeard(buffer[view.getPayloadOffset()]);
+            }
+            return;
+        }
 
-        // Don't do anything if we are not supposed to do anything
-        if (nextHop != ip) return;
+        // Don't do anything if we have processed this message already, but do tell the sender we
+        // have it, as it apparently missed that
+        if (!network.accept(UUID, source, id)) {
+            if ((flags & RELIABLE) != 0) sendAck(source, id);
+            return;
+        }
 
-        // Don't do anything if we have processed this message already
-        long now = System.currentTimeMillis();
-        long prev = recentMessages.containsKey(id) ? recentMessages.get(id) : 0;
-        if (now < prev + 2 * AdhocNetwork.ADVERTISE_PERIOD) return;
-        recentMessages.put(id, now);
+        // Aggregates wait for the others of their window instead of being forwarded right away, so
+        // the sender won't overhear us passing them on
+        if ((flags & AGGREGATE) != 0) {
+            if ((flags & RELIABLE) != 0) sendAck(source, id);
+            aggregator.onAggregate(dest, buffer, view.getPayloadOffset(), view.getPayloadLength());
+            return;
+        }
 
         // Forward the message if we are supposed to do so
-        if (dest != ip) {
+        if (!routing.isLocal(dest)) {
             nextHop = routing.getNextHop(dest);
-            data[0] = nextHop;
-            network.advertise(UUID, data);
-            byte finalNextHop = nextHop;
-            listeners.forEach((l) -> l.onMessageForward(source, finalNextHop));
+
+            byte[] packet = pool.acquire(length);
+            System.arraycopy(buffer, offset, packet, 0, length);
+            packet[MessageView.NEXT_HOP] = nextHop;
+            packet[MessageView.SENDER] = ip;
+            transmit(packet);
+
+            for (int i = 0; i < listeners.size(); i++) listeners.get(i).onMessageForward(source, nextHop);
             return;
         }
 
         // Otherwise we must be the destination, so handle the message
-        byte[] payload = new byte[data.length - 4];
-        System.arraycopy(data, 4, payload, 0, payload.length);
+        if ((flags & RELIABLE) != 0) sendAck(source, id);
+
+        byte[] payload = new byte[view.getPayloadLength()];
+        System.arraycopy(buffer, view.getPayloadOffset(), payload, 0, payload.length);
 
-        Log.v(TAG, String.format("Message received of length: %s (including 3 header bytes)", data.length));
-        listeners.forEach((l) -> l.onMessageReceived(source, payload));
+        if ((flags & FRAGMENT) != 0) {
+            fragmenter.onFragment(source, payload);
+            return;
+        }
+        if ((flags & FRAGMENT_REQUEST) != 0) {
+            fragmenter.onRequest(source, payload);
+            return;
+        }
+
+        Log.v(TAG, String.format("Message received of length: %s (including %s header bytes)", length, HEADER));
+        deliver(source, payload);
+    }
+
+    /**
+     * Passes a received message, or a reassembled one, on to the listeners.
+     */
+    void deliver(byte source, byte[] payload) {
+        for (int i = 0; i < listeners.size(); i++) listeners.get(i).onMessageReceived(source, payload);
+    }
+
+    /**
+     * Passes the aggregate of a window that reached its destination on to the listeners.
+     */
+    void deliver(Aggregate aggregate) {
+        for (int i = 0; i < listeners.size(); i++) listeners.get(i).onAggregateReceived(aggregate);
+    }
+
+    /**
+     * Advertises a message to its next hop, and keeps it for retransmission if it is reliable.
+     * The packet must come from the pool, which gets it back once it is no longer needed.
+     */
+    private void transmit(byte[] packet) {
+        transmit(packet, AdhocNetwork.MESSAGE_TTL);
+    }
+
+    private void transmit(byte[] packet, long ttl) {
+        boolean keep = (packet[MessageView.FLAGS] & RELIABLE) != 0;
+        Pending p = keep ? findFree() : null;
+        if (keep && p == null) {
+            Log.w(TAG, String.format("Too many unacknowledged messages, not keeping message %s of %s",
+                    packet[MessageView.ID], packet[MessageView.SOURCE]));
+        }
+
+        // A message we keep for retransmission must not be recycled once it has been advertised
+        network.advertise(UUID, packet, Priority.DATA, ttl, p == null);
+        if (p == null) return;
+
+        p.active = true;
+        p.packet = packet;
+        p.nextHop = packet[MessageView.NEXT_HOP];
+        p.attempts = 0;
+        p.deadline = network.getClock().now() + RETRANSMIT_PERIOD;
+        network.getTimers().schedule(p.timer, ACK_TIMEOUT);
+    }
+
+    private void retransmit(Pending p) {
+        // The message may still be waiting for its turn, don't count that as an attempt
+        boolean late = network.getClock().now() >= p.deadline;
+        if (!late && network.getScheduler().contains(p.packet)) {
+            network.getTimers().schedule(p.timer, ACK_TIMEOUT);
+            return;
+        }
+
+        // Copies sent after the deadline could outlive the duplicate filters down the line
+        byte source = p.packet[MessageView.SOURCE];
+        byte dest = p.packet[MessageView.DEST];
+        byte id = p.packet[MessageView.ID];
+        if (p.attempts >= MAX_RETRIES || late) {
+            Log.w(TAG, String.format("Message %s of %s was not acknowledged by %s", id, source, p.nextHop));
+            release(p);
+            if (source != ip) return;
+            for (int i = 0; i < listeners.size(); i++) listeners.get(i).onMessageFailed(dest, id);
+            return;
+        }
+
+        // The route may have changed in the meantime. Aggregates stay with their next hop though:
+        // every hop merges them under an id of its own, so the duplicate filters further on
+        // can't tell that another hop merged the same aggregate already
+        p.attempts++;
+        if ((p.packet[MessageView.FLAGS] & AGGREGATE) == 0) p.nextHop = routing.getNextHop(dest);
+        p.packet[MessageView.NEXT_HOP] = p.nextHop;
+        network.advertise(UUID, p.packet, Priority.DATA, AdhocNetwork.MESSAGE_TTL, false);
+
+        long backoff = (ACK_TIMEOUT << p.attempts) + random.nextInt((int) AdhocNetwork.ADVERTISE_PERIOD);
+        network.getTimers().schedule(p.timer, backoff);
+    }
+
+    private void onAck(byte sender, byte source, byte id) {
+        routing.onHeard(sender);
+
+        Pending p = findPending(source, id);
+        if (p != null && p.nextHop == sender) acknowledged(p);
+    }
+
+    private void acknowledged(Pending p) {
+        byte source = p.packet[MessageView.SOURCE];
+        byte dest = p.packet[MessageView.DEST];
+        byte id = p.packet[MessageView.ID];
+        release(p);
+
+        if (source != ip) return;
+        for (int i = 0; i < listeners.size(); i++) listeners.get(i).onMessageDelivered(dest, id);
+    }
+
+    /**
+     * Frees the slot of a pending message, and returns its buffer to the pool. A retransmission
+     * that is still queued is taken out, it is of no use anymore either.
+     */
+    private void release(Pending p) {
+        network.getTimers().cancel(p.timer);
+        network.getScheduler().remove(p.packet);
+        pool.release(p.packet);
+        p.active = false;
+        p.packet = null;
+    }
+
+    private Pending findPending(byte source, byte id) {
+        for (Pending p : pending) {
+            if (p.active && p.packet[MessageView.SOURCE] == source && p.packet[MessageView.ID] == id) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    private Pending findFree() {
+        for (Pending p : pending) {
+            if (!p.active) return p;
+        }
+        return null;
+    }
+
+    private void sendAck(byte source, byte id) {
+        // The sender won't retransmit before the last acknowledgement expired
+        long now = network.getClock().now();
+        for (int i = 0; i < MAX_ACKS; i++) {
+            if (ackSources[i] == source && ackIds[i] == id && now < ackTimes[i] + ACK_TIMEOUT) return;
+        }
+        ackSources[nextAck] = source;
+        ackIds[nextAck] = id;
+        ackTimes[nextAck] = now;
+        nextAck = (nextAck + 1) % MAX_ACKS;
+
+        // Join the acknowledgement that is still waiting, rather than take up another advertisement
+        byte[] queued = queuedAck;
+        byte[] ack;
+        if (queued != null && queued.length + ACK_ENTRY <= network.getMaxPacketLength(ACK_UUID)
+                && network.getScheduler().remove(ACK_UUID, queued)) {
+            ack = pool.acquire(queued.length + ACK_ENTRY);
+            System.arraycopy(queued, 0, ack, 0, queued.length);
+            pool.release(queued);
+        } else {
+            ack = pool.acquire(1 + ACK_ENTRY);
+            ack[0] = ip;
+        }
+        ack[ack.length - 2] = source;
+        ack[ack.length - 1] = id;
+        queuedAck = ack;
+        network.advertise(ACK_UUID, ack, Priority.CONTROL, ACK_TIMEOUT, true);
+    }
+
+    /**
+     * Enables or disables acknowledging and retransmitting the messages we send. Messages of other
+     * nodes are forwarded in the mode they were sent in.
+     */
+    public void setReliable(boolean reliable) {
+        this.reliable = reliable;
     }
 
     public void addListener(MessageListener l) {
-        listeners.add(l);
+        network.getClock().execute(() -> {
+            if (!listeners.contains(l)) listeners.add(l);
+        });
     }
 
     public void removeListener(MessageListener l) {
-        listeners.remove(l);
+        network.getClock().execute(() -> listeners.remove(l));
     }
 
     public interface MessageListener {
         void onMessageReceived(byte source, byte[] data);
         void onMessageForward(byte source, byte nextHop);
+
+        /**
+         * Called in reliable mode, once the next hop acknowledged a message we sent.
+         */
+        default void onMessageDelivered(byte dest, byte id) {
+        }
+
+        /**
+         * Called in reliable mode, once a message we sent was retransmitted the maximum amount of
+         * times without being acknowledged.
+         */
+        default void onMessageFailed(byte dest, byte id) {
+        }
+
+        /**
+         * Called once per window at the destination of reported events, with all events of that
+         * window that reached it.
+         */
+        default void onAggregateReceived(Aggregate aggregate) {
+        }
+    }
+
+    /**
+     * A message waiting for an acknowledgement, with its retransmission timer.
+     */
+    private class Pending {
+
+        public boolean active;
+        public byte[] packet;
+        public byte nextHop;
+        public int attempts;
+        public long deadline;
+        public final TimerWheel.Timer timer = new TimerWheel.Timer(() -> retransmit(this));
+
     }
 }
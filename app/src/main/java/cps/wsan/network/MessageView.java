@@ -0,0 +1,99 @@
+package cps.wsan.network;
+
+/**
+ * A flyweight over a message of the form
+ * {@code [next hop][sender][source][dest][id][flags][payload]} somewhere in a buffer, such as a
+ * received frame. The sender is the hop that advertised this copy, the source the node that sent
+ * the message in the first place. Wrapping a message doesn't copy or allocate anything, so a single
+ * view can be reused for every packet.
+ */
+public class MessageView {
+
+    static final int NEXT_HOP = 0;
+    static final int SENDER = 1;
+    static final int SOURCE = 2;
+    static final int DEST = 3;
+    static final int ID = 4;
+    static final int FLAGS = 5;
+
+    public static final int HEADER = 6;
+
+    private byte[] buffer;
+    private int offset;
+    private int length;
+
+    public MessageView wrap(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+
+    /**
+     * @return Whether the wrapped bytes are long enough to hold a message
+     */
+    public boolean isValid() {
+        return length >= HEADER;
+    }
+
+    public byte getNextHop() {
+        return buffer[offset + NEXT_HOP];
+    }
+
+    public void setNextHop(byte nextHop) {
+        buffer[offset + NEXT_HOP] = nextHop;
+    }
+
+    public byte getSender() {
+        return buffer[offset + SENDER];
+    }
+
+    public byte getSource() {
+        return buffer[offset + SOURCE];
+    }
+
+    public byte getDest() {
+        return buffer[offset + DEST];
+    }
+
+    public byte getId() {
+        return buffer[offset + ID];
+    }
+
+    public byte getFlags() {
+        return buffer[offset + FLAGS];
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getPayloadOffset() {
+        return offset + HEADER;
+    }
+
+    public int getPayloadLength() {
+        return length - HEADER;
+    }
+
+    /**
+     * Writes a message header at the start of the given buffer.
+     */
+    public static void writeHeader(byte[] buffer, byte nextHop, byte sender, byte source, byte dest,
+                                   byte id, byte flags) {
+        buffer[NEXT_HOP] = nextHop;
+        buffer[SENDER] = sender;
+        buffer[SOURCE] = source;
+        buffer[DEST] = dest;
+        buffer[ID] = id;
+        buffer[FLAGS] = flags;
+    }
+}
@@ -1,9 +1,37 @@
 package cps.wsan.network;
 
-import android.os.ParcelUuid;
+import java.util.UUID;
 
 public interface NetworkListener {
 
-    void onMessage(ParcelUuid uuid, byte[] data);
+    void onMessage(UUID uuid, byte[] data);
+
+    /**
+     * Called for every received packet, together with the signal strength it was received at.
+     * Listeners that don't care about the signal strength only implement the method above.
+     */
+    default void onMessage(UUID uuid, byte[] data, int rssi) {
+        onMessage(uuid, data);
+    }
+
+    /**
+     * Called for every received packet, which is found at the given offset and length of the
+     * buffer. The buffer is only valid during the call, and may hold other packets as well, so
+     * listeners that keep the packet need to copy it. The network calls this method, by default
+     * it copies the packet and passes it to the methods above.
+     */
+    default void onMessage(UUID uuid, byte[] buffer, int offset, int length, int rssi) {
+        byte[] data = new byte[length];
+        System.arraycopy(buffer, offset, data, 0, length);
+        onMessage(uuid, data, rssi);
+    }
+
+    /**
+     * Called on the thread of the clock right before a packet goes on the air, alone or in a
+     * frame. Listeners may fill in fields of their own packets that need to be as fresh as
+     * possible, such as timestamps, but must not change anything else.
+     */
+    default void onAdvertise(UUID uuid, byte[] packet) {
+    }
 
 }
@@ -0,0 +1,55 @@
+package cps.wsan.network;
+
+/**
+ * Recycles packet buffers, so that receiving, forwarding and advertising packets doesn't allocate
+ * a new array for every packet. The radio and frames need arrays of the exact packet length, so
+ * buffers are kept per length. Returning a buffer is optional, but a returned buffer must no
+ * longer be used by anyone.
+ */
+public class PacketPool {
+
+    // Longer packets are rare enough to simply allocate
+    private static final int MAX_LENGTH = 255;
+    // Enough for a full queue of forwarded messages plus those kept for retransmission, which
+    // are mostly of the same length and tend to come back in bursts
+    private static final int BUFFERS_PER_LENGTH = 64;
+
+    private final byte[][][] buffers;
+    private final int[] counts;
+
+    private long allocations;
+
+    public PacketPool() {
+        buffers = new byte[MAX_LENGTH + 1][][];
+        counts = new int[MAX_LENGTH + 1];
+    }
+
+    /**
+     * @return A buffer of exactly the given length, with undefined contents
+     */
+    public synchronized byte[] acquire(int length) {
+        if (length <= MAX_LENGTH && counts[length] > 0) {
+            byte[] buffer = buffers[length][--counts[length]];
+            buffers[length][counts[length]] = null;
+            return buffer;
+        }
+
+        allocations++;
+        return new byte[length];
+    }
+
+    public synchronized void release(byte[] buffer) {
+        int length = buffer.length;
+        if (length > MAX_LENGTH) return;
+
+        if (buffers[length] == null) buffers[length] = new byte[BUFFERS_PER_LENGTH][];
+        if (counts[length] < BUFFERS_PER_LENGTH) buffers[length][counts[length]++] = buffer;
+    }
+
+    /**
+     * @return The amount of buffers that had to be allocated because none was available
+     */
+    public synchronized long getAllocations() {
+        return allocations;
+    }
+}
@@ -1,49 +1,345 @@
 package cps.wsan.network;
 
-import android.os.ParcelUuid;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import cps.wsan.network.AdvertiseScheduler.Priority;
+
+/**
+ * Floods packets through the whole mesh. Every packet starts with the address of the node that
+ * started the flood, an id, and the address of the node that advertised this copy, and every node
+ * passes on each new id of each origin once, as told by the duplicate filter of
+ * {@link AdhocNetwork#accept(UUID, byte, byte)}. Copies that arrive out of order over different
+ * paths are still recognised, and an origin that restarts is heard again once the filter forgets
+ * it. In dense parts of the mesh most of those rebroadcasts reach nobody new, so the
+ * {@link Suppression} strategy decides which of them can be skipped:
+ * <ul>
+ *     <li>{@link Suppression#GOSSIP} rebroadcasts with a fixed probability.</li>
+ *     <li>{@link Suppression#COUNTER} waits a random assessment delay, and skips the rebroadcast
+ *     if enough other nodes passed the flood on in the meantime. A node is heard many times
+ *     while it advertises, so copies count once per node that sent them.</li>
+ *     <li>{@link Suppression#DISTANCE} also waits, and skips the rebroadcast if any copy came from
+ *     a node so close that ours would hardly cover any new ground. The default threshold is a
+ *     sender at some 40% of the range at the lowest transmit power.</li>
+ * </ul>
+ * Services built on top of floods register a {@link FloodListener}, which sees every new flood
+ * before it is passed on, and every flood of ours right before it goes on the air. Floods are
+ * advertised as {@link Priority#FLOOD}, unless a listener asks for a higher priority for them.
+ */
 public class PropagationService implements NetworkListener {
     private static final String TAG = PropagationService.class.getSimpleName();
 
-    public static final ParcelUuid UUID = ParcelUuid.fromString("911ff9ac-315d-4475-b848-536d802640d7");
+    public static final UUID UUID = java.util.UUID.fromString("911ff9ac-315d-4475-b848-536d802640d7");
+
+    public static final int HEADER = 3;
+    private static final int SENDER_OFFSET = 2;
+
+    private static final long FLOOD_TTL = AdhocNetwork.MESSAGE_TTL;
+    private static final int UNKNOWN_RSSI = Integer.MIN_VALUE;
+
+    private static final double DEFAULT_PROBABILITY = 0.65;
+    private static final int DEFAULT_COUNTER_THRESHOLD = 3;
+    private static final long DEFAULT_ASSESSMENT_DELAY = 2 * AdhocNetwork.ADVERTISE_PERIOD;
+    private static final int DEFAULT_RSSI_THRESHOLD = -85;
 
     private AdhocNetwork network;
+    private Random random;
+
+    private List<FloodListener> listeners;
 
-    private byte lastId;
+    // <origin and id, flood waiting for its assessment delay to pass>
+    private Map<Integer, Pending> pending;
 
-    public PropagationService(AdhocNetwork network) {
+    private Suppression suppression;
+    private double probability;
+    private int counterThreshold;
+    private long assessmentDelay;
+    private int rssiThreshold;
+
+    private final byte ip;
+    private byte nextId;
+
+    private long rebroadcasts;
+    private long suppressed;
+    private long duplicates;
+
+    public PropagationService(AdhocNetwork network, byte ip) {
         this.network = network;
+        this.ip = ip;
         network.addListener(this);
 
-        lastId = -1;
+        random = new Random();
+        pending = new HashMap<>();
+        listeners = new ArrayList<>();
+
+        suppression = Suppression.NONE;
+        probability = DEFAULT_PROBABILITY;
+        counterThreshold = DEFAULT_COUNTER_THRESHOLD;
+        assessmentDelay = DEFAULT_ASSESSMENT_DELAY;
+        rssiThreshold = DEFAULT_RSSI_THRESHOLD;
+
+        // Neighbours may still remember the ids of our floods from before a restart
+        nextId = (byte) random.nextInt();
     }
 
     @Override
-    public void onMessage(ParcelUuid uuid, byte[] data) {
+    public void onMessage(UUID uuid, byte[] data) {
+        onMessage(uuid, data, UNKNOWN_RSSI);
+    }
+
+    @Override
+    public void onMessage(UUID uuid, byte[] buffer, int offset, int length, int rssi) {
+        // Floods are kept for rebroadcasting, so only those need a copy of their own
+        if (uuid.equals(UUID)) NetworkListener.super.onMessage(uuid, buffer, offset, length, rssi);
+    }
+
+    @Override
+    public void onMessage(UUID uuid, byte[] data, int rssi) {
         if (!uuid.equals(UUID)) return;
 
-        // Test message id
-        if (data.length == 0) {
-            Log.w(TAG, "Received a message of length 0");
+        if (data.length < HEADER) {
+            Log.w(TAG, String.format("Received a message of length %s", data.length));
             return;
         }
 
-        byte id = data[0];
-        if (id <= lastId) {
-            if (id < -64 && lastId > 64) {
-                Log.i(TAG, "ID window wrapped");
-            } else return;
+        byte origin = data[0];
+        byte sender = data[SENDER_OFFSET];
+        int key = getKey(origin, data[1]);
+        if (origin == ip) {
+            onDuplicate(key, sender, rssi);
+            return;
         }
 
-        Log.v(TAG, "Propagating message with ID " + id);
+        if (!network.accept(UUID, origin, data[1])) {
+            onDuplicate(key, sender, rssi);
+            return;
+        }
 
-        network.advertise(UUID, data);
-        lastId = id;
+        // Listeners may keep the flood from being passed on, but all of them get to see it
+        boolean pass = true;
+        for (int i = 0; i < listeners.size(); i++) pass &= listeners.get(i).onFlood(data, rssi);
+        if (!pass) return;
+
+        switch (suppression) {
+            case GOSSIP:
+                if (random.nextDouble() < probability) rebroadcast(data);
+                else suppress(key);
+                break;
+            case COUNTER:
+            case DISTANCE:
+                assess(key, data, sender, rssi);
+                break;
+            default:
+                rebroadcast(data);
+        }
+    }
+
+    /**
+     * Holds on to a new flood for a random assessment delay, to see how many copies of it we hear.
+     */
+    private void assess(int key, byte[] data, byte sender, int rssi) {
+        Pending flood = new Pending();
+        flood.data = data;
+        flood.add(sender);
+        flood.maxRssi = rssi;
+        flood.timer = new TimerWheel.Timer(() -> decide(key, flood));
+
+        // A flood with the same id that is still pending is an old one that wrapped around
+        Pending old = pending.put(key, flood);
+        if (old != null) network.getTimers().cancel(old.timer);
+
+        long delay = (long) (random.nextDouble() * assessmentDelay);
+        network.getTimers().schedule(flood.timer, delay);
+    }
+
+    private void decide(int key, Pending flood) {
+        pending.remove(key);
+
+        boolean redundant = suppression == Suppression.COUNTER
+                ? flood.senders >= counterThreshold
+                : flood.maxRssi != UNKNOWN_RSSI && flood.maxRssi >= rssiThreshold;
+
+        if (redundant) suppress(key);
+        else rebroadcast(flood.data);
+    }
+
+    private void onDuplicate(int key, byte sender, int rssi) {
+        duplicates++;
+
+        Pending flood = pending.get(key);
+        if (flood == null) return;
+        flood.add(sender);
+        flood.maxRssi = Math.max(flood.maxRssi, rssi);
+    }
+
+    private void rebroadcast(byte[] data) {
+        Log.v(TAG, String.format("Propagating message %s of %s", data[1], data[0]));
+
+        rebroadcasts++;
+        data[SENDER_OFFSET] = ip;
+        advertise(data);
+    }
+
+    private void advertise(byte[] data) {
+        Priority priority = Priority.FLOOD;
+        for (int i = 0; i < listeners.size(); i++) {
+            Priority wanted = listeners.get(i).getPriority(data);
+            if (wanted.ordinal() < priority.ordinal()) priority = wanted;
+        }
+        network.advertise(UUID, data, priority, FLOOD_TTL);
+    }
+
+    private void suppress(int key) {
+        Log.v(TAG, String.format("Not propagating message %s of %s", (byte) key, (byte) (key >> 8)));
+        suppressed++;
+    }
+
+    @Override
+    public void onAdvertise(UUID uuid, byte[] packet) {
+        if (!uuid.equals(UUID)) return;
+        for (int i = 0; i < listeners.size(); i++) listeners.get(i).onAdvertise(packet);
+    }
+
+    private static int getKey(byte origin, byte id) {
+        return ((origin & 0xFF) << 8) | (id & 0xFF);
     }
 
     public byte getNewId() {
-        return ++lastId;
+        return nextId++;
+    }
+
+    /**
+     * Starts a new flood. The first {@link #HEADER} bytes of the data are overwritten with our
+     * address, a new id and our address again, and the data must not be changed afterwards.
+     */
+    public void flood(byte[] data) {
+        network.getClock().execute(() -> {
+            data[0] = ip;
+            data[1] = getNewId();
+            data[SENDER_OFFSET] = ip;
+            advertise(data);
+        });
+    }
+
+    public void addListener(FloodListener l) {
+        network.getClock().execute(() -> listeners.add(l));
+    }
+
+    public void removeListener(FloodListener l) {
+        network.getClock().execute(() -> listeners.remove(l));
+    }
+
+    public void setSuppression(Suppression suppression) {
+        this.suppression = suppression;
+    }
+
+    /**
+     * @param probability The probability of rebroadcasting a flood in {@link Suppression#GOSSIP}
+     */
+    public void setProbability(double probability) {
+        this.probability = probability;
+    }
+
+    /**
+     * @param counterThreshold The amount of nodes that passed a flood on after which
+     *                         {@link Suppression#COUNTER} skips a rebroadcast, including the one
+     *                         we heard it from first
+     */
+    public void setCounterThreshold(int counterThreshold) {
+        this.counterThreshold = counterThreshold;
+    }
+
+    /**
+     * @param assessmentDelay The maximum time to listen for copies before deciding on a rebroadcast
+     */
+    public void setAssessmentDelay(long assessmentDelay) {
+        this.assessmentDelay = assessmentDelay;
+    }
+
+    /**
+     * @param rssiThreshold The signal strength above which {@link Suppression#DISTANCE} considers a
+     *                      sender too close for a rebroadcast to be useful
+     */
+    public void setRssiThreshold(int rssiThreshold) {
+        this.rssiThreshold = rssiThreshold;
+    }
+
+    /**
+     * @return The amount of floods this node passed on
+     */
+    public long getRebroadcasts() {
+        return rebroadcasts;
+    }
+
+    /**
+     * @return The amount of redundant rebroadcasts that were avoided
+     */
+    public long getSuppressed() {
+        return suppressed;
     }
 
+    /**
+     * @return The amount of copies of floods that were heard again
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    public interface FloodListener {
+
+        /**
+         * Called for every new flood that reached us, before it is passed on. The data starts with
+         * the origin and id of the flood, and may be changed in place, but not in length.
+         * @return Whether to pass the flood on
+         */
+        boolean onFlood(byte[] data, int rssi);
+
+        /**
+         * Called right before a flood is advertised, whether it is our own or passed on.
+         */
+        default void onAdvertise(byte[] data) {
+        }
+
+        /**
+         * @return The traffic class in which to advertise the given flood, the highest one any
+         * listener asks for is used
+         */
+        default Priority getPriority(byte[] data) {
+            return Priority.FLOOD;
+        }
+
+    }
+
+    public enum Suppression {
+        NONE,
+        GOSSIP,
+        COUNTER,
+        DISTANCE
+    }
+
+    private static class Pending {
+
+        public byte[] data;
+        public int maxRssi;
+        public TimerWheel.Timer timer;
+
+        // The nodes we heard pass the flood on, one bit per address
+        public final long[] heard = new long[4];
+        public int senders;
+
+        public void add(byte sender) {
+            int i = sender & 0xFF;
+            long bit = 1L << (i & 63);
+            if ((heard[i >> 6] & bit) != 0) return;
+            heard[i >> 6] |= bit;
+            senders++;
+        }
+
+    }
 }
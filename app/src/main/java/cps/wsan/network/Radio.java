@@ -0,0 +1,74 @@
+package cps.wsan.network;
+
+import java.util.UUID;
+
+/**
+ * The part of a BLE controller that the network stack needs: one or more advertisers that each
+ * broadcast one service data element at a time, and a scanner that reports all service data it
+ * hears.
+ */
+public interface Radio {
+
+    /**
+     * The advertising data limit of legacy advertisements.
+     */
+    int LEGACY_ADVERTISING_DATA_LENGTH = 31;
+
+    /**
+     * The advertising data that fits in a single extended advertising PDU, longer data would be
+     * split over a chain of PDUs, which many scanners don't follow.
+     */
+    int EXTENDED_ADVERTISING_DATA_LENGTH = 251;
+
+    /**
+     * @return The maximum amount of advertising data bytes of a single advertisement
+     */
+    int getMaxAdvertisingDataLength();
+
+    /**
+     * @return The amount of advertisers that can advertise at the same time, which may go down once
+     * the controller turns out to support fewer
+     */
+    default int getMaxAdvertisers() {
+        return 1;
+    }
+
+    /**
+     * Starts advertising the given service data with the first advertiser.
+     */
+    default void startAdvertising(UUID uuid, byte[] data) {
+        startAdvertising(0, uuid, data);
+    }
+
+    /**
+     * Starts advertising the given service data, replacing whatever the given advertiser advertised
+     * before.
+     * @param advertiser    The advertiser, below {@link #getMaxAdvertisers()}
+     */
+    void startAdvertising(int advertiser, UUID uuid, byte[] data);
+
+    default void stopAdvertising() {
+        stopAdvertising(0);
+    }
+
+    void stopAdvertising(int advertiser);
+
+    /**
+     * @return The amount of advertisements the controller refused to start
+     */
+    long getAdvertiseFailures();
+
+    /**
+     * Starts scanning, every received service data element is passed to the receiver. A scan that
+     * runs already is restarted.
+     */
+    void startScan(Receiver receiver);
+
+    void stopScan();
+
+    interface Receiver {
+
+        void onReceive(UUID uuid, byte[] data, int rssi);
+
+    }
+}
@@ -1,38 +1,164 @@
 package cps.wsan.network;
 
-import android.os.Handler;
-import android.os.ParcelUuid;
 import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.Random;
 import java.util.UUID;
 
+import cps.wsan.network.AdvertiseScheduler.Priority;
+
+/**
+ * Distance vector routing with destination sequence numbers (DSDV). Every routing packet starts
+ * with a header of the form {@code [sender][type][packet number][sender sequence number]},
+ * followed by entries of the form {@code [dest][cost][next hop][dest sequence number]}.
+ * <p>
+ * Only a destination itself issues even sequence numbers for its route. A node that loses a route
+ * advertises it with an infinite cost and the next, odd, sequence number, and a route is only ever
+ * replaced by one with a newer sequence number, or the same sequence number and a lower cost. This
+ * means a broken route can't be revived by a stale copy of itself looping through the mesh. Such a
+ * retraction only affects the nodes that route through its sender, the others keep their routes.
+ * <p>
+ * To get its route back, the node that lost it asks its neighbours for a newer sequence number.
+ * Nodes that know a fresh enough route answer the request, the others pass it on to their next hop
+ * towards the destination, which answers it by issuing a new even sequence number. The answer is
+ * advertised back along the nodes that passed the request on, the rest of the mesh learns the new
+ * sequence number from the next full update.
+ * <p>
+ * The cost of a route is the sum of the ETX of its links, in quarters of a transmission, so lossy
+ * long links are avoided in favour of a few more hops over good ones. Routes only switch to a
+ * neighbour that is clearly better, and small cost changes wait for the next full update, since
+ * link estimates never sit still.
+ * <p>
+ * A full update contains the whole routing table, a delta only the routes that changed since the
+ * previous update. Deltas are sent shortly after a route changes, and as an empty hello every
+ * beacon interval, whereas the full table is only sent every {@link #FULL_UPDATE_PERIOD} or when
+ * a new neighbour requests it.
+ * <p>
+ * The beacon interval follows the Trickle algorithm: it doubles every interval up to
+ * {@link #MAX_DOUBLINGS} times while the mesh is consistent, and drops back to the shortest one
+ * as soon as a neighbour or route appears or disappears. Beacons are sent at a random moment in
+ * the second half of their interval, and optionally skipped when enough consistent beacons of
+ * others were heard. As neighbours beacon at different rates, a neighbour is only considered gone
+ * after a few of its own intervals have passed without hearing anything from it, whether routing
+ * packets or other traffic that tells us it is still there.
+ * <p>
+ * Routing packets get priority over messages, and in a large mesh the tables take many packets,
+ * so routing would take all the airtime of a node. Routing packets therefore wait while
+ * {@link #MAX_QUEUED} of them are queued already, and while messages or floods are waiting every
+ * routing packet costs {@link #PACKET_COST} of a budget, which leaves about every other
+ * advertisement to them. Triggered updates, full updates and sequence requests that have to wait
+ * go out once there is room, a full update one packet at a time so that changes can go in between.
+ * Beacons that have to wait only say that the node is alive.
+ * <p>
+ * Any node can be a sink. Sinks are marked in the routing packets, so every node knows which of
+ * its destinations are sinks, and messages sent to {@link #SINKS} go to the nearest one that can
+ * be reached. Every hop picks the nearest sink again, so the mesh splits up into the areas around
+ * each sink, and messages move over to another sink as soon as the routes to theirs are lost.
+ * A node that becomes or stops being a sink announces a new sequence number, so the change
+ * spreads like any other route update.
+ */
 public class RoutingService implements NetworkListener {
     private static final String TAG = RoutingService.class.getSimpleName();
 
-    private static final ParcelUuid UUID = ParcelUuid.fromString("e41cc060-9bbe-45cb-a7e1-8e8557652687");
-
-    private static final long BROADCAST_FREQUENCY = 3000; // 5.0 s
-    private static final long TIMEOUT = 7 * 1000; // 12.0 s
+    static final UUID UUID = java.util.UUID.fromString("e41cc060-9bbe-45cb-a7e1-8e8557652687");
+
+    /**
+     * The anycast address of the sinks, messages sent to it are delivered to the nearest sink.
+     * No node may take this address, nor -1, which stands for no node, so that leaves 254
+     * addresses for nodes.
+     */
+    public static final byte SINKS = (byte) 0x80;
+
+    private static final long BROADCAST_FREQUENCY = 3000; // 3.0 s
+    private static final long TIMEOUT = 18 * 1000; // 18.0 s
+    private static final int MAX_DOUBLINGS = 3; // 24.0 s
+    private static final int TIMEOUT_INTERVALS = 4;
+    private static final int NO_SUPPRESSION = Integer.MAX_VALUE;
+    private static final long FULL_UPDATE_PERIOD = 30 * 1000;
+    private static final long MIN_FULL_UPDATE_PERIOD = 10 * 1000;
+    private static final long TRIGGER_DELAY = 1000;
     private static final byte INFINITY = 127;
 
-    private final Set<RoutingListener> listeners;
+    // Routing packets wait while a few are queued already, so that they don't go stale there.
+    // While messages are waiting as well, routing takes about every other advertisement, or a few
+    // at once after a quiet spell
+    private static final int MAX_QUEUED = 2;
+    private static final long PACKET_COST = 2 * AdhocNetwork.ADVERTISE_PERIOD;
+    private static final int MAX_BURST = 4;
+    private static final long FULL_PACKET_PERIOD = AdhocNetwork.ADVERTISE_PERIOD;
+
+    // Link costs are expressed in quarters of an expected transmission
+    private static final int PERFECT_LINK = 4;
+    private static final int MAX_LINK_COST = 40;
+    private static final double DELIVERY_WEIGHT = 0.3;
+    private static final double INITIAL_DELIVERY_RATIO = 0.75;
+    private static final int DELIVERY_WINDOW = 8;
+    private static final double RSSI_WEIGHT = 0.2;
+    private static final int RSSI_GOOD = -80;
+    private static final int RSSI_STEP = 3;
+    private static final int MAX_MISSED = 16;
+    private static final int SWITCH_THRESHOLD = 2 * PERFECT_LINK;
+
+    private static final byte TYPE_FULL = 0;
+    private static final byte TYPE_DELTA = 1;
+    private static final byte TYPE_REQUEST = 2;
+    private static final byte TYPE_SEQUENCE_REQUEST = 3;
+
+    private static final int HEADER = RoutingView.HEADER;
+    private static final int ENTRY = RoutingView.ENTRY;
+
+    private final List<RoutingListener> listeners;
 
     private final AdhocNetwork network;
-
-    // <ip, last update>
-    private final Map<Byte, Long> neighbours;
+    private final PacketPool pool;
+    private final TimerWheel timers;
+    private final RoutingView view;
+    private final Random random;
+    private final TimerWheel.Timer beaconTimer;
+    private final TimerWheel.Timer intervalTimer;
+    private final TimerWheel.Timer fullTimer;
+    private final TimerWheel.Timer requestTimer;
+    private final Runnable triggerTask;
+
+    // <ip, neighbour>
+    private final ByteMap<Link> neighbours;
+
+    // <ip, last time we requested its table>
+    private final long[] requests;
 
     // <dest, path>
-    private final Map<Byte, Path> routes;
+    private final ByteMap<Path> routes;
+
+    // <dest, path> of the routes that changed since the last update
+    private final ByteMap<Path> changed;
+
+    // <dest, path> of the sequence requests that wait for room in the queue
+    private final ByteMap<Path> requesting;
+
+    // Always empty, for beacons that only tell that we are alive
+    private final ByteMap<Path> none;
 
     private final byte ip;
-    private long lastUpdate;
+    private final Path self;
+    private long lastFullUpdate;
+
+    // The time until which the routing packets sent so far use up the budget
+    private long budget;
+
+    // The index in the routes of the next path of the full update that is going out, or -1
+    private int fullIndex;
+    private byte sequence;
+    private long interval;
+    private int consistent;
+    private int redundancy;
+    private long changes;
+    private boolean incremental;
+    private boolean fullRequested;
+    private boolean triggered;
     private boolean running;
 
     public RoutingService(AdhocNetwork network, byte ip) {
@@ -41,203 +167,664 @@ public class RoutingService implements NetworkListener {
 
         this.ip = ip;
 
-        listeners = new HashSet<>();
-        neighbours = new HashMap<>();
-        routes = new HashMap<>();
-
-        Path self = new Path();
+        listeners = new ArrayList<>();
+        neighbours = new ByteMap<>();
+        requests = new long[256];
+        routes = new ByteMap<>();
+        changed = new ByteMap<>();
+        requesting = new ByteMap<>();
+        none = new ByteMap<>();
+
+        pool = network.getPacketPool();
+        timers = network.getTimers();
+        view = new RoutingView();
+        random = new Random();
+        beaconTimer = new TimerWheel.Timer(this::beacon);
+        intervalTimer = new TimerWheel.Timer(this::onIntervalEnd);
+        fullTimer = new TimerWheel.Timer(this::continueFull);
+        requestTimer = new TimerWheel.Timer(this::sendRequests);
+        triggerTask = this::onTrigger;
+
+        for (int i = 0; i < requests.length; i++) requests[i] = Long.MIN_VALUE / 2;
+
+        self = new Path();
         self.dest = ip;
         self.cost = 0;
         self.lastUpdate = Long.MAX_VALUE - 2 * TIMEOUT;
         self.nextHop = ip;
+        self.sequence = 0;
         routes.put(ip, self);
 
-        lastUpdate = 0;
+        lastFullUpdate = Long.MIN_VALUE / 2;
+        budget = Long.MIN_VALUE / 2;
+        fullIndex = -1;
+        sequence = 0;
+        interval = BROADCAST_FREQUENCY;
+        redundancy = NO_SUPPRESSION;
+        incremental = true;
         running = false;
     }
 
-    private void update() {
-        long now = System.currentTimeMillis();
+    private void startInterval() {
+        consistent = 0;
+
+        long delay = interval / 2 + (long) (random.nextDouble() * (interval / 2));
+        timers.schedule(beaconTimer, delay);
+        timers.schedule(intervalTimer, interval);
+    }
 
-        // Handle routing timeouts
-        if (now > lastUpdate + TIMEOUT) {
-            lastUpdate = now;
+    private void onIntervalEnd() {
+        interval = Math.min(interval * 2, BROADCAST_FREQUENCY << MAX_DOUBLINGS);
+        startInterval();
+    }
 
-            // Remove all invalid neighbours
-            Set<Byte> toRemove = new HashSet<>();
-            for (byte neighbour : neighbours.keySet()) {
-                if (neighbours.get(neighbour) + TIMEOUT > now) continue;
+    /**
+     * Goes back to beaconing quickly, as the topology changed: a neighbour or route appeared or
+     * disappeared. Routes that merely changed cost or next hop are left to the triggered deltas.
+     */
+    private void resetInterval() {
+        if (!running || interval == BROADCAST_FREQUENCY) return;
 
-                // Remove all neighbours from which we haven't heard for a while
-                toRemove.add(neighbour);
-                Log.w(TAG, String.format("Disconnected from %s", neighbour));
-            }
+        interval = BROADCAST_FREQUENCY;
+        startInterval();
+    }
 
-            toRemove.forEach((ip) -> neighbours.remove(ip));
-            toRemove.clear();
+    private void beacon() {
+        long now = network.getClock().now();
+
+        // Enough neighbours told the others the same as we would
+        if (consistent >= redundancy) return;
+
+        // Broadcast our routing table, or the part of it that changed. If routing has to wait, an
+        // empty delta still tells our neighbours that we are alive
+        boolean full = !incremental || fullRequested || now >= lastFullUpdate + FULL_UPDATE_PERIOD;
+        long wait = getWait(now);
+        if (wait == 0 && full && fullIndex == -1) {
+            broadcastFull(now);
+        } else if (wait == 0 && incremental) {
+            // An empty delta still tells our neighbours that we are alive
+            broadcastDelta(now);
+        } else {
+            broadcast(TYPE_DELTA, none, 0, now, BROADCAST_FREQUENCY);
+        }
+    }
 
-            for (byte dest : routes.keySet()) {
-                Path path = routes.get(dest);
-                if (path.lastUpdate + TIMEOUT > now || path.cost == INFINITY) continue;
+    /**
+     * Removes a neighbour from which we haven't heard for a while. Hearing from a neighbour only
+     * moves its deadline, the timer catches up with it when it expires.
+     */
+    private void expire(Link link) {
+        long now = network.getClock().now();
+        long deadline = link.lastHeard + link.getTimeout();
+        if (deadline > now) {
+            timers.schedule(link.timeout, deadline - now);
+            return;
+        }
 
-                // Remove all routes that haven't been updated for a while
-                path.cost = INFINITY;
-                path.lastUpdate = now + 3 * BROADCAST_FREQUENCY;
-                path.nextHop = -1;
+        neighbours.remove(link.address);
+        requests[link.address & 0xFF] = Long.MIN_VALUE / 2;
+        Log.w(TAG, String.format("Disconnected from %s", link.address));
+    }
 
-                Log.w(TAG, String.format("Lost the path to %s", dest));
-                listeners.forEach((l) -> l.onPathDeleted(dest, path.cost, path.nextHop));
-            }
+    /**
+     * Removes a route that hasn't been updated for a while. Any packet of the next hop tells us
+     * that the route is still alive, so that counts as an update as well.
+     */
+    private void expire(Path path) {
+        if (path.cost == INFINITY) return;
+
+        long now = network.getClock().now();
+        Link hop = neighbours.get(path.nextHop);
+        long deadline = hop == null ? path.lastUpdate + TIMEOUT
+                : Math.max(path.lastUpdate, hop.lastHeard) + hop.getTimeout();
+        if (deadline > now) {
+            timers.schedule(path.timeout, deadline - now);
+            return;
         }
 
-        // Then broadcast our updated routing table
-        byte[] data = new byte[routes.size() * 3];
-        data[0] = ip;
-        data[1] = routes.get(ip).cost;
-        data[2] = ip;
+        invalidate(path, now);
+        changed.put(path.dest, path);
+        trigger();
+        resetInterval();
+        requestSequence(path, (byte) (path.sequence + 1), (byte) -1);
 
-        int index = 3;
-        for (Path path : routes.values()) {
-            if (path.dest == ip) continue;
+        Log.w(TAG, String.format("Lost the path to %s", path.dest));
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).onPathDeleted(path.dest, path.cost, path.nextHop);
+        }
+    }
 
-            // Don't broadcast routes that have expired already
-            if (path.lastUpdate < now && path.cost == INFINITY) continue;
+    /**
+     * Sends the changed routes soon, so that a burst of changes ends up in a single update.
+     */
+    private void trigger() {
+        changes++;
+        if (triggered || !running || !incremental) return;
+        triggered = true;
 
-            data[index] = path.dest;
-            data[index + 1] = path.cost;
-            data[index + 2] = path.nextHop;
+        network.getClock().postDelayed(triggerTask, TRIGGER_DELAY);
+    }
 
-            index += 3;
+    private void onTrigger() {
+        long now = network.getClock().now();
+        long wait = getWait(now);
+        if (wait > 0) {
+            network.getClock().postDelayed(triggerTask, wait);
+            return;
         }
+        triggered = false;
 
-        // Compress (remove ill entries)
-        byte[] packet = new byte[index];
-        System.arraycopy(data, 0, packet, 0, packet.length);
+        if (fullRequested && fullIndex == -1 && now >= lastFullUpdate + MIN_FULL_UPDATE_PERIOD) {
+            broadcastFull(now);
+        } else if (!changed.isEmpty()) {
+            broadcastDelta(now);
+        }
+    }
 
-        // Split up into multiple packets (if needed)
-        List<byte[]> packets = new LinkedList<>();
-        if (packet.length <= 12) packets.add(packet);
-        else {
-            int amount = packet.length / 3 - 1;
-            for (int i = 0; i < amount; i += 3) {
-                data = new byte[i + 3 < amount ? 12 : (amount - i + 1) * 3];
+    private void broadcastFull(long now) {
+        changed.clear();
+        fullRequested = false;
+        lastFullUpdate = now;
+        fullIndex = 0;
+        continueFull();
+    }
 
-                // Copy routing header
-                System.arraycopy(packet, 0, data, 0, 3);
+    /**
+     * Advertises the next packet of the full update. Paths that appear or disappear in the
+     * meantime may be skipped or sent twice, which the deltas and the next full update make up
+     * for.
+     */
+    private void continueFull() {
+        long now = network.getClock().now();
+        long wait = getWait(now);
+        if (wait > 0) {
+            timers.schedule(fullTimer, wait);
+            return;
+        }
 
-                // Copy payload
-                System.arraycopy(packet, (i + 1) * 3, data, 3, data.length - 3);
-            }
+        // The full table is only refreshed rarely, so it stays useful for a while
+        fullIndex = broadcast(TYPE_FULL, routes, fullIndex, now, FULL_UPDATE_PERIOD);
+        spend(1, now);
+
+        if (fullIndex < routes.size()) timers.schedule(fullTimer, FULL_PACKET_PERIOD);
+        else fullIndex = -1;
+    }
+
+    /**
+     * Advertises the changed paths, or as many of them as there is room for in the queue. The
+     * rest stays for the next delta.
+     */
+    private void broadcastDelta(long now) {
+        int queued = network.getScheduler().getDepth(Priority.CONTROL);
+        int index = 0;
+        int packets = 0;
+        do {
+            index = broadcast(TYPE_DELTA, changed, index, now, BROADCAST_FREQUENCY);
+            packets++;
+        } while (index < changed.size() && packets < MAX_QUEUED - queued);
+        spend(packets, now);
+
+        if (index == changed.size()) changed.clear();
+        else for (int i = index - 1; i >= 0; i--) changed.remove(changed.keyAt(i));
+        if (!changed.isEmpty()) trigger();
+    }
+
+    /**
+     * @return How long routing packets have to wait before they are sent, or 0 if they may be
+     * sent right away
+     */
+    private long getWait(long now) {
+        AdvertiseScheduler scheduler = network.getScheduler();
+        if (scheduler.getDepth(Priority.CONTROL) >= MAX_QUEUED) return AdhocNetwork.ADVERTISE_PERIOD;
+        boolean waiting = scheduler.getDepth(Priority.DATA) > 0 || scheduler.getDepth(Priority.FLOOD) > 0;
+        if (budget > now && waiting) return budget - now;
+        return 0;
+    }
+
+    private void spend(int packets, long now) {
+        budget = Math.max(budget, now - MAX_BURST * PACKET_COST) + packets * PACKET_COST;
+        budget = Math.min(budget, now + MAX_BURST * PACKET_COST);
+    }
+
+    /**
+     * Advertises as many of the given paths as fit in a single packet, starting at the given index.
+     * @return The index of the first path that is left for the next packet
+     */
+    private int broadcast(byte type, ByteMap<Path> paths, int index, long now, long ttl) {
+        int perPacket = Math.max(1, (network.getMaxPacketLength(UUID) - HEADER) / ENTRY);
+
+        int amount = 0;
+        int end = index;
+        for (; end < paths.size() && amount < perPacket; end++) {
+            if (isAdvertised(paths.valueAt(end), type, now)) amount++;
+        }
+        while (end < paths.size() && !isAdvertised(paths.valueAt(end), type, now)) end++;
+
+        byte[] packet = pool.acquire(HEADER + amount * ENTRY);
+        RoutingView.writeHeader(packet, ip, self.sink, type, sequence++, self.sequence);
+
+        // Copy entries
+        for (int entry = 0; index < end; index++) {
+            Path path = paths.valueAt(index);
+            if (!isAdvertised(path, type, now)) continue;
+            RoutingView.writeEntry(packet, entry++, path.dest, path.sink, path.cost, path.nextHop,
+                    path.sequence);
         }
 
-        // Send
-        packets.forEach((p) -> network.advertise(UUID, p));
+        network.advertise(UUID, packet, Priority.CONTROL, ttl, true);
+        return end;
+    }
+
+    private boolean isAdvertised(Path path, byte type, long now) {
+        if (path.dest == ip) return false;
+
+        // Don't broadcast routes that have expired already
+        return type != TYPE_FULL || path.lastUpdate >= now || path.cost != INFINITY;
+    }
 
-        // And requeue
-        if (running) new Handler().postDelayed(this::update, BROADCAST_FREQUENCY);
+    @Override
+    public void onMessage(UUID uuid, byte[] data) {
+        onMessage(uuid, data, 0, data.length, RSSI_GOOD);
     }
 
     @Override
-    public void onMessage(ParcelUuid uuid, byte[] data) {
+    public void onMessage(UUID uuid, byte[] buffer, int offset, int length, int rssi) {
         if (!uuid.equals(UUID)) return;
+        if (!view.wrap(buffer, offset, length).isValid()) {
+            Log.w(TAG, String.format("Received a routing packet of length %s", length));
+            return;
+        }
+
+        long now = network.getClock().now();
+        byte neighbour = view.getSender();
+        byte type = view.getType();
+        byte seq = view.getSequence();
+        if (neighbour == ip) return;
+
+        Link link = neighbours.get(neighbour);
+        if (link == null) {
+            link = new Link(neighbour, rssi);
+            Link created = link;
+            link.timeout = new TimerWheel.Timer(() -> expire(created));
+            timers.schedule(link.timeout, TIMEOUT);
+            neighbours.put(neighbour, link);
+            resetInterval();
+        }
+        link.lastHeard = now;
+        link.onReceived(rssi);
+
+        // The neighbour itself can always be reached directly
+        process(neighbour, neighbour, view.isSenderSink(), (byte) 0, neighbour, view.getSenderSequence(),
+                now);
 
-        long now = System.currentTimeMillis();
-        byte neighbour = data[0];
-        neighbours.put(neighbour, now);
+        if (type == TYPE_SEQUENCE_REQUEST) {
+            if (length > HEADER + 1) onSequenceRequest(neighbour, seq, view.get(HEADER), view.get(HEADER + 1));
+            return;
+        }
+
+        if (type == TYPE_REQUEST) {
+            if (seq == ip) {
+                fullRequested = true;
+                trigger();
+                resetInterval();
+            } else {
+                // The answer will reach us as well, so don't request the same table ourselves
+                requests[seq & 0xFF] = now;
+            }
+            return;
+        }
+
+        // Every advertisement is heard several times, only handle it once
+        boolean first = !link.numbered;
+        if (!first && link.sequence == seq) return;
+
+        // Routing packets are numbered, so the gaps tell us how many of them we missed, and how
+        // often the neighbour beacons
+        if (!first) link.onDelivered((byte) (seq - link.sequence) - 1, now);
+        link.sequence = seq;
+        link.numbered = true;
+        link.lastNumbered = now;
+
+        // Request the full table of new neighbours, gaps are repaired by the next full update
+        boolean missed = first && type != TYPE_FULL;
+        if (missed && incremental && now >= requests[neighbour & 0xFF] + FULL_UPDATE_PERIOD) {
+            requests[neighbour & 0xFF] = now;
+            Log.i(TAG, String.format("Missed routing packets of %s, requesting its table", neighbour));
+
+            byte[] request = pool.acquire(HEADER);
+            RoutingView.writeHeader(request, ip, self.sink, TYPE_REQUEST, neighbour, self.sequence);
+            network.advertise(UUID, request, Priority.CONTROL, BROADCAST_FREQUENCY, true);
+            spend(1, now);
+        }
 
         // Loop through all entries in the received packet
-        for (int i = 0; i < data.length; i += 3) {
-            byte dest = data[i];
-            byte cost = (byte) (data[i + 1] + 1);
-            byte nextHop = data[i + 2];
-
-            // Don't acknowledge any paths that route through me
-            if (nextHop == ip) continue;
-
-            // Cap the cost at INFINITY
-            if (cost > INFINITY || cost < -16) cost = INFINITY;
-            byte finalCost = cost;
-
-            Path path = routes.get(dest);
-            if (path == null) {
-                // Create a new path if one did not exist already
-                path = new Path();
-                path.dest = dest;
-                path.cost = cost;
-                path.nextHop = neighbour;
-                path.lastUpdate = now;
-
-                routes.put(dest, path);
-
-                if (cost != INFINITY) {
-                    Log.i(TAG, String.format(
-                            "Found new destination: %s via %s at cost %s",
-                            dest, neighbour, cost));
-                    listeners.forEach((l) -> l.onPathAdded(dest, finalCost, neighbour));
-                }
-            } else if (now >= path.lastUpdate) {
-                if (path.nextHop == neighbour && cost >= INFINITY) {
-                    // Remove a path and make sure it won't reset for a while
-                    path.cost = INFINITY;
-                    path.lastUpdate = now + 3 * BROADCAST_FREQUENCY;
-                    path.nextHop = -1;
-
-                    Log.w(TAG, String.format("Lost the path to %s", dest));
-                    listeners.forEach((l) -> l.onPathDeleted(dest, finalCost, neighbour));
-                } else if (path.nextHop == neighbour) {
-                    // Always accept the path from the neighbour that has the current shortest path
-                    path.cost = cost;
-                    path.lastUpdate = now;
-                } else if (cost < path.cost) {
-                    // Accept a new path if it is shorter
-                    byte oldCost = path.cost;
-                    path.cost = cost;
-                    path.nextHop = neighbour;
-                    path.lastUpdate = now;
-
-                    if (oldCost == INFINITY) {
-                        Log.i(TAG, String.format(
-                                "Reconnected to %s via %s at a cost of %s",
-                                dest, neighbour, cost));
-                        listeners.forEach((l) -> l.onPathAdded(dest, finalCost, neighbour));
-                    } else {
-                        Log.v(TAG, String.format(
-                                "Found a shorter path to %s via %s at a cost of %s",
-                                dest, neighbour, cost));
-                        listeners.forEach((l) -> l.onPathUpdated(dest, finalCost, neighbour));
-                    }
-
-                }
+        long before = changes;
+        for (int i = 0; i < view.getEntryCount(); i++) {
+            process(neighbour, view.getDest(i), view.isSink(i), view.getCost(i), view.getNextHop(i),
+                    view.getDestSequence(i), now);
+        }
+
+        // A packet that told us nothing new makes our own beacon less needed
+        if (changes == before) consistent++;
+    }
+
+    /**
+     * Tells that a neighbour is still there, because we heard some other traffic of it.
+     */
+    void onHeard(byte neighbour) {
+        Link link = neighbours.get(neighbour);
+        if (link != null) link.lastHeard = network.getClock().now();
+    }
+
+    private void process(byte neighbour, byte dest, boolean sink, byte advertisedCost, byte nextHop,
+                         byte seq, long now) {
+        if (dest == ip) {
+            // Somebody lost its path to us, or we restarted and the mesh still knows an older
+            // sequence number of ours; either way we need a newer one
+            if (newer(seq, self.sequence) || (seq == self.sequence && (seq & 1) == 1)) {
+                self.sequence = (byte) ((seq | 1) + 1);
+                changed.put(ip, self);
+                trigger();
+
+                Log.i(TAG, String.format("Announcing sequence number %s", self.sequence));
+            }
+            return;
+        }
+
+        // Don't acknowledge any paths that route through me
+        if (nextHop == ip) return;
+
+        // Cap the cost at INFINITY
+        int total = advertisedCost + getLinkCost(neighbour);
+        byte cost = total >= INFINITY ? INFINITY : (byte) total;
+
+        Path path = routes.get(dest);
+        if (path == null) {
+            // Create a new path if one did not exist already
+            path = new Path();
+            path.dest = dest;
+            path.cost = INFINITY;
+            path.nextHop = -1;
+            path.sequence = (byte) (seq - 1);
+            Path created = path;
+            path.timeout = new TimerWheel.Timer(() -> expire(created));
+            routes.put(dest, path);
+        }
+
+        // Only accept fresher routes, or equally fresh routes that are shorter. The neighbour we
+        // route through may always update its route, even if it got longer
+        int age = (byte) (seq - path.sequence);
+        if (age < 0) return;
+        if (age == 0 && path.nextHop != neighbour && cost > path.cost - SWITCH_THRESHOLD) return;
+
+        // A retraction only matters if it comes from the neighbour we route through
+        if (cost == INFINITY && path.nextHop != neighbour) return;
+
+        byte oldCost = path.cost;
+        byte oldNextHop = path.nextHop;
+        byte oldSequence = path.sequence;
+        boolean oldSink = path.sink;
+
+        // Only the destination itself changes whether it is a sink, along with its sequence number
+        path.sequence = seq;
+        path.sink = sink;
+        if (cost == INFINITY) {
+            invalidate(path, now);
+            requestSequence(path, (byte) (path.sequence + 1), (byte) -1);
+        } else {
+            path.cost = cost;
+            path.nextHop = neighbour;
+            path.lastUpdate = now;
+            if (!path.timeout.isScheduled()) timers.schedule(path.timeout, TIMEOUT);
+        }
+
+        if (path.nextHop == oldNextHop && (path.cost == INFINITY) == (oldCost == INFINITY)
+                && path.sink == oldSink && Math.abs(path.cost - oldCost) * 2 <= oldCost) {
+            // Costs follow the link estimates, so small changes are left to the next full update
+            // rather than flooding the mesh. The same goes for a newer sequence number, unless
+            // somebody asked for it
+            if (path.sequence == oldSequence || !path.requested || newer(path.wanted, seq)) return;
+            path.requested = false;
+        }
+        changed.put(dest, path);
+        trigger();
+        if ((oldCost == INFINITY) != (cost == INFINITY) || path.sink != oldSink) resetInterval();
+
+        if (oldCost == INFINITY && cost != INFINITY) {
+            Log.i(TAG, String.format(
+                    "Found destination %s via %s at cost %s",
+                    dest, neighbour, cost));
+            for (int i = 0; i < listeners.size(); i++) listeners.get(i).onPathAdded(dest, cost, neighbour);
+        } else if (oldCost != INFINITY && cost == INFINITY) {
+            Log.w(TAG, String.format("Lost the path to %s", dest));
+            for (int i = 0; i < listeners.size(); i++) listeners.get(i).onPathDeleted(dest, cost, neighbour);
+        } else if (cost != INFINITY && (cost != oldCost || neighbour != oldNextHop)) {
+            Log.v(TAG, String.format(
+                    "Found a new path to %s via %s at a cost of %s",
+                    dest, neighbour, cost));
+            for (int i = 0; i < listeners.size(); i++) listeners.get(i).onPathUpdated(dest, cost, neighbour);
+        }
+    }
+
+    /**
+     * Asks the destination for a sequence number that is at least the given one.
+     */
+    private void requestSequence(Path path, byte wanted, byte forwarder) {
+        if (path.requested && !newer(wanted, path.wanted)) return;
+        path.requested = true;
+        path.wanted = wanted;
+        path.forwarder = forwarder;
+
+        requesting.put(path.dest, path);
+        sendRequests();
+    }
+
+    /**
+     * Sends the sequence requests that are waiting, as far as the queue allows. Losing a
+     * neighbour loses all routes through it at once, and the requests for those would otherwise
+     * crowd out everything else.
+     */
+    private void sendRequests() {
+        long now = network.getClock().now();
+        for (int i = requesting.size() - 1; i >= 0 && getWait(now) == 0; i--) {
+            Path path = requesting.valueAt(i);
+            requesting.remove(path.dest);
+
+            // The sequence number may have come in while the request was waiting
+            if (!path.requested) continue;
+
+            byte[] request = pool.acquire(HEADER + 2);
+            RoutingView.writeHeader(request, ip, self.sink, TYPE_SEQUENCE_REQUEST, path.dest, self.sequence);
+            request[HEADER] = path.wanted;
+            request[HEADER + 1] = path.forwarder;
+            network.advertise(UUID, request, Priority.CONTROL, BROADCAST_FREQUENCY, true);
+            spend(1, now);
+        }
+
+        if (!requesting.isEmpty() && !requestTimer.isScheduled()) {
+            timers.schedule(requestTimer, getWait(now));
+        }
+    }
+
+    private void onSequenceRequest(byte neighbour, byte dest, byte wanted, byte forwarder) {
+        if (dest == ip) {
+            if (newer(wanted, self.sequence)) {
+                self.sequence = (byte) ((wanted + 1) & ~1);
+                changed.put(ip, self);
+                trigger();
+
+                Log.i(TAG, String.format("Announcing sequence number %s", self.sequence));
             }
+            return;
+        }
+
+        // Requests travel along the route towards the destination instead of flooding the mesh
+        if (forwarder != -1 && forwarder != ip) return;
+
+        Path path = routes.get(dest);
+        if (path == null || path.cost == INFINITY || path.nextHop == neighbour) return;
+
+        // Every request is heard several times, and by several nodes, only handle it once
+        if (path.requested && !newer(wanted, path.wanted)) return;
+
+        if (!newer(wanted, path.sequence)) {
+            // Our route is fresh enough, so advertise it
+            path.requested = true;
+            path.wanted = wanted;
+            changed.put(dest, path);
+            trigger();
+        } else {
+            // Otherwise pass the request on towards the destination, and advertise the answer
+            // once it comes back
+            requestSequence(path, wanted, path.nextHop);
         }
     }
 
-    public synchronized void start() {
-        running = true;
-        new Handler().postDelayed(this::update, BROADCAST_FREQUENCY);
+    /**
+     * Marks a path as lost. Its sequence number becomes odd, so only a newer route issued by the
+     * destination itself can replace it.
+     */
+    private void invalidate(Path path, long now) {
+        path.cost = INFINITY;
+        path.nextHop = -1;
+        if ((path.sequence & 1) == 0) path.sequence++;
+
+        // Keep advertising the lost path for a while, so that it spreads through the mesh
+        path.lastUpdate = now + 3 * BROADCAST_FREQUENCY;
     }
 
-    public synchronized void stop() {
-        running = false;
+    /**
+     * @return The cost of sending a packet directly to the given neighbour
+     */
+    private int getLinkCost(byte neighbour) {
+        Link link = neighbours.get(neighbour);
+        return link == null ? MAX_LINK_COST : link.getCost();
+    }
+
+    /**
+     * @return Whether sequence number a is newer than b, taking wrap around into account
+     */
+    private static boolean newer(byte a, byte b) {
+        return (byte) (a - b) > 0;
+    }
+
+    public void start() {
+        network.getClock().execute(() -> {
+            running = true;
+            interval = BROADCAST_FREQUENCY;
+            startInterval();
+        });
+    }
+
+    public void stop() {
+        network.getClock().execute(() -> {
+            running = false;
+            timers.cancel(beaconTimer);
+            timers.cancel(intervalTimer);
+            timers.cancel(fullTimer);
+            timers.cancel(requestTimer);
+            fullIndex = -1;
+        });
+    }
+
+    /**
+     * Lets beacons be skipped when at least the given amount of beacons of others that told
+     * nothing new were heard in the same interval. Skipping beacons saves airtime in dense parts of
+     * the mesh, but makes it take longer to notice that a quiet neighbour is gone.
+     */
+    public void setRedundancy(int redundancy) {
+        this.redundancy = redundancy <= 0 ? NO_SUPPRESSION : redundancy;
+    }
+
+    /**
+     * Makes this node a sink or an ordinary node. Messages sent to {@link #SINKS} are delivered
+     * to this node once it is a sink, and the rest of the mesh learns about it from the next
+     * update.
+     */
+    public void setSink(boolean sink) {
+        network.getClock().execute(() -> {
+            if (self.sink == sink) return;
+            self.sink = sink;
+
+            // A newer sequence number makes the others accept the change
+            self.sequence += 2;
+            changed.put(ip, self);
+            trigger();
+            resetInterval();
+
+            Log.i(TAG, sink ? "Became a sink" : "Stopped being a sink");
+        });
+    }
+
+    public boolean isSink() {
+        return self.sink;
+    }
+
+    /**
+     * @return Whether messages to the given address, a node or {@link #SINKS}, are meant for us
+     */
+    boolean isLocal(byte dest) {
+        return dest == ip || (dest == SINKS && self.sink);
+    }
+
+    /**
+     * Chooses between sending triggered deltas with a rare full update (the default), or sending
+     * the full routing table every broadcast period.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
     }
 
+    /**
+     * @param dest A node, or {@link #SINKS} for the nearest sink
+     * @return The neighbour to send messages to the destination to, or -1 if there is no route
+     */
     public byte getNextHop(byte dest) {
-        Path path = routes.get(dest);
+        Path path = dest == SINKS ? findNearestSink() : routes.get(dest);
 
         if (path == null) return -1;
         return path.nextHop;
     }
 
+    /**
+     * @return The address of the nearest sink that can be reached, which is our own if we are a
+     * sink, or -1 if there is none
+     */
+    public byte getNearestSink() {
+        Path path = findNearestSink();
+        return path == null ? -1 : path.dest;
+    }
+
+    private Path findNearestSink() {
+        Path nearest = null;
+        for (int i = 0; i < routes.size(); i++) {
+            Path path = routes.valueAt(i);
+            if (!path.sink || path.cost == INFINITY) continue;
+
+            // Break ties differently on every node, so equally near sinks share the load
+            if (nearest == null || path.cost < nearest.cost || (path.cost == nearest.cost
+                    && (path.dest ^ ip) < (nearest.dest ^ ip))) {
+                nearest = path;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * @return A copy of the routing table, which is only consistent on the thread of the clock
+     */
     public Map<Byte, Path> getRoutes() {
-        return new HashMap<>(routes);
+        Map<Byte, Path> copy = new HashMap<>();
+        for (int i = 0; i < routes.size(); i++) copy.put(routes.keyAt(i), routes.valueAt(i));
+        return copy;
     }
 
     public void addListener(RoutingListener l) {
-        listeners.add(l);
+        network.getClock().execute(() -> listeners.add(l));
     }
 
     public void removeListener(RoutingListener l) {
-        listeners.remove(l);
+        network.getClock().execute(() -> listeners.remove(l));
     }
 
     public interface RoutingListener {
@@ -248,12 +835,84 @@ public class RoutingService implements NetworkListener {
 
     }
 
+    /**
+     * A neighbour, and an estimate of the quality of the link to it from the routing packets it
+     * sends. The cost is its ETX, the expected number of transmissions needed to get a packet
+     * across, which is derived from the fraction of its packets we receive assuming the link is
+     * symmetric. Weak links are penalized on top of that, as they are the first to break.
+     */
+    private static class Link {
+
+        public byte address;
+        public TimerWheel.Timer timeout;
+        public long lastHeard;
+        public long lastNumbered;
+        public long interval;
+        public byte sequence;
+        public boolean numbered;
+        public double deliveryRatio;
+        public double rssi;
+        public int received;
+        public int missed;
+
+        public Link(byte address, int rssi) {
+            this.address = address;
+            this.interval = BROADCAST_FREQUENCY;
+            this.deliveryRatio = INITIAL_DELIVERY_RATIO;
+            this.rssi = rssi;
+        }
+
+        public void onReceived(int rssi) {
+            this.rssi += RSSI_WEIGHT * (rssi - this.rssi);
+        }
+
+        public void onDelivered(int missed, long now) {
+            // A large gap means the neighbour restarted, rather than that we missed all of it
+            if (missed < 0 || missed > MAX_MISSED) return;
+
+            interval = (now - lastNumbered) / (missed + 1);
+
+            this.received++;
+            this.missed += missed;
+            if (this.received + this.missed < DELIVERY_WINDOW) return;
+
+            // Average over windows of packets, single losses say little about the link
+            double ratio = (double) this.received / (this.received + this.missed);
+            deliveryRatio += DELIVERY_WEIGHT * (ratio - deliveryRatio);
+            this.received = 0;
+            this.missed = 0;
+        }
+
+        /**
+         * @return How long the neighbour may stay quiet before it is considered gone
+         */
+        public long getTimeout() {
+            return Math.max(TIMEOUT, TIMEOUT_INTERVALS * interval);
+        }
+
+        public int getCost() {
+            double etx = 1 / (deliveryRatio * deliveryRatio);
+            int penalty = (int) Math.max(0, (RSSI_GOOD - rssi) / RSSI_STEP);
+            return (int) Math.min(MAX_LINK_COST, Math.round(PERFECT_LINK * etx) + penalty);
+        }
+
+    }
+
     private static class Path {
 
         public byte dest;
         public byte cost;
         public byte nextHop;
+        public byte sequence;
+        public boolean sink;
         public long lastUpdate;
+        public TimerWheel.Timer timeout;
+
+        // The newest sequence number somebody asked for, and who to pass the request on to, or
+        // -1 for every neighbour
+        public boolean requested;
+        public byte wanted;
+        public byte forwarder;
 
     }
 }
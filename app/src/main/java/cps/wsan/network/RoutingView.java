@@ -0,0 +1,118 @@
+package cps.wsan.network;
+
+/**
+ * A flyweight over a routing packet somewhere in a buffer, such as a received frame. The packet
+ * starts with a header of the form {@code [sender][type][packet number][sender sequence number]},
+ * followed by entries of the form {@code [dest][cost][next hop][dest sequence number]}. The
+ * highest bit of the type and of the cost tells whether the sender or destination is a sink.
+ * Wrapping a packet doesn't copy or allocate anything, so a single view can be reused for every
+ * packet.
+ */
+public class RoutingView {
+
+    public static final int HEADER = 4;
+    public static final int ENTRY = 4;
+
+    // Marks a sink in the type of a header, or the cost of an entry
+    private static final int SINK = 0x80;
+
+    private byte[] buffer;
+    private int offset;
+    private int length;
+
+    public RoutingView wrap(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+
+    /**
+     * @return Whether the wrapped bytes are long enough to hold a routing header
+     */
+    public boolean isValid() {
+        return length >= HEADER;
+    }
+
+    public byte getSender() {
+        return buffer[offset];
+    }
+
+    public byte getType() {
+        return (byte) (buffer[offset + 1] & ~SINK);
+    }
+
+    public boolean isSenderSink() {
+        return (buffer[offset + 1] & SINK) != 0;
+    }
+
+    /**
+     * @return The packet number, or the node a request is meant for
+     */
+    public byte getSequence() {
+        return buffer[offset + 2];
+    }
+
+    public byte getSenderSequence() {
+        return buffer[offset + 3];
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return The byte at the given index of the packet, for fields beyond the header that are
+     * not entries
+     */
+    public byte get(int index) {
+        return buffer[offset + index];
+    }
+
+    public int getEntryCount() {
+        return (length - HEADER) / ENTRY;
+    }
+
+    public byte getDest(int entry) {
+        return buffer[offset + HEADER + entry * ENTRY];
+    }
+
+    public byte getCost(int entry) {
+        return (byte) (buffer[offset + HEADER + entry * ENTRY + 1] & ~SINK);
+    }
+
+    public boolean isSink(int entry) {
+        return (buffer[offset + HEADER + entry * ENTRY + 1] & SINK) != 0;
+    }
+
+    public byte getNextHop(int entry) {
+        return buffer[offset + HEADER + entry * ENTRY + 2];
+    }
+
+    public byte getDestSequence(int entry) {
+        return buffer[offset + HEADER + entry * ENTRY + 3];
+    }
+
+    /**
+     * Writes a routing header at the start of the given buffer.
+     */
+    public static void writeHeader(byte[] buffer, byte sender, boolean sink, byte type, byte sequence,
+                                   byte senderSequence) {
+        buffer[0] = sender;
+        buffer[1] = (byte) (sink ? type | SINK : type);
+        buffer[2] = sequence;
+        buffer[3] = senderSequence;
+    }
+
+    /**
+     * Writes the given entry of a routing packet in the given buffer.
+     */
+    public static void writeEntry(byte[] buffer, int entry, byte dest, boolean sink, byte cost, byte nextHop,
+                                  byte sequence) {
+        int index = HEADER + entry * ENTRY;
+        buffer[index] = dest;
+        buffer[index + 1] = (byte) (sink ? cost | SINK : cost);
+        buffer[index + 2] = nextHop;
+        buffer[index + 3] = sequence;
+    }
+}
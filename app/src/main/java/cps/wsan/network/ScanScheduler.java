@@ -0,0 +1,94 @@
+package cps.wsan.network;
+
+import android.util.Log;
+
+/**
+ * Keeps the scanner running in low latency mode. A packet is only on the air for about a second,
+ * which the other scan modes of Android catch only part of the time, so the scanner listens all the
+ * time.
+ * <p>
+ * Android refuses to start a scan more than five times in 30 seconds, and turns scans that run for
+ * half an hour into opportunistic ones that only hear what other apps scan for. The scheduler
+ * restarts the scan every {@link #MAX_SCAN_DURATION}, and holds back restarts that would start the
+ * scan more than {@link #MAX_STARTS} times in {@link #START_PERIOD}.
+ * <p>
+ * All methods but the getters must be called on the thread of the clock.
+ */
+public class ScanScheduler {
+    private static final String TAG = ScanScheduler.class.getSimpleName();
+
+    static final long START_PERIOD = 30 * 1000;
+    static final int MAX_STARTS = 4;
+    static final long MAX_SCAN_DURATION = 10 * 60 * 1000;
+
+    /**
+     * Starts and stops the actual scanner.
+     */
+    public interface Scanner {
+
+        void startScan();
+
+        void stopScan();
+
+    }
+
+    private final Clock clock;
+    private final TimerWheel timers;
+    private final Scanner scanner;
+    private final TimerWheel.Timer restartTimer;
+
+    // Times of the last scan starts, used as a ring
+    private final long[] starts;
+    private int nextStart;
+
+    private boolean running;
+
+    public ScanScheduler(Clock clock, TimerWheel timers, Scanner scanner) {
+        this.clock = clock;
+        this.timers = timers;
+        this.scanner = scanner;
+
+        restartTimer = new TimerWheel.Timer(this::restart);
+        starts = new long[MAX_STARTS];
+        for (int i = 0; i < starts.length; i++) starts[i] = Long.MIN_VALUE / 2;
+    }
+
+    public void start() {
+        if (running) return;
+        running = true;
+
+        startScan(clock.now());
+        timers.schedule(restartTimer, MAX_SCAN_DURATION);
+    }
+
+    public void stop() {
+        if (!running) return;
+        running = false;
+
+        timers.cancel(restartTimer);
+        scanner.stopScan();
+    }
+
+    private void restart() {
+        if (!running) return;
+
+        // Try again once the oldest of the last starts is out of the period
+        long now = clock.now();
+        long wait = starts[nextStart] + START_PERIOD - now;
+        if (wait > 0) {
+            timers.schedule(restartTimer, wait);
+            return;
+        }
+
+        Log.i(TAG, "Restarting the scan");
+        scanner.stopScan();
+        startScan(now);
+        timers.schedule(restartTimer, MAX_SCAN_DURATION);
+    }
+
+    private void startScan(long now) {
+        starts[nextStart] = now;
+        nextStart = (nextStart + 1) % starts.length;
+        scanner.startScan();
+    }
+}
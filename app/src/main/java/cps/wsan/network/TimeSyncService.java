@@ -0,0 +1,355 @@
+package cps.wsan.network;
+
+import android.util.Log;
+
+/**
+ * Keeps a mesh wide time, along the lines of the flooding time synchronization protocol (FTSP).
+ * A single node is the root, and its clock is the global time. The root floods a sync packet every
+ * {@link #SYNC_PERIOD} through the {@link PropagationService}, of the form
+ * {@code [origin][flood id][sender][type][root][global time x6][error x2]}. Every node that passes
+ * it on puts its own estimate of the global time in it right before it goes on the air, so a
+ * timestamp is never older than a single hop.
+ * <p>
+ * A node pairs every sync packet it receives with its local time of reception, and fits a line
+ * through the last {@link #MAX_ENTRIES} of those pairs. The slope of that line is the skew of its
+ * clock compared to the global time, the line itself converts local times into global ones. Once
+ * it has {@link #MIN_ENTRIES} pairs the node is synchronized. Nodes that aren't pass sync packets
+ * on all the same, marked as such, so that nodes further away keep hearing of the root.
+ * <p>
+ * A packet can only ever arrive later than it was stamped, by however long it took a receiver to
+ * catch the advertisement, so the pair with the shortest delay is the most accurate one. The line
+ * is moved up to that pair, and the shortest delay itself is taken to be {@link #RECEIVE_DELAY}.
+ * The error bound of a node is that of the node it hears from, plus the largest deviation of its
+ * pairs from the line, which is how much the delay varies. Between sync packets the error grows by
+ * how far the clocks may drift apart, and the skew itself is never taken to be more than
+ * {@link #MAX_SKEW}, as a few noisy pairs close together would otherwise make for a much steeper
+ * line than any real clock has.
+ * <p>
+ * When the root goes quiet for {@link #ROOT_TIMEOUT}, every node that hears of no other root
+ * declares itself root, and carries on with its estimate of the global time if it has one, so the
+ * time doesn't jump. Roots that hear a root with a lower address give way to it, so the mesh
+ * settles on a single root again.
+ */
+public class TimeSyncService implements PropagationService.FloodListener {
+    private static final String TAG = TimeSyncService.class.getSimpleName();
+
+    /**
+     * The error of nodes that aren't synchronized.
+     */
+    public static final long UNKNOWN_ERROR = -1;
+
+    static final byte TYPE = 0x54;
+    private static final int TYPE_OFFSET = PropagationService.HEADER;
+    private static final int ROOT_OFFSET = TYPE_OFFSET + 1;
+    private static final int TIME_OFFSET = ROOT_OFFSET + 1;
+    private static final int ERROR_OFFSET = TIME_OFFSET + 6;
+    private static final int LENGTH = ERROR_OFFSET + 2;
+
+    private static final long SYNC_PERIOD = 20 * 1000;
+    private static final long ROOT_TIMEOUT = 4 * SYNC_PERIOD;
+    private static final int MAX_ENTRIES = 8;
+    private static final int MIN_ENTRIES = 3;
+
+    // Pairs that are this far off the line are outliers, and too many of those in a row mean the
+    // line itself is wrong
+    private static final long OUTLIER_LIMIT = 500;
+    private static final int MAX_OUTLIERS = 3;
+
+    // The shortest delay between putting a timestamp in a packet and receiving it, mostly the time
+    // until the receiver first catches the advertisement
+    private static final long RECEIVE_DELAY = 4;
+
+    // Ordinary clocks are within 50 ppm, so two of them are at most 100 ppm apart
+    private static final double MAX_SKEW = 100e-6;
+
+    private static final int MAX_ERROR = 0xFFFE;
+    private static final int NO_ERROR = 0xFFFF;
+
+    private final AdhocNetwork network;
+    private final PropagationService propagation;
+    private final TimerWheel.Timer syncTimer;
+    private final byte ip;
+
+    // <local time, global time - local time> of the last sync packets, used as a ring
+    private final long[] locals;
+    private final long[] offsets;
+    private int entries;
+    private int next;
+    private int outliers;
+
+    private volatile byte root;
+    private long lastSync;
+    private long senderError;
+    private boolean running;
+
+    // Published for other threads, replaced as a whole whenever the line changes
+    private volatile Estimate estimate;
+
+    public TimeSyncService(AdhocNetwork network, PropagationService propagation, byte ip) {
+        this.network = network;
+        this.propagation = propagation;
+        this.ip = ip;
+        propagation.addListener(this);
+
+        syncTimer = new TimerWheel.Timer(this::onSyncTimer);
+        locals = new long[MAX_ENTRIES];
+        offsets = new long[MAX_ENTRIES];
+
+        root = -1;
+        lastSync = Long.MIN_VALUE / 2;
+        estimate = new Estimate(0, 0, 0, UNKNOWN_ERROR);
+    }
+
+    private void onSyncTimer() {
+        long now = network.getClock().now();
+
+        if (root != ip && now >= lastSync + ROOT_TIMEOUT) {
+            // Nobody with a lower address is around, or whoever it was has gone
+            Log.i(TAG, String.format("No sync from root %s, becoming the root", root));
+            becomeRoot(now);
+        }
+
+        if (root == ip) {
+            byte[] packet = new byte[LENGTH];
+            packet[TYPE_OFFSET] = TYPE;
+            packet[ROOT_OFFSET] = ip;
+            propagation.flood(packet);
+        }
+
+        network.getTimers().schedule(syncTimer, SYNC_PERIOD);
+    }
+
+    private void becomeRoot(long now) {
+        Estimate current = estimate;
+        long global = current.error == UNKNOWN_ERROR ? now : current.toGlobal(now);
+
+        root = ip;
+        clear();
+        estimate = new Estimate(now, global, 0, 0);
+    }
+
+    @Override
+    public boolean onFlood(byte[] data, int rssi) {
+        if (data.length < LENGTH || data[TYPE_OFFSET] != TYPE) return true;
+        if (!running) return false;
+
+        long now = network.getClock().now() - RECEIVE_DELAY;
+        byte sender = data[ROOT_OFFSET];
+        int error = ((data[ERROR_OFFSET] & 0xFF) << 8) | (data[ERROR_OFFSET + 1] & 0xFF);
+
+        // The lowest root wins, a root we stopped hearing is replaced by whichever comes next
+        boolean timedOut = root != ip && now >= lastSync + ROOT_TIMEOUT;
+        if (root != -1 && (sender & 0xFF) > (root & 0xFF) && !timedOut) return false;
+        if (sender == ip) return false;
+        if (sender != root) {
+            Log.i(TAG, String.format("Synchronizing to root %s", sender));
+            root = sender;
+            clear();
+        }
+        lastSync = now;
+
+        // Packets stamped by nodes that weren't synchronized only tell us who the root is, which is
+        // still worth passing on so that nodes further away don't give up on the root
+        if (error == NO_ERROR) return true;
+
+        long global = 0;
+        for (int i = TIME_OFFSET; i < ERROR_OFFSET; i++) global = (global << 8) | (data[i] & 0xFF);
+        senderError = error;
+        add(now, global - now);
+        return true;
+    }
+
+    @Override
+    public AdvertiseScheduler.Priority getPriority(byte[] data) {
+        // A sync packet that waits behind other floods goes stale, and it takes hardly any airtime
+        boolean sync = data.length >= LENGTH && data[TYPE_OFFSET] == TYPE;
+        return sync ? AdvertiseScheduler.Priority.CONTROL : AdvertiseScheduler.Priority.FLOOD;
+    }
+
+    @Override
+    public void onAdvertise(byte[] data) {
+        if (data.length < LENGTH || data[TYPE_OFFSET] != TYPE) return;
+
+        long now = network.getClock().now();
+        Estimate current = estimate;
+        long global = current.error == UNKNOWN_ERROR ? now : current.toGlobal(now);
+        for (int i = ERROR_OFFSET - 1; i >= TIME_OFFSET; i--) {
+            data[i] = (byte) global;
+            global >>= 8;
+        }
+
+        int error = current.error == UNKNOWN_ERROR ? NO_ERROR
+                : (int) Math.min(MAX_ERROR, current.getError(now));
+        data[ERROR_OFFSET] = (byte) (error >> 8);
+        data[ERROR_OFFSET + 1] = (byte) error;
+    }
+
+    private void add(long local, long offset) {
+        // Throw away pairs that are way off, unless the line itself turns out to be off
+        Estimate current = estimate;
+        if (current.error != UNKNOWN_ERROR
+                && Math.abs(current.toGlobal(local) - local - offset) > OUTLIER_LIMIT) {
+            if (++outliers <= MAX_OUTLIERS) return;
+            Log.w(TAG, "Time estimate is off, starting over");
+            clear();
+        }
+        outliers = 0;
+
+        locals[next] = local;
+        offsets[next] = offset;
+        next = (next + 1) % MAX_ENTRIES;
+        entries = Math.min(entries + 1, MAX_ENTRIES);
+
+        fit();
+    }
+
+    /**
+     * Fits a line through the pairs with linear regression, relative to the newest pair so the
+     * numbers stay small, and moves it up to the pair with the shortest delay.
+     */
+    private void fit() {
+        if (entries < MIN_ENTRIES) {
+            estimate = new Estimate(0, 0, 0, UNKNOWN_ERROR);
+            return;
+        }
+
+        long localBase = locals[(next + MAX_ENTRIES - 1) % MAX_ENTRIES];
+        long offsetBase = offsets[(next + MAX_ENTRIES - 1) % MAX_ENTRIES];
+
+        double localMean = 0;
+        double offsetMean = 0;
+        for (int i = 0; i < entries; i++) {
+            localMean += locals[i] - localBase;
+            offsetMean += offsets[i] - offsetBase;
+        }
+        localMean /= entries;
+        offsetMean /= entries;
+
+        double covariance = 0;
+        double variance = 0;
+        for (int i = 0; i < entries; i++) {
+            double dl = locals[i] - localBase - localMean;
+            covariance += dl * (offsets[i] - offsetBase - offsetMean);
+            variance += dl * dl;
+        }
+        double skew = variance == 0 ? 0 : covariance / variance;
+        skew = Math.max(-MAX_SKEW, Math.min(MAX_SKEW, skew));
+
+        // The largest deviation from the line is the uncertainty we add to that of the sender, the
+        // pair furthest above it was delayed the least
+        double deviation = 0;
+        double shortest = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < entries; i++) {
+            double fitted = offsetMean + skew * (locals[i] - localBase - localMean);
+            double residual = offsets[i] - offsetBase - fitted;
+            deviation = Math.max(deviation, Math.abs(residual));
+            shortest = Math.max(shortest, residual);
+        }
+
+        long local = localBase + Math.round(localMean);
+        long global = local + offsetBase + Math.round(offsetMean + shortest);
+        estimate = new Estimate(local, global, skew, senderError + 1 + (long) Math.ceil(deviation));
+    }
+
+    private void clear() {
+        entries = 0;
+        next = 0;
+        outliers = 0;
+        if (root != ip) estimate = new Estimate(0, 0, 0, UNKNOWN_ERROR);
+    }
+
+    public void start() {
+        network.getClock().execute(() -> {
+            if (running) return;
+            running = true;
+
+            // Give an existing root the chance to be heard before taking over
+            lastSync = network.getClock().now();
+            network.getTimers().schedule(syncTimer, SYNC_PERIOD);
+        });
+    }
+
+    public void stop() {
+        network.getClock().execute(() -> {
+            running = false;
+            network.getTimers().cancel(syncTimer);
+        });
+    }
+
+    /**
+     * @return Whether this node knows the global time, which the root always does
+     */
+    public boolean isSynchronized() {
+        return estimate.error != UNKNOWN_ERROR;
+    }
+
+    /**
+     * @return The global time in milliseconds, or the local time if this node is not synchronized.
+     * May be called from any thread
+     */
+    public long getGlobalTime() {
+        return getGlobalTime(network.getClock().now());
+    }
+
+    /**
+     * @param localTime A time of the clock of the network
+     * @return The global time at that moment, or the local time if this node is not synchronized
+     */
+    public long getGlobalTime(long localTime) {
+        Estimate current = estimate;
+        return current.error == UNKNOWN_ERROR ? localTime : current.toGlobal(localTime);
+    }
+
+    /**
+     * @return How far the global time of this node may be off from that of the root in
+     * milliseconds, or {@link #UNKNOWN_ERROR} if it is not synchronized
+     */
+    public long getError() {
+        Estimate current = estimate;
+        return current.error == UNKNOWN_ERROR ? UNKNOWN_ERROR : current.getError(network.getClock().now());
+    }
+
+    /**
+     * @return How much faster the global time runs than the local clock, as a fraction
+     */
+    public double getSkew() {
+        return estimate.skew;
+    }
+
+    /**
+     * @return The address of the node whose clock is the global time, or -1 if there is none yet
+     */
+    public byte getRoot() {
+        return root;
+    }
+
+    /**
+     * A line that converts local times into global ones.
+     */
+    private static class Estimate {
+
+        public final long local;
+        public final long global;
+        public final double skew;
+        public final long error;
+
+        public Estimate(long local, long global, double skew, long error) {
+            this.local = local;
+            this.global = global;
+            this.skew = skew;
+            this.error = error;
+        }
+
+        public long toGlobal(long time) {
+            return global + Math.round((time - local) * (1 + skew));
+        }
+
+        /**
+         * @return The error at the given local time, which grows the further it is from the line
+         */
+        public long getError(long time) {
+            return error + (long) Math.ceil(Math.abs(time - local) * MAX_SKEW);
+        }
+
+    }
+}
@@ -0,0 +1,165 @@
+package cps.wsan.network;
+
+/**
+ * A hashed timing wheel on top of a {@link Clock}. Time is divided into ticks, and every timer is
+ * kept in the slot of the tick it expires in, in a doubly linked list, so scheduling and
+ * cancelling a timer take constant time no matter how many timers there are. Timers further away
+ * than a full turn of the wheel simply stay in their slot until their turn comes around.
+ * <p>
+ * Timers fire at most one tick late. The wheel only wakes up the clock while timers are pending,
+ * and must only be used from the thread of its clock.
+ */
+public class TimerWheel {
+
+    private static final long DEFAULT_TICK = 100;
+    private static final int DEFAULT_SLOTS = 512;
+
+    private final Clock clock;
+    private final long tick;
+    private final int mask;
+
+    // The head of the list of timers of every slot
+    private final Timer[] slots;
+
+    // Timers that are due, but have not run yet
+    private final Timer expired;
+
+    private final Runnable advanceTask;
+
+    // The last tick of which the timers ran
+    private long current;
+    private int count;
+    private boolean posted;
+
+    public TimerWheel(Clock clock) {
+        this(clock, DEFAULT_TICK, DEFAULT_SLOTS);
+    }
+
+    /**
+     * @param tick  The length of a tick in milliseconds, timers fire at most this much late
+     * @param slots The amount of slots, rounded up to a power of two
+     */
+    public TimerWheel(Clock clock, long tick, int slots) {
+        this.clock = clock;
+        this.tick = tick;
+
+        int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.mask = size - 1;
+        this.slots = new Timer[size];
+        for (int i = 0; i < size; i++) this.slots[i] = new Timer();
+        expired = new Timer();
+
+        advanceTask = this::advance;
+        current = clock.now() / tick;
+    }
+
+    /**
+     * Runs the timer once the given delay has passed, replacing its earlier schedule if any.
+     */
+    public void schedule(Timer timer, long delay) {
+        cancel(timer);
+
+        long now = clock.now();
+        if (count == 0) current = now / tick;
+
+        // Round up, so a timer never fires early
+        timer.deadline = Math.max(current + 1, (now + Math.max(0, delay) + tick - 1) / tick);
+        link(slots[(int) (timer.deadline & mask)], timer);
+        count++;
+
+        if (!posted) {
+            posted = true;
+            clock.postDelayed(advanceTask, tick);
+        }
+    }
+
+    /**
+     * Stops the timer from running, if it is scheduled.
+     */
+    public void cancel(Timer timer) {
+        if (!timer.isScheduled()) return;
+        unlink(timer);
+        count--;
+    }
+
+    /**
+     * @return The amount of timers that are scheduled
+     */
+    public int size() {
+        return count;
+    }
+
+    private void advance() {
+        posted = false;
+
+        long target = clock.now() / tick;
+        while (current < target) {
+            current++;
+
+            // Collect the due timers first, as running them may schedule or cancel others
+            Timer head = slots[(int) (current & mask)];
+            for (Timer t = head.next; t != head; ) {
+                Timer next = t.next;
+                if (t.deadline <= current) {
+                    unlink(t);
+                    link(expired, t);
+                }
+                t = next;
+            }
+
+            while (expired.next != expired) {
+                Timer t = expired.next;
+                unlink(t);
+                count--;
+                t.task.run();
+            }
+        }
+
+        if (count > 0 && !posted) {
+            posted = true;
+            clock.postDelayed(advanceTask, tick);
+        }
+    }
+
+    private static void link(Timer head, Timer timer) {
+        timer.prev = head.prev;
+        timer.next = head;
+        head.prev.next = timer;
+        head.prev = timer;
+    }
+
+    private static void unlink(Timer timer) {
+        timer.prev.next = timer.next;
+        timer.next.prev = timer.prev;
+        timer.prev = null;
+        timer.next = null;
+    }
+
+    /**
+     * A task that can be scheduled on a wheel. A timer is scheduled at most once at a time, so it
+     * is usually created once and rescheduled whenever its deadline moves.
+     */
+    public static class Timer {
+
+        private final Runnable task;
+        private Timer prev;
+        private Timer next;
+        private long deadline;
+
+        public Timer(Runnable task) {
+            this.task = task;
+        }
+
+        // A head of a list, which points to itself when the list is empty
+        private Timer() {
+            this.task = null;
+            this.prev = this;
+            this.next = this;
+        }
+
+        public boolean isScheduled() {
+            return prev != null;
+        }
+
+    }
+}
@@ -0,0 +1,83 @@
+package cps.wsan.sim;
+
+import java.util.PriorityQueue;
+
+import cps.wsan.network.Clock;
+
+/**
+ * The virtual clock of a simulation. Tasks are kept in a single event queue and executed in time
+ * order, so time only advances as fast as the events can be processed.
+ */
+public class SimClock implements Clock {
+
+    private final PriorityQueue<Event> events;
+
+    // Virtual time in microseconds
+    private long time;
+    private long sequence;
+
+    public SimClock() {
+        events = new PriorityQueue<>();
+        time = 0;
+        sequence = 0;
+    }
+
+    @Override
+    public long now() {
+        return time / 1000;
+    }
+
+    public long nowMicros() {
+        return time;
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delay) {
+        postDelayedMicros(task, delay * 1000);
+    }
+
+    public void postDelayedMicros(Runnable task, long delay) {
+        Event event = new Event();
+        event.time = time + Math.max(0, delay);
+        event.sequence = sequence++;
+        event.task = task;
+        events.add(event);
+    }
+
+    /**
+     * Executes all events up to (and including) the given time.
+     * @param end   The time in milliseconds at which to stop
+     * @return The amount of events that have been executed
+     */
+    public long runUntil(long end) {
+        long endMicros = end * 1000;
+        long executed = 0;
+
+        while (!events.isEmpty() && events.peek().time <= endMicros) {
+            Event event = events.poll();
+            time = event.time;
+            event.task.run();
+            executed++;
+        }
+
+        time = Math.max(time, endMicros);
+        return executed;
+    }
+
+    public int getPendingEvents() {
+        return events.size();
+    }
+
+    private static class Event implements Comparable<Event> {
+
+        public long time;
+        public long sequence;
+        public Runnable task;
+
+        @Override
+        public int compareTo(Event o) {
+            if (time != o.time) return Long.compare(time, o.time);
+            return Long.compare(sequence, o.sequence);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package cps.wsan.sim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import cps.wsan.network.Frame;
+import cps.wsan.network.Radio;
+
+/**
+ * The shared radio medium of a simulation. It models the three BLE advertising channels, a
+ * log-distance path loss with static shadowing per link and fast fading per packet, a receiver
+ * sensitivity, random loss and collisions (with capture) at each receiver.
+ */
+public class SimMedium {
+
+    public static final int ADVERTISING_CHANNELS = 3;
+
+    // Preamble, access address, PDU header, advertiser address and CRC
+    private static final int PDU_OVERHEAD = 1 + 4 + 2 + 6 + 3;
+    private static final long INTER_FRAME_SPACE = 150; // us
+
+    private final SimClock clock;
+    private final Random random;
+    private final Stats stats;
+
+    private final List<SimRadio> radios;
+
+    private double txPower = -15;           // dBm, ADVERTISE_TX_POWER_LOW
+    private double referenceLoss = 40;      // dB at 1 m
+    private double pathLossExponent = 2.5;
+    private double shadowing = 4;           // dB, static per link
+    private double fading = 3;              // dB, per packet
+    private double sensitivity = -95;       // dBm
+    private double captureThreshold = 6;    // dB
+    private double lossRate = 0;
+    private int maxAdvertisingDataLength = Radio.LEGACY_ADVERTISING_DATA_LENGTH;
+    private int maxAdvertisers = 4;          // advertising instances of a typical controller
+
+    private long advertiseInterval = 100;   // ms, ADVERTISE_MODE_LOW_LATENCY
+    private long advertiseDelay = 10;       // ms, random delay added to every interval
+    private long scanInterval = 4096;       // ms, SCAN_MODE_LOW_LATENCY
+    private long scanWindow = 4096;         // ms
+
+    public SimMedium(SimClock clock, Random random) {
+        this.clock = clock;
+        this.random = random;
+
+        stats = new Stats();
+        radios = new ArrayList<>();
+    }
+
+    /**
+     * Creates a radio at the given position and connects it to all radios that are in range.
+     */
+    public SimRadio createRadio(double x, double y) {
+        SimRadio radio = new SimRadio(this, x, y);
+
+        for (SimRadio other : radios) {
+            double distance = Math.max(1, Math.hypot(x - other.getX(), y - other.getY()));
+            double rssi = txPower - referenceLoss - 10 * pathLossExponent * Math.log10(distance)
+                    + random.nextGaussian() * shadowing;
+
+            // Only keep links that could ever receive anything
+            if (rssi + 3 * fading < sensitivity) continue;
+            radio.addLink(other, rssi);
+            other.addLink(radio, rssi);
+        }
+
+        radios.add(radio);
+        return radio;
+    }
+
+    /**
+     * @return The airtime of a single advertising PDU in microseconds (1 Mbit/s)
+     */
+    public long getAirtime(UUID uuid, byte[] data) {
+        return (PDU_OVERHEAD + Frame.getOverhead(uuid) + data.length) * 8;
+    }
+
+    public boolean fits(UUID uuid, byte[] data) {
+        return Frame.getOverhead(uuid) + data.length <= maxAdvertisingDataLength;
+    }
+
+    /**
+     * Transmits a single PDU of an advertising event on one of the advertising channels.
+     */
+    void transmit(SimRadio sender, int channel, UUID uuid, byte[] data) {
+        long start = clock.nowMicros();
+        long airtime = getAirtime(uuid, data);
+
+        stats.pdus++;
+        stats.airtime += airtime;
+        sender.setTransmitting(start + airtime);
+
+        for (SimRadio.Link link : sender.getLinks()) {
+            SimRadio receiver = link.radio;
+
+            if (!receiver.isListening(channel, start)) {
+                stats.notListening++;
+                continue;
+            }
+
+            int rssi = (int) Math.round(link.rssi + random.nextGaussian() * fading);
+            if (rssi < sensitivity) {
+                stats.tooWeak++;
+                continue;
+            }
+            if (random.nextDouble() < lossRate) {
+                stats.lost++;
+                continue;
+            }
+
+            receiver.receive(channel, uuid, data, rssi, start, start + airtime);
+        }
+    }
+
+    long getPduSpacing(UUID uuid, byte[] data) {
+        return getAirtime(uuid, data) + INTER_FRAME_SPACE;
+    }
+
+    SimClock getClock() {
+        return clock;
+    }
+
+    Random getRandom() {
+        return random;
+    }
+
+    public Stats getStats() {
+        return stats;
+    }
+
+    public List<SimRadio> getRadios() {
+        return radios;
+    }
+
+    public int getMaxAdvertisingDataLength() {
+        return maxAdvertisingDataLength;
+    }
+
+    public int getMaxAdvertisers() {
+        return maxAdvertisers;
+    }
+
+    public double getSensitivity() {
+        return sensitivity;
+    }
+
+    public double getCaptureThreshold() {
+        return captureThreshold;
+    }
+
+    public long getAdvertiseInterval() {
+        return advertiseInterval;
+    }
+
+    public long getAdvertiseDelay() {
+        return advertiseDelay;
+    }
+
+    public long getScanInterval() {
+        return scanInterval;
+    }
+
+    public long getScanWindow() {
+        return scanWindow;
+    }
+
+    public void setTxPower(double txPower) {
+        this.txPower = txPower;
+    }
+
+    public void setPathLoss(double referenceLoss, double exponent) {
+        this.referenceLoss = referenceLoss;
+        this.pathLossExponent = exponent;
+    }
+
+    public void setShadowing(double shadowing, double fading) {
+        this.shadowing = shadowing;
+        this.fading = fading;
+    }
+
+    public void setSensitivity(double sensitivity) {
+        this.sensitivity = sensitivity;
+    }
+
+    public void setCaptureThreshold(double captureThreshold) {
+        this.captureThreshold = captureThreshold;
+    }
+
+    public void setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+    }
+
+    /**
+     * Sets the advertising data limit of all radios, e.g. to model extended advertising.
+     */
+    public void setMaxAdvertisingDataLength(int maxAdvertisingDataLength) {
+        this.maxAdvertisingDataLength = maxAdvertisingDataLength;
+    }
+
+    /**
+     * Sets the amount of advertisers the controllers of all radios run at once.
+     */
+    public void setMaxAdvertisers(int maxAdvertisers) {
+        this.maxAdvertisers = maxAdvertisers;
+    }
+
+    public void setAdvertising(long interval, long delay) {
+        this.advertiseInterval = interval;
+        this.advertiseDelay = delay;
+    }
+
+    public void setScanning(long interval, long window) {
+        if (window > interval) throw new IllegalArgumentException("Scan window exceeds the interval");
+        this.scanInterval = interval;
+        this.scanWindow = window;
+    }
+
+    /**
+     * Counters of everything that happened on the medium.
+     */
+    public static class Stats {
+
+        public long advertisements;
+        public long advertiseFailures;
+        public long pdus;
+        public long airtime; // us
+
+        public long delivered;
+        public long notListening;
+        public long tooWeak;
+        public long lost;
+        public long collisions;
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "advertisements: %s (failed: %s), pdus: %s, airtime: %.1f s, delivered: %s, " +
+                            "not listening: %s, too weak: %s, lost: %s, collisions: %s",
+                    advertisements, advertiseFailures, pdus, airtime / 1e6, delivered,
+                    notListening, tooWeak, lost, collisions);
+        }
+    }
+}
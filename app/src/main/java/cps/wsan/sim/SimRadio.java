@@ -0,0 +1,232 @@
+package cps.wsan.sim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import cps.wsan.network.Radio;
+
+/**
+ * A virtual BLE radio. While advertising it sends an advertising event every advertising interval
+ * (plus a random delay) on all three channels, for every advertiser independently, while scanning
+ * it listens to one channel at a time and moves on to the next one every scan interval.
+ */
+public class SimRadio implements Radio {
+
+    private final SimMedium medium;
+    private final double x;
+    private final double y;
+    private final List<Link> links;
+    private final Reception[] receptions;
+
+    private Advertisement[] advertisements;
+    private long advertiseFailures;
+    private long transmitting;
+
+    private Receiver receiver;
+    private long scanStart;
+
+    SimRadio(SimMedium medium, double x, double y) {
+        this.medium = medium;
+        this.x = x;
+        this.y = y;
+
+        links = new ArrayList<>();
+        receptions = new Reception[SimMedium.ADVERTISING_CHANNELS];
+        advertisements = new Advertisement[0];
+    }
+
+    @Override
+    public int getMaxAdvertisingDataLength() {
+        return medium.getMaxAdvertisingDataLength();
+    }
+
+    @Override
+    public int getMaxAdvertisers() {
+        return medium.getMaxAdvertisers();
+    }
+
+    @Override
+    public long getAdvertiseFailures() {
+        return advertiseFailures;
+    }
+
+    @Override
+    public void startAdvertising(int advertiser, UUID uuid, byte[] data) {
+        Advertisement advertisement = getAdvertisement(advertiser);
+
+        // Every start invalidates the events of the previous advertisement
+        advertisement.generation++;
+
+        if (advertiser >= medium.getMaxAdvertisers() || !medium.fits(uuid, data)) {
+            medium.getStats().advertiseFailures++;
+            advertiseFailures++;
+            advertisement.data = null;
+            return;
+        }
+
+        // The stack may reuse the array, so take a snapshot like the controller would
+        advertisement.uuid = uuid;
+        advertisement.data = data.clone();
+
+        int current = advertisement.generation;
+        long delay = (long) (medium.getRandom().nextDouble() * medium.getAdvertiseDelay() * 1000);
+        medium.getClock().postDelayedMicros(() -> advertise(advertisement, current), delay);
+    }
+
+    @Override
+    public void stopAdvertising(int advertiser) {
+        Advertisement advertisement = getAdvertisement(advertiser);
+        advertisement.generation++;
+        advertisement.data = null;
+    }
+
+    private Advertisement getAdvertisement(int advertiser) {
+        if (advertiser >= advertisements.length) {
+            Advertisement[] grown = new Advertisement[advertiser + 1];
+            System.arraycopy(advertisements, 0, grown, 0, advertisements.length);
+            for (int i = advertisements.length; i < grown.length; i++) grown[i] = new Advertisement();
+            advertisements = grown;
+        }
+        return advertisements[advertiser];
+    }
+
+    @Override
+    public void startScan(Receiver receiver) {
+        this.receiver = receiver;
+        scanStart = medium.getClock().nowMicros();
+    }
+
+    @Override
+    public void stopScan() {
+        receiver = null;
+    }
+
+    private void advertise(Advertisement advertisement, int current) {
+        if (current != advertisement.generation || advertisement.data == null) return;
+        medium.getStats().advertisements++;
+
+        // One PDU per advertising channel, back to back
+        UUID uuid = advertisement.uuid;
+        byte[] data = advertisement.data;
+        long spacing = medium.getPduSpacing(uuid, data);
+        for (int channel = 0; channel < SimMedium.ADVERTISING_CHANNELS; channel++) {
+            int c = channel;
+            medium.getClock().postDelayedMicros(() -> {
+                if (current == advertisement.generation) medium.transmit(this, c, uuid, data);
+            }, channel * spacing);
+        }
+
+        long next = medium.getAdvertiseInterval() * 1000
+                + (long) (medium.getRandom().nextDouble() * medium.getAdvertiseDelay() * 1000);
+        medium.getClock().postDelayedMicros(() -> advertise(advertisement, current), next);
+    }
+
+    boolean isListening(int channel, long time) {
+        if (receiver == null || time < transmitting) return false;
+
+        long interval = medium.getScanInterval() * 1000;
+        long elapsed = time - scanStart;
+        if (elapsed % interval >= medium.getScanWindow() * 1000) return false;
+        return (elapsed / interval) % SimMedium.ADVERTISING_CHANNELS == channel;
+    }
+
+    void receive(int channel, UUID uuid, byte[] data, int rssi, long start, long end) {
+        Reception current = receptions[channel];
+
+        if (current != null && current.end > start) {
+            if (rssi >= current.rssi + medium.getCaptureThreshold()) {
+                // The new packet is strong enough to capture the receiver
+                current.corrupted = true;
+            } else {
+                // Otherwise the new packet is lost, and the current one as well unless it captures
+                if (current.rssi < rssi + medium.getCaptureThreshold()) current.corrupted = true;
+                medium.getStats().collisions++;
+                return;
+            }
+        }
+
+        Reception reception = new Reception();
+        reception.uuid = uuid;
+        reception.data = data;
+        reception.rssi = rssi;
+        reception.end = end;
+        receptions[channel] = reception;
+
+        medium.getClock().postDelayedMicros(() -> {
+            if (receptions[channel] == reception) receptions[channel] = null;
+
+            if (reception.corrupted) {
+                medium.getStats().collisions++;
+            } else if (receiver != null) {
+                medium.getStats().delivered++;
+                receiver.onReceive(reception.uuid, reception.data.clone(), reception.rssi);
+            }
+        }, end - start);
+    }
+
+    void addLink(SimRadio radio, double rssi) {
+        Link link = new Link();
+        link.radio = radio;
+        link.rssi = rssi;
+        links.add(link);
+    }
+
+    void setTransmitting(long until) {
+        transmitting = until;
+    }
+
+    List<Link> getLinks() {
+        return links;
+    }
+
+    public boolean isAdvertising() {
+        for (Advertisement advertisement : advertisements) {
+            if (advertisement.data != null) return true;
+        }
+        return false;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    /**
+     * @return The average RSSI towards the given radio, or {@code null} if it is out of range
+     */
+    public Double getLinkRssi(SimRadio radio) {
+        for (Link link : links) {
+            if (link.radio == radio) return link.rssi;
+        }
+        return null;
+    }
+
+    static class Link {
+
+        public SimRadio radio;
+        public double rssi;
+
+    }
+
+    private static class Advertisement {
+
+        public UUID uuid;
+        public byte[] data;
+        public int generation;
+
+    }
+
+    private static class Reception {
+
+        public UUID uuid;
+        public byte[] data;
+        public int rssi;
+        public long end;
+        public boolean corrupted;
+
+    }
+}
@@ -0,0 +1,543 @@
+package cps.wsan.sim;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+
+import cps.wsan.network.AdhocNetwork;
+import cps.wsan.network.Aggregate;
+import cps.wsan.network.Clock;
+import cps.wsan.network.RoutingService;
+import cps.wsan.network.TimeSyncService;
+import cps.wsan.network.TimerWheel;
+import cps.wsan.network.AdvertiseScheduler;
+import cps.wsan.network.MessageService;
+import cps.wsan.network.PropagationService;
+
+/**
+ * Runs a whole mesh of {@link AdhocNetwork} nodes on a {@link SimMedium}, with the first nodes as
+ * sinks. Nodes are placed uniformly at random and boot at random moments. The simulation measures
+ * how long it takes until every node that is connected to a sink has a route to one, and which
+ * part of the messages sent to the sinks actually arrives at any of them.
+ * <p>
+ * With floods on, random nodes also flood packets through the whole mesh during the traffic
+ * phase, and the simulation measures which part of the nodes that can hear the origin, directly
+ * or over other nodes, receives them.
+ * <p>
+ * With time synchronization on, every node gets a clock of its own, with a random offset and a
+ * drift of up to {@link #MAX_DRIFT}, and the simulation compares the global time of every node to
+ * the clock of the root once a second.
+ */
+public class Simulation {
+
+    // Every byte value is a node address, but for RoutingService.SINKS and -1 for no node
+    public static final int MAX_NODES = 254;
+
+    private static final long BOOT_PERIOD = 2000;
+    private static final long CONVERGENCE_CHECK = 100;
+    private static final long SYNC_CHECK = 1000;
+
+    // Floods of the simulation are [origin][id][sender][type][number x2]
+    private static final byte FLOOD_TYPE = 0x46;
+    private static final int FLOOD_LENGTH = PropagationService.HEADER + 3;
+
+    // Ordinary crystals drift up to some 50 ppm
+    private static final double MAX_DRIFT = 50e-6;
+    private static final long MAX_OFFSET = 24 * 60 * 60 * 1000;
+
+    private final SimClock clock;
+    private final TimerWheel timers;
+    private final SimMedium medium;
+    private final Random random;
+
+    private final List<Node> nodes;
+    private final Set<Integer> received;
+    private final Set<Integer> flooded;
+    // <number of a flood, the nodes that could hear its origin>
+    private final Map<Integer, Set<Node>> floodReach;
+
+    private boolean framing;
+    private boolean reliable;
+    private int payloadLength = 2;
+    private int sinks = 1;
+    private boolean aggregating;
+    private boolean timeSync;
+    private int advertisers = 1;
+    private int floods;
+    private PropagationService.Suppression suppression = PropagationService.Suppression.NONE;
+
+    private long convergenceTime;
+    private long sent;
+    private long aggregated;
+    private long forwards;
+
+    private long floodsSent;
+    private long floodsExpected;
+
+    // Comparisons of the global time of synchronized nodes with the clock of the root
+    private long syncSamples;
+    private long syncViolations;
+    private double syncErrorSum;
+    private long syncMaxError;
+    private double syncBoundSum;
+
+    public Simulation(int count, double width, double height, long seed) {
+        if (count < 2 || count > MAX_NODES)
+            throw new IllegalArgumentException("The amount of nodes must be between 2 and " + MAX_NODES);
+
+        clock = new SimClock();
+        timers = new TimerWheel(clock);
+        random = new Random(seed);
+        medium = new SimMedium(clock, random);
+
+        nodes = new ArrayList<>(count);
+        received = new HashSet<>();
+        flooded = new HashSet<>();
+        floodReach = new HashMap<>();
+
+        // The first sink sits in the middle, the others anywhere
+        for (int i = 0; i < count; i++) {
+            Node node = new Node();
+            node.index = i;
+            node.ip = (byte) (i < (RoutingService.SINKS & 0xFF) ? i : i + 1);
+            node.x = i == 0 ? width / 2 : random.nextDouble() * width;
+            node.y = i == 0 ? height / 2 : random.nextDouble() * height;
+            nodes.add(node);
+        }
+    }
+
+    /**
+     * @return The medium, which may be tuned before the simulation is run
+     */
+    public SimMedium getMedium() {
+        return medium;
+    }
+
+    public void setFraming(boolean framing) {
+        this.framing = framing;
+    }
+
+    public void setReliable(boolean reliable) {
+        this.reliable = reliable;
+    }
+
+    /**
+     * @param payloadLength The length of the messages sent to the sink, at least 2 bytes
+     */
+    public void setPayloadLength(int payloadLength) {
+        this.payloadLength = Math.max(2, payloadLength);
+    }
+
+    /**
+     * Makes the nodes report their messages as events to be aggregated on the way, rather than
+     * sending them. Delivery is then measured by the event counts of the aggregates.
+     */
+    public void setAggregating(boolean aggregating) {
+        this.aggregating = aggregating;
+    }
+
+    /**
+     * Gives every node a drifting clock of its own, and runs the {@link TimeSyncService} on them.
+     */
+    public void setTimeSync(boolean timeSync) {
+        this.timeSync = timeSync;
+    }
+
+    /**
+     * @param advertisers The amount of advertisers every node runs at once
+     */
+    public void setAdvertisers(int advertisers) {
+        this.advertisers = advertisers;
+    }
+
+    /**
+     * @param sinks The amount of sinks, which are the nodes with the lowest addresses
+     */
+    public void setSinks(int sinks) {
+        this.sinks = Math.max(1, Math.min(sinks, nodes.size() - 1));
+    }
+
+    /**
+     * @param floods The amount of floods started by random nodes during the traffic phase
+     */
+    public void setFloods(int floods) {
+        this.floods = floods;
+    }
+
+    /**
+     * @param suppression How nodes decide which floods they pass on
+     */
+    public void setSuppression(PropagationService.Suppression suppression) {
+        this.suppression = suppression;
+    }
+
+    /**
+     * Boots all nodes and runs the simulation.
+     * @param duration          The virtual duration in milliseconds
+     * @param trafficStart      The moment after which nodes start sending to the sinks
+     * @param messagesPerNode   The amount of messages every node sends to the sinks
+     * @throws IllegalStateException If the sinks received more than was sent, which means
+     * duplicates got through
+     */
+    public Report run(long duration, long trafficStart, int messagesPerNode) {
+        long started = System.nanoTime();
+
+        for (Node node : nodes) {
+            node.radio = medium.createRadio(node.x, node.y);
+            node.clock = timeSync ? new DriftingClock(clock,
+                    (long) (random.nextDouble() * MAX_OFFSET),
+                    (random.nextDouble() * 2 - 1) * MAX_DRIFT) : clock;
+        }
+        Set<Node> connected = findConnected(nodes.subList(0, sinks));
+
+        for (Node node : nodes) {
+            clock.postDelayed(() -> boot(node), (long) (random.nextDouble() * BOOT_PERIOD));
+
+            if (isSink(node)) continue;
+            for (int i = 0; i < messagesPerNode; i++) {
+                int seq = i;
+                long at = trafficStart + (long) (random.nextDouble() * (duration - trafficStart) / 2);
+                clock.postDelayed(() -> send(node, seq), at);
+            }
+        }
+
+        for (int i = 0; i < floods; i++) {
+            int number = i;
+            Node node = nodes.get(random.nextInt(nodes.size()));
+            long at = trafficStart + (long) (random.nextDouble() * (duration - trafficStart) / 2);
+            clock.postDelayed(() -> flood(node, number), at);
+        }
+
+        convergenceTime = -1;
+        clock.postDelayed(() -> checkConvergence(connected), CONVERGENCE_CHECK);
+        if (timeSync) clock.postDelayed(this::checkSync, trafficStart);
+
+        long events = clock.runUntil(duration);
+
+        Report report = new Report();
+        report.nodes = nodes.size();
+        report.connected = connected.size();
+        report.duration = duration;
+        report.convergenceTime = convergenceTime;
+        report.sent = sent;
+        report.delivered = aggregating ? aggregated : received.size();
+        report.forwards = forwards;
+        report.floods = floodsSent;
+        report.floodsExpected = floodsExpected;
+        report.floodsReceived = flooded.size();
+        report.events = events;
+        report.syncSamples = syncSamples;
+        report.syncViolations = syncViolations;
+        report.syncError = syncSamples == 0 ? 0 : syncErrorSum / syncSamples;
+        report.syncMaxError = syncMaxError;
+        report.syncBound = syncSamples == 0 ? 0 : syncBoundSum / syncSamples;
+        report.synced = 0;
+        for (Node node : nodes) {
+            if (node.network != null && node.network.getTimeSyncService().isSynchronized()) {
+                report.synced++;
+            }
+        }
+        for (Node node : nodes) {
+            if (node.network == null) continue;
+            for (AdvertiseScheduler.Priority priority : AdvertiseScheduler.Priority.values()) {
+                report.overflows[priority.ordinal()] += node.network.getScheduler().getOverflows(priority);
+                report.expired[priority.ordinal()] += node.network.getScheduler().getExpired(priority);
+            }
+            report.advertiseRate += node.network.getAdvertiseRate() / nodes.size();
+            report.advertiseFailureRate += node.network.getAdvertiseFailureRate() / nodes.size();
+            report.missRate += node.network.getMissRate() / nodes.size();
+            report.rebroadcasts += node.network.getPropagationService().getRebroadcasts();
+            report.suppressed += node.network.getPropagationService().getSuppressed();
+        }
+        report.realTime = (System.nanoTime() - started) / 1000000;
+        report.stats = medium.getStats();
+
+        // Every message or event counts once, so more than were sent means a sink took a late
+        // copy of one for a new one
+        if (report.delivered > report.sent) {
+            throw new IllegalStateException(String.format(
+                    "Delivered %s of %s messages sent, duplicates got through%n%s",
+                    report.delivered, report.sent, report));
+        }
+        return report;
+    }
+
+    private void boot(Node node) {
+        node.network = new AdhocNetwork(node.ip, node.radio, node.clock, timers);
+        node.network.setFraming(framing);
+        node.network.setAdvertisers(advertisers);
+        node.network.getMessageService().setReliable(reliable);
+
+        if (isSink(node)) {
+            node.network.getRoutingService().setSink(true);
+            node.network.getMessageService().addListener(new MessageService.MessageListener() {
+                @Override
+                public void onMessageReceived(byte source, byte[] data) {
+                    if (data.length < 2) return;
+                    received.add(((source & 0xFF) << 16) | ((data[0] & 0xFF) << 8) | (data[1] & 0xFF));
+                }
+
+                @Override
+                public void onAggregateReceived(Aggregate aggregate) {
+                    aggregated += aggregate.count;
+                }
+
+                @Override
+                public void onMessageForward(byte source, byte nextHop) {
+                }
+            });
+        } else {
+            node.network.getMessageService().addListener(new MessageService.MessageListener() {
+                @Override
+                public void onMessageReceived(byte source, byte[] data) {
+                }
+
+                @Override
+                public void onMessageForward(byte source, byte nextHop) {
+                    forwards++;
+                }
+            });
+        }
+
+        node.network.getPropagationService().setSuppression(suppression);
+        node.network.getPropagationService().addListener(new PropagationService.FloodListener() {
+            @Override
+            public boolean onFlood(byte[] data, int rssi) {
+                if (data.length != FLOOD_LENGTH || data[FLOOD_LENGTH - 3] != FLOOD_TYPE) return true;
+
+                // Links too weak to count as connected still get a packet across once in a while
+                int number = ((data[FLOOD_LENGTH - 2] & 0xFF) << 8) | (data[FLOOD_LENGTH - 1] & 0xFF);
+                Set<Node> reach = floodReach.get(number);
+                if (reach != null && reach.contains(node)) flooded.add((number << 8) | (node.ip & 0xFF));
+                return true;
+            }
+        });
+
+        node.network.scan();
+        if (timeSync) node.network.getTimeSyncService().start();
+    }
+
+    private void checkSync() {
+        clock.postDelayed(this::checkSync, SYNC_CHECK);
+
+        // Everybody should agree on the root by now, the one with the lowest address
+        Node root = null;
+        for (Node node : nodes) {
+            if (node.network != null && node.network.getTimeSyncService().getRoot() == node.ip) {
+                if (root == null || (node.ip & 0xFF) < (root.ip & 0xFF)) root = node;
+            }
+        }
+        if (root == null) return;
+
+        long global = root.network.getTimeSyncService().getGlobalTime();
+        for (Node node : nodes) {
+            if (node == root || node.network == null) continue;
+            TimeSyncService sync = node.network.getTimeSyncService();
+            if (!sync.isSynchronized() || sync.getRoot() != root.ip) continue;
+
+            long error = Math.abs(sync.getGlobalTime() - global);
+            syncSamples++;
+            syncErrorSum += error;
+            syncBoundSum += sync.getError();
+            syncMaxError = Math.max(syncMaxError, error);
+            if (error > sync.getError()) syncViolations++;
+        }
+    }
+
+    private void send(Node node, int seq) {
+        sent++;
+        if (node.network == null) return;
+        byte[] payload = new byte[payloadLength];
+        payload[0] = (byte) (seq >> 8);
+        payload[1] = (byte) seq;
+        if (aggregating) {
+            TimeSyncService sync = node.network.getTimeSyncService();
+            node.network.getMessageService().report(RoutingService.SINKS, seq,
+                    sync.getGlobalTime(), sync.getError(), new byte[0]);
+        } else node.network.send(RoutingService.SINKS, payload);
+    }
+
+    private void flood(Node node, int number) {
+        if (node.network == null) return;
+        Set<Node> reach = findConnected(Collections.singletonList(node));
+        reach.remove(node);
+        floodReach.put(number, reach);
+        floodsSent++;
+        floodsExpected += reach.size();
+
+        byte[] data = new byte[FLOOD_LENGTH];
+        data[FLOOD_LENGTH - 3] = FLOOD_TYPE;
+        data[FLOOD_LENGTH - 2] = (byte) (number >> 8);
+        data[FLOOD_LENGTH - 1] = (byte) number;
+        node.network.getPropagationService().flood(data);
+    }
+
+    private void checkConvergence(Set<Node> connected) {
+        for (Node node : connected) {
+            if (isSink(node)) continue;
+            if (node.network == null
+                    || node.network.getRoutingService().getNextHop(RoutingService.SINKS) == -1) {
+                clock.postDelayed(() -> checkConvergence(connected), CONVERGENCE_CHECK);
+                return;
+            }
+        }
+
+        convergenceTime = clock.now();
+    }
+
+    private boolean isSink(Node node) {
+        return node.index < sinks;
+    }
+
+    /**
+     * @return The given nodes, and all nodes that can reach them over links whose average RSSI is
+     * above sensitivity
+     */
+    private Set<Node> findConnected(List<Node> from) {
+        Set<Node> connected = new HashSet<>();
+        Queue<Node> queue = new ArrayDeque<>();
+
+        for (Node node : from) {
+            connected.add(node);
+            queue.add(node);
+        }
+
+        while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            for (Node other : nodes) {
+                if (connected.contains(other)) continue;
+
+                Double rssi = node.radio.getLinkRssi(other.radio);
+                if (rssi == null || rssi < medium.getSensitivity()) continue;
+
+                connected.add(other);
+                queue.add(other);
+            }
+        }
+
+        return connected;
+    }
+
+    private static class Node {
+
+        // The sinks come first
+        public int index;
+        public byte ip;
+        public double x;
+        public double y;
+        public SimRadio radio;
+        public Clock clock;
+        public AdhocNetwork network;
+
+    }
+
+    /**
+     * The clock of a single node, which runs a bit faster or slower than virtual time. Tasks are
+     * still posted in virtual time, as the drift hardly matters for delays.
+     */
+    private static class DriftingClock implements Clock {
+
+        private final SimClock clock;
+        private final long offset;
+        private final double drift;
+
+        public DriftingClock(SimClock clock, long offset, double drift) {
+            this.clock = clock;
+            this.offset = offset;
+            this.drift = drift;
+        }
+
+        @Override
+        public long now() {
+            return offset + (long) (clock.nowMicros() * (1 + drift) / 1000);
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delay) {
+            clock.postDelayed(task, delay);
+        }
+
+    }
+
+    public static class Report {
+
+        public int nodes;
+        public int connected;
+        public long duration;
+        public long convergenceTime;
+        public long sent;
+        public long delivered;
+        public long forwards;
+        public long floods;
+        public long floodsExpected;
+        public long floodsReceived;
+        public long rebroadcasts;
+        public long suppressed;
+        public long[] overflows = new long[AdvertiseScheduler.Priority.values().length];
+        public long[] expired = new long[AdvertiseScheduler.Priority.values().length];
+        public long events;
+        public int synced;
+        public long syncSamples;
+        public long syncViolations;
+        public double syncError;
+        public long syncMaxError;
+        public double syncBound;
+        public double advertiseRate;
+        public double advertiseFailureRate;
+        public double missRate;
+        public long realTime;
+        public SimMedium.Stats stats;
+
+        public double getDeliveryRatio() {
+            return sent == 0 ? 0 : (double) delivered / sent;
+        }
+
+        /**
+         * @return The part of the nodes that could hear the origin of a flood, directly or over
+         * other nodes, that received it
+         */
+        public double getFloodCoverage() {
+            return floodsExpected == 0 ? 0 : (double) floodsReceived / floodsExpected;
+        }
+
+        /**
+         * @return The average fraction of time a node spends transmitting
+         */
+        public double getDutyCycle() {
+            return (double) stats.airtime / 1000 / duration / nodes;
+        }
+
+        @Override
+        public String toString() {
+            String sync = syncSamples == 0 ? "" : String.format(
+                    "%ntime sync: %s synchronized, error %.1f ms (max %s), bound %.1f ms, %s violations",
+                    synced, syncError, syncMaxError, syncBound, syncViolations);
+            String flood = floods == 0 ? "" : String.format(
+                    "%nfloods: %s, coverage %.1f%%, %s rebroadcasts, %s suppressed",
+                    floods, getFloodCoverage() * 100, rebroadcasts, suppressed);
+            return String.format(
+                    "%s nodes (%s connected to a sink), %.1f s simulated in %.1f s (%s events)%n" +
+                            "convergence: %s%n" +
+                            "delivery: %s/%s (%.1f%%), forwards: %s%n" +
+                            "queue overflows: %s, expired: %s%n" +
+                            "advertised: %.2f packets/s per node, %.1f%% failed to start%n" +
+                            "scanning: %.1f%% missed%n" +
+                            "duty cycle: %.3f%%, %s",
+                    nodes, connected, duration / 1e3, realTime / 1e3, events,
+                    convergenceTime < 0 ? "never" : String.format("%.1f s", convergenceTime / 1e3),
+                    delivered, sent, getDeliveryRatio() * 100, forwards,
+                    Arrays.toString(overflows), Arrays.toString(expired),
+                    advertiseRate, advertiseFailureRate * 100,
+                    missRate * 100,
+                    getDutyCycle() * 100, stats) + flood + sync;
+        }
+    }
+}
@@ -1,20 +1,27 @@
 package no.nordicsemi.android.nrfthingy.ClusterHead;
 
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.le.AdvertiseCallback;
 import android.bluetooth.le.AdvertiseData;
 import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.AdvertisingSet;
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
 import android.bluetooth.le.BluetoothLeAdvertiser;
-import android.os.CountDownTimer;
 import android.os.ParcelUuid;
 import android.util.Log;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.UUID;
 
 import cps.wsan.audio.AmplitudeLoud;
+import cps.wsan.network.AdhocNetwork;
+import cps.wsan.network.AdvertiseScheduler;
+import cps.wsan.network.BleRadio;
+import cps.wsan.network.EventLoop;
+import cps.wsan.network.TimerWheel;
 
 
 public class ClhAdvertise {
@@ -50,24 +57,46 @@ public class ClhAdvertise {
     private final static int MAX_ADVERTISE_LIST_ITEM=64; //max queue list for advertising
 
 
-    private int mMaxAdvAllowable=MAX_ADVERTISE_LIST_ITEM;
-    private int mBleClhAdvertisingStatus=BLE_CLH_ADVERTISING_STATUS_DISABLE;
-    private CountDownTimer mAdvertisingTimer;
+    private final EventLoop mLoop=EventLoop.getShared(); //all advertising state is handled on this thread
+    private final TimerWheel mTimers=mLoop.getTimers();
     private long mAdvInterval=0;
     private byte[] mAdvsettings=new byte[32];
     private byte mClhID=1;
     private boolean mIsSink=false;
     private byte mCurrentPacketID= (byte) 1;
-    private ArrayList<ClhAdvertisedData >mClhAdvDataList;
+    private final ClhRingBuffer mClhAdvDataList; //filled and emptied on the loop thread
+    private final ClhAdvertisedData mNextAdvData=new ClhAdvertisedData(); //packet taken from the list
+
+    //BLE 5 extended advertising when the controller has it: up to 251 bytes instead of 31,
+    //falls back to legacy advertising for good if the controller refuses an advertising set
+    private volatile boolean mExtended=BleRadio.isExtendedAdvertisingSupported(BluetoothAdapter.getDefaultAdapter());
+    private boolean mCodedPhy=false;
+
+    //advertisers running at the same time, each takes the next packet in the list in turn
+    //so up to mAdvSlotCount packets go out per mAdvInterval instead of one
+    private final AdvSlot[] mAdvSlots=new AdvSlot[BleRadio.DEFAULT_MAX_ADVERTISERS];
+    private volatile int mAdvSlotCount=1;
+
+    //when set, packets go to the advertise scheduler of this network instead of own advertisers
+    private volatile AdhocNetwork mNetwork;
+
+    //statistics, counted from the first advertised packet
+    private long mAdvStartTime=0;
+    private long mAdvPacketCount=0;
+    private long mAdvStartCount=0;
+    private long mAdvFailCount=0;
 
     public ClhAdvertise(){//constructor with no params
-        mClhAdvDataList= new ArrayList<ClhAdvertisedData>(MAX_ADVERTISE_LIST_ITEM);
+        this(new ClhRingBuffer(MAX_ADVERTISE_LIST_ITEM,ClhRingBuffer.OverflowPolicy.DROP_NEWEST));
     }
 
     //constructor with param
-    public ClhAdvertise(ArrayList<ClhAdvertisedData> clhAdvDataList, int maxAdvAllowable){
-        mMaxAdvAllowable=maxAdvAllowable;
+    public ClhAdvertise(ClhRingBuffer clhAdvDataList){
         mClhAdvDataList=clhAdvDataList;
+        //a queued sound sample is worthless once a newer one of the same Thingy is waiting:
+        //replace it in place, so a packet never waits behind more than one packet per Thingy
+        mClhAdvDataList.setLastValueWins(true);
+        for(int i=0;i<mAdvSlots.length;i++) mAdvSlots[i]=new AdvSlot(i);
     }
 
 
@@ -98,30 +127,29 @@ public class ClhAdvertise {
         advsettings[ADV_SETTING_BYTE_SENDNAME] = ADV_SETTING_SENDNAME_YES;
         advsettings[ADV_SETTING_BYTE_SENDTXPOWER] = ADV_SETTING_SENDTXPOWER_NO;
 
-        //on advertising -> stop advertiser
-        if(mBleClhAdvertisingStatus==BLE_CLH_ADVERTISING_STATUS_START)  stopAdvertiseClhData();
-
-        //set up timer for each packet advertising, expire interval in mAdvInterval
-        mAdvertisingTimer=new CountDownTimer(mAdvInterval,100) {
-            @Override
-            public void onTick(long millisUntilFinished) {//tick, not used
-            }
-
-            @Override
-            public void onFinish() {
-                if((mBleClhAdvertisingStatus==BLE_CLH_ADVERTISING_STATUS_STOP_WAIT)||
-                        (mBleClhAdvertisingStatus==BLE_CLH_ADVERTISING_STATUS_STOP))
-                {
-                    mBleClhAdvertisingStatus=BLE_CLH_ADVERTISING_STATUS_STOP;
-                }
-                else
-                {
-                    mBleClhAdvertisingStatus=BLE_CLH_ADVERTISING_STATUS_STOP;
-                    mAdvertiser.stopAdvertising(advertisingCallback);
-                    nextAdvertisingPacket(); //advertise next packet
+        for(AdvSlot slot:mAdvSlots)
+        {
+            //on advertising -> stop advertiser
+            if(slot.mStatus==BLE_CLH_ADVERTISING_STATUS_START)  stopAdvertiseClhData(slot);
+
+            //set up timer for each packet advertising, expire interval in mAdvInterval
+            slot.mTimer=new TimerWheel.Timer(new Runnable() {
+                @Override
+                public void run() {
+                    if((slot.mStatus==BLE_CLH_ADVERTISING_STATUS_STOP_WAIT)||
+                            (slot.mStatus==BLE_CLH_ADVERTISING_STATUS_STOP))
+                    {
+                        slot.mStatus=BLE_CLH_ADVERTISING_STATUS_STOP;
+                    }
+                    else
+                    {
+                        slot.mStatus=BLE_CLH_ADVERTISING_STATUS_STOP;
+                        stopAdvertiser(slot);
+                        nextAdvertisingPacket(slot); //advertise next packet
+                    }
                 }
-            }
-        };
+            });
+        }
         Log.i(LOG_TAG,"End Initializing func");
 
         //start
@@ -136,6 +164,11 @@ public class ClhAdvertise {
     3nd restart advertiser for new data and previous settings
      */
     public int updateCLHdata(byte data[])
+    {
+        return updateCLHdata(mAdvSlots[0],data);
+    }
+
+    private int updateCLHdata(AdvSlot slot,byte data[])
     {
         int error;
         byte[] advData= new byte[256];
@@ -160,9 +193,9 @@ public class ClhAdvertise {
             return ClhErrors.ERROR_CLH_ADV_NOT_YET_SETTING;
         }
 
-        Log.i(LOG_TAG, "Advertiser: update data");
-        stopAdvertiseClhData();
-        error=startAdvertiser(mAdvsettings,advData);
+        Log.i(LOG_TAG, "Advertiser: update data, slot "+slot.mIndex);
+        stopAdvertiseClhData(slot);
+        error=startAdvertiser(slot,mAdvsettings,advData);
 
         Log.i(LOG_TAG, "End update data func");
         return error;
@@ -173,18 +206,25 @@ public class ClhAdvertise {
     //------------------------
     // advertising next data in the waiting list
     public void nextAdvertisingPacket(){
+        nextAdvertisingPacket(mAdvSlots[0]);
+    }
 
-        if (mClhAdvDataList.size()>0)
-        {//list not empty, advertise item 0 in the list
-            byte[] mAdvData = mClhAdvDataList.get(0).getParcelClhData();
-            mClhAdvDataList.remove(0);
-            updateCLHdata(mAdvData);
+    private void nextAdvertisingPacket(AdvSlot slot){
+
+        if (slot.mIndex>=mAdvSlotCount)
+        {//slot no longer in use
+            slot.mStatus=BLE_CLH_ADVERTISING_STATUS_STOP;
+        }
+        else if (mClhAdvDataList.poll(mNextAdvData))
+        {//list not empty, advertise the oldest item in the list
+            byte[] mAdvData = mNextAdvData.getParcelClhData();
+            updateCLHdata(slot,mAdvData);
             Log.i(LOG_TAG,"new data: size:"+mClhAdvDataList.size() + ",data:" +Arrays.toString(mAdvData));
         }
         else
         {//empty list
-            mBleClhAdvertisingStatus=BLE_CLH_ADVERTISING_STATUS_NO_DATA;
-            mAdvertisingTimer.start(); // start timer to periodly check (100ms) the list later
+            slot.mStatus=BLE_CLH_ADVERTISING_STATUS_NO_DATA;
+            startAdvertisingTimer(slot); // start timer to check the list later
         }
     }
 
@@ -196,19 +236,31 @@ public class ClhAdvertise {
             =false: packet received from other cluster head, need forwarding
      */
     public void addAdvPacketToBuffer(ClhAdvertisedData data,boolean isOrginal)
+    {//may be called from any thread, the list is only changed on the loop thread
+        mLoop.execute(() -> addAdvPacket(data,isOrginal));
+    }
+
+    private void addAdvPacket(ClhAdvertisedData data,boolean isOrginal)
     {
-        if(mClhAdvDataList.size()<mMaxAdvAllowable) {
-            if(isOrginal) {//this packet come from this device-> increase PacketID
-                mCurrentPacketID++;
-                data.setPacketID(mCurrentPacketID);
-            }
-            else
-            {//received packet over BLE scan, from other cluster head -> increase hopscount
-                byte hopcounts=data.getHopCounts();
-                hopcounts++;
-                data.setHopCount(hopcounts);
-            }
-            mClhAdvDataList.add(data);
+        if(isOrginal) {//this packet come from this device-> increase PacketID
+            mCurrentPacketID++;
+            data.setPacketID(mCurrentPacketID);
+        }
+        else
+        {//received packet over BLE scan, from other cluster head -> increase hopscount
+            byte hopcounts=data.getHopCounts();
+            hopcounts++;
+            data.setHopCount(hopcounts);
+        }
+        AdhocNetwork network=mNetwork;
+        if(network!=null)
+        {//the network advertises it among the packets of its other protocols
+            network.advertise(ClhConst.CLH_SERVICE_UUID, data.getParcelClhData().clone(),
+                    AdvertiseScheduler.Priority.DATA, AdhocNetwork.MESSAGE_TTL);
+            return;
+        }
+        //the list copies the packet, when it is full its overflow policy decides what is dropped
+        if(mClhAdvDataList.offer(data)) {
             Log.i(LOG_TAG,"add Adv packet, size:"+mClhAdvDataList.size());
         }
     }
@@ -247,13 +299,12 @@ public class ClhAdvertise {
                 ClhAdvertisedData advData = new ClhAdvertisedData();
                 advData.setSourceID(mClhID);
                 advData.setDestId((byte) 0);
-                advData.setThingyDataType((byte) 10);
+                advData.setThingyDataType(ClhConst.THINGY_DATA_TYPE_SOUND_POWER);
                 advData.setThingyId((byte) 1);
                 advData.setHopCount((byte) 0);
                 advData.setSoundPower(sounddata);
                 addAdvPacketToBuffer(advData,true);
-                ClhAdvertisedData temp=mClhAdvDataList.get(mClhAdvDataList.size()-1);
-                Log.i(LOG_TAG,"add new sound data:"+ Arrays.toString( temp.getParcelClhData()));
+                Log.i(LOG_TAG,"add new sound data:"+ Arrays.toString(advData.getParcelClhData()));
                 mSoundcount=0;
             }
         }
@@ -276,13 +327,14 @@ public class ClhAdvertise {
                  0: ADV_SETTING_SENDTXPOWER_NO (default)
                  1: ADV_SETTING_SENDTXPOWER_YES
  --------*/
-    private int startAdvertiser(byte[] settings, byte[] data) {
+    private int startAdvertiser(AdvSlot slot, byte[] settings, byte[] data) {
         //setting and start advertiser
         //@param: settings: configuration
         //data: input data [0]: length
         //  if lenght =0: send UUID only
 
         Log.i(LOG_TAG,"Start Start Advertizer func");
+        slot.mData=data; //kept to try again if the advertiser fails to start
 
         AdvertiseSettings.Builder advSettingsBuilder = new AdvertiseSettings.Builder()
                 .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_LOW)
@@ -329,7 +381,7 @@ public class ClhAdvertise {
             Log.i(LOG_TAG, "current length: "+ advDatalen);
             advDatalen=data.length+advDatalen+3 + 2 ; // include: 3(default) + name (vary:option) + txpower (3:option)
             // + 2(setting for manufacturer) + data
-            if(advDatalen>31)
+            if(advDatalen>getMaxAdvDataLength())
             {//if data length too long, send UUID
                 Log.i(LOG_TAG, "Too long advertise data:" + advDatalen);
                 return ClhErrors.ERROR_CLH_ADV_TOO_LONG_DATA;
@@ -347,7 +399,37 @@ public class ClhAdvertise {
             }
         }
         AdvertiseData sendData = advDataBuilder.build();
-        mAdvertiser.startAdvertising(advSettings, sendData, null, advertisingCallback);
+        if(mExtended)
+        {//same interval and power as the legacy mode, on the coded PHY if it is turned on
+            int phy=mCodedPhy? BluetoothDevice.PHY_LE_CODED: BluetoothDevice.PHY_LE_1M;
+            int interval;
+            switch (settings[ADV_SETTING_BYTE_MODE]) {
+                case ADV_SETTING_MODE_LOWLATENCY:
+                    interval=AdvertisingSetParameters.INTERVAL_LOW;
+                    break;
+                case ADV_SETTING_MODE_BALANCE:
+                    interval=AdvertisingSetParameters.INTERVAL_MEDIUM;
+                    break;
+                default:
+                    interval=AdvertisingSetParameters.INTERVAL_HIGH;
+                    break;
+            }
+            AdvertisingSetParameters advParameters = new AdvertisingSetParameters.Builder()
+                    .setLegacyMode(false)
+                    .setConnectable(false)
+                    .setScannable(false)
+                    .setInterval(interval)
+                    .setTxPowerLevel(AdvertisingSetParameters.TX_POWER_LOW)
+                    .setIncludeTxPower(settings[ADV_SETTING_BYTE_SENDTXPOWER] == ADV_SETTING_SENDTXPOWER_YES)
+                    .setPrimaryPhy(phy)
+                    .setSecondaryPhy(phy)
+                    .build();
+            mAdvertiser.startAdvertisingSet(advParameters, sendData, null, null, null, slot.mSetCallback);
+        }
+        else {
+            mAdvertiser.startAdvertising(advSettings, sendData, null, slot.mCallback);
+        }
+        mAdvStartCount++;
 
 
         Log.i(LOG_TAG,"End Start advertizer func");
@@ -357,35 +439,119 @@ public class ClhAdvertise {
 
     public void stopAdvertiseClhData()
     {
+        for(AdvSlot slot:mAdvSlots) stopAdvertiseClhData(slot);
+    }
 
-        Log.i(LOG_TAG, "Stop CLH Advertiser func");
-        mAdvertiser.stopAdvertising(advertisingCallback);
-        if(mAdvertisingTimer!=null){
-            mBleClhAdvertisingStatus=BLE_CLH_ADVERTISING_STATUS_STOP_WAIT;
-            mAdvertisingTimer.cancel();//stop timer
+    private void stopAdvertiseClhData(AdvSlot slot)
+    {
+
+        Log.i(LOG_TAG, "Stop CLH Advertiser func, slot "+slot.mIndex);
+        stopAdvertiser(slot);
+        if(slot.mTimer!=null){
+            slot.mStatus=BLE_CLH_ADVERTISING_STATUS_STOP_WAIT;
+            mLoop.execute(() -> mTimers.cancel(slot.mTimer));//stop timer, timers belong to the loop thread
         }
         else{
-            mBleClhAdvertisingStatus=BLE_CLH_ADVERTISING_STATUS_STOP;
+            slot.mStatus=BLE_CLH_ADVERTISING_STATUS_STOP;
         }
         Log.i(LOG_TAG, "End Stop CLH Advertizer func");
     }
 
-    private final AdvertiseCallback advertisingCallback = new AdvertiseCallback() {
-        @Override
-        public void onStartSuccess(AdvertiseSettings settingsInEffect) {
-            super.onStartSuccess(settingsInEffect);
-            Log.i(LOG_TAG, "Start Advertising Success "+ settingsInEffect.describeContents());
-            mBleClhAdvertisingStatus=BLE_CLH_ADVERTISING_STATUS_START;
-            mAdvertisingTimer.start();//start timer for next packet
-        }
+    private void stopAdvertiser(AdvSlot slot)
+    {
+        if(mExtended) mAdvertiser.stopAdvertisingSet(slot.mSetCallback);
+        else mAdvertiser.stopAdvertising(slot.mCallback);
+    }
+
+    //restart the timer for the next packet, replacing the pending one (on the loop thread only)
+    private void startAdvertisingTimer(AdvSlot slot)
+    {
+        mTimers.schedule(slot.mTimer,mAdvInterval);
+    }
+
+    //callbacks come on the main thread, hand them over to the loop thread
+    private void onAdvertisingStarted(AdvSlot slot)
+    {
+        mLoop.execute(() -> {
+            if(mAdvPacketCount++==0) mAdvStartTime=mLoop.now();
+            slot.mStatus=BLE_CLH_ADVERTISING_STATUS_START;
+            startAdvertisingTimer(slot);//start timer for next packet
+            if(slot.mIndex==0) armAdvSlots();//other advertisers follow the first one
+        });
+    }
 
-        @Override
-        public void onStartFailure(int errorCode) {
-            super.onStartFailure(errorCode);
-            Log.i(LOG_TAG, "Advertising onStartFailure: " + errorCode);
-            mBleClhAdvertisingStatus=BLE_CLH_ADVERTISING_STATUS_STOP;
+    /*an advertiser did not start, the slot goes on with the next packet after the interval, so
+    advertising never stops for good
+    fallback: extended advertising was just turned off, the packet is tried again right away as
+    legacy advertising, unless it is too long for that
+     */
+    private void onAdvertisingFailed(AdvSlot slot, int errorCode, boolean fallback)
+    {
+        mLoop.execute(() -> {
+            mAdvFailCount++;
+            slot.mStatus=BLE_CLH_ADVERTISING_STATUS_STOP;
+            if(errorCode==AdvertiseCallback.ADVERTISE_FAILED_TOO_MANY_ADVERTISERS && slot.mIndex<mAdvSlotCount)
+            {//controller (or other apps) use up the advertisers, keep to the ones that work
+                mAdvSlotCount=Math.max(1,slot.mIndex);
+                Log.i(LOG_TAG, "Too many advertisers, use "+mAdvSlotCount);
+            }
+            if(fallback && slot.mData!=null && slot.mIndex<mAdvSlotCount
+                    && startAdvertiser(slot,mAdvsettings,slot.mData)==ClhErrors.ERROR_CLH_NO) return;
+
+            slot.mStatus=BLE_CLH_ADVERTISING_STATUS_NO_DATA;
+            startAdvertisingTimer(slot);
+        });
+    }
+
+    //one advertiser with its own timer and callbacks
+    private class AdvSlot {
+        private final int mIndex;
+        private int mStatus=BLE_CLH_ADVERTISING_STATUS_DISABLE;
+        private TimerWheel.Timer mTimer;
+        private byte[] mData; //packet last given to the advertiser
+
+        private AdvSlot(int index){
+            mIndex=index;
         }
-    };
+
+        private final AdvertiseCallback mCallback = new AdvertiseCallback() {
+            @Override
+            public void onStartSuccess(AdvertiseSettings settingsInEffect) {
+                super.onStartSuccess(settingsInEffect);
+                Log.i(LOG_TAG, "Start Advertising Success "+ settingsInEffect.describeContents());
+                onAdvertisingStarted(AdvSlot.this);
+            }
+
+            @Override
+            public void onStartFailure(int errorCode) {
+                super.onStartFailure(errorCode);
+                Log.i(LOG_TAG, "Advertising onStartFailure: " + errorCode);
+                onAdvertisingFailed(AdvSlot.this, errorCode, false);
+            }
+        };
+
+        //same for extended advertising, a set is started for every packet like the legacy advertiser
+        private final AdvertisingSetCallback mSetCallback = new AdvertisingSetCallback() {
+            @Override
+            public void onAdvertisingSetStarted(AdvertisingSet advertisingSet, int txPower, int status) {
+                super.onAdvertisingSetStarted(advertisingSet, txPower, status);
+                if(status==AdvertisingSetCallback.ADVERTISE_SUCCESS) {
+                    Log.i(LOG_TAG, "Start Advertising Set Success, tx power: "+ txPower);
+                    onAdvertisingStarted(AdvSlot.this);
+                }
+                else {
+                    Log.i(LOG_TAG, "Advertising Set onStartFailure: " + status);
+                    boolean fallback=status!=AdvertisingSetCallback.ADVERTISE_FAILED_TOO_MANY_ADVERTISERS;
+                    if(fallback) {
+                        //controller does not do extended advertising after all, use legacy from now on
+                        Log.i(LOG_TAG, "fall back to legacy advertising");
+                        mExtended=false;
+                    }
+                    onAdvertisingFailed(AdvSlot.this, status, fallback);
+                }
+            }
+        };
+    }
 
     private int checkBLEAdvertiser()
     {
@@ -401,9 +567,73 @@ public class ClhAdvertise {
         return ClhErrors.ERROR_CLH_NO;
     }
 
+    //max length of the advertising data, 31 bytes for legacy advertising
+    public int getMaxAdvDataLength()
+    {
+        return mExtended? BleRadio.getMaxAdvertisingDataLength(BluetoothAdapter.getDefaultAdapter())
+                : BleRadio.LEGACY_ADVERTISING_DATA_LENGTH;
+    }
+
+    //advertise on the coded PHY for longer range, only heard by cluster heads that support it
+    public void setCodedPhy(boolean codedPhy)
+    {
+        mCodedPhy=codedPhy && mExtended && BluetoothAdapter.getDefaultAdapter().isLeCodedPhySupported();
+    }
+
+    /*set the number of advertisers running at the same time, up to
+    BleRadio.DEFAULT_MAX_ADVERTISERS. The extra advertisers start once the first one advertises,
+    spread over one interval so packets go out evenly. Advertisers above the number stop after
+    their current packet
+     */
+    public void setAdvSlots(int count)
+    {
+        mLoop.execute(() -> {
+            mAdvSlotCount=Math.max(1,Math.min(mAdvSlots.length,count));
+            if(mAdvSlots[0].mStatus==BLE_CLH_ADVERTISING_STATUS_START) armAdvSlots();
+        });
+    }
+
+    //start the timers of the extra advertisers that are idle (on the loop thread only)
+    private void armAdvSlots()
+    {
+        for(int i=1;i<mAdvSlotCount;i++)
+        {
+            AdvSlot slot=mAdvSlots[i];
+            if(slot.mTimer==null || slot.mTimer.isScheduled() || slot.mStatus==BLE_CLH_ADVERTISING_STATUS_START) continue;
+            slot.mStatus=BLE_CLH_ADVERTISING_STATUS_NO_DATA;
+            mTimers.schedule(slot.mTimer,mAdvInterval*i/mAdvSlotCount);
+        }
+    }
+
+    public int getAdvSlots()
+    {
+        return mAdvSlotCount;
+    }
+
+    //packets that went on air per second, since the first one
+    public double getAdvPacketsPerSecond()
+    {
+        long elapsed=mLoop.now()-mAdvStartTime;
+        return (mAdvPacketCount==0 || elapsed<=0)? 0: mAdvPacketCount*1000.0/elapsed;
+    }
+
+    //fraction of started advertisers that failed
+    public double getAdvStartFailureRate()
+    {
+        return mAdvStartCount==0? 0: (double)mAdvFailCount/mAdvStartCount;
+    }
+
+    /*advertise over the given network rather than with own advertisers, so the cluster head shares
+    the radio with the other protocols of the network. null goes back to own advertisers.
+     */
+    public void setNetwork(AdhocNetwork network)
+    {
+        mNetwork=network;
+    }
+
     public void clearAdvList()
     {
-        mClhAdvDataList.clear();
+        mLoop.execute(mClhAdvDataList::clear);
     }
 
     //set Cluster head ID
@@ -442,11 +672,35 @@ public class ClhAdvertise {
         }
     }
 
-    public ArrayList<ClhAdvertisedData> getAdvertiseList()
+    public ClhRingBuffer getAdvertiseList()
     {
         return mClhAdvDataList;
     }
 
+    //what to drop when the advertise list is full, see ClhRingBuffer.OverflowPolicy
+    public void setAdvListOverflowPolicy(ClhRingBuffer.OverflowPolicy policy)
+    {
+        mClhAdvDataList.setOverflowPolicy(policy);
+    }
+
+    //packets dropped or coalesced because the advertise list was full
+    public long getAdvListOverflows()
+    {
+        return mClhAdvDataList.getOverflows();
+    }
+
+    //last-value-wins: a newer packet of the same source, Thingy and data type replaces the queued one
+    public void setAdvListLastValueWins(boolean lastValueWins)
+    {
+        mLoop.execute(() -> mClhAdvDataList.setLastValueWins(lastValueWins)); //on the producer thread
+    }
+
+    //packets that replaced an older queued packet of the same source, Thingy and data type
+    public long getAdvListReplaced()
+    {
+        return mClhAdvDataList.getReplaced();
+    }
+
     public final byte[] getAdvSettings()
     {
         return mAdvsettings;
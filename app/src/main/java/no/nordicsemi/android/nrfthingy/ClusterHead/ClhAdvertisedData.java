@@ -33,6 +33,12 @@ public class ClhAdvertisedData   {
         this.setSoundPower(newObj.getSoundPower());*/
     }
 
+    //same as Copy, but into the existing array, for packets that are copied over and over (queues)
+    public void copyFrom(ClhAdvertisedData other) {
+        byte[] clhdata=other.getParcelClhData();
+        System.arraycopy(clhdata, 0, ClhAdvData, 0, Math.min(clhdata.length, ClhAdvData.length));
+    }
+
     public byte[] parcelAdvData(SparseArray<byte[]> manufacturerData, int index)
     {
         ClhAdvData[SOURCE_CLH_ID_POS]=(byte)(manufacturerData.keyAt(index)>>8);
@@ -51,6 +57,13 @@ public class ClhAdvertisedData   {
     }
 
 
+    //same for a packet received as service data over an AdhocNetwork: [source][packet ID][data]
+    public byte[] parcelAdvData(byte[] buffer, int offset, int length)
+    {
+        System.arraycopy(buffer, offset, ClhAdvData, SOURCE_CLH_ID_POS, Math.min(length, ClhAdvData.length));
+        return ClhAdvData;
+    }
+
     public void setSourceID(byte sourceID)
     {
         ClhAdvData[SOURCE_CLH_ID_POS]= (byte) (sourceID & 0x007F);
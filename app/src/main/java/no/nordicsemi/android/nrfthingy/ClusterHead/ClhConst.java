@@ -1,4 +1,7 @@
 package no.nordicsemi.android.nrfthingy.ClusterHead;
+
+import java.util.UUID;
+
 /*important constants*/
 public class ClhConst {
     //for scanner
@@ -8,9 +11,15 @@ public class ClhConst {
     //----------
     //for scanner
     public static final int MIN_SCAN_RSSI_THRESHOLD=-80;    //min RSSI of receive packet from other clusterheads
-    public static final long SCAN_PERIOD = 60000*5;   //scan 10 minutes
-    public static final long REST_PERIOD=1000; //rest in 1 sec
-    public static final int SCAN_HISTORY_LIST_SIZE=512; //max item in history list
+    public static final int SCAN_HISTORY_WINDOW=64; //packet IDs remembered per source cluster head (max 128)
+    public static final long SCAN_HISTORY_PERIOD=30000; //forget a source silent for 30 s
+
+    //Thingy data type of a packet
+    public static final byte THINGY_DATA_TYPE_SOUND_POWER=10;
+
+    //on top of an AdhocNetwork: service data UUID of cluster head packets (16 bit, like the frames)
+    //packets are the manufacturer spec + data as advertised on their own: [source][packet ID][data]
+    public static final UUID CLH_SERVICE_UUID=UUID.fromString("0000fff8-0000-1000-8000-00805f9b34fb");
 
     //for processor
     public static final int MAX_PROCESS_LIST_ITEM=128; //max items in waiting list for processing
@@ -0,0 +1,171 @@
+package no.nordicsemi.android.nrfthingy.ClusterHead;
+
+/*history of received packets, to forward every packet only once
+- per source cluster head: the highest packet ID seen, and a bitmap of the packet IDs before it
+  (sliding window), so checking a packet is O(1) and never allocates
+- packet IDs are a byte and wrap around, a window of at most 128 keeps old and new apart
+- a source that has been silent for the expiry period is forgotten, so a cluster head that
+  restarted with another packet ID is not taken for a duplicate
+- memory: mWindowSize bits per source, 128 sources
+false positives: a packet further back than the window can't be checked, it is rejected as a
+duplicate although it may be new. Those are counted apart, raise the window if there are many
+missed: packet IDs a source skipped, until they turn up late after all. Not every packet of a
+source passes by, so this is an upper bound on what the scanner failed to receive
+ */
+public class ClhDuplicateCache {
+    private static final int SOURCES=128; //source cluster head ID: 0-127
+    public static final int MAX_WINDOW_SIZE=128;
+
+    private final int mWindowSize;
+    private final long mExpiryPeriod;
+
+    //per source: the window as 2 words, bit 0 of word 0 is the highest packet ID
+    private final long[] mWindows=new long[SOURCES*2];
+    private final byte[] mHighest=new byte[SOURCES];
+    private final long[] mLastSeen=new long[SOURCES];
+    private final boolean[] mKnown=new boolean[SOURCES];
+    private final int[] mAdvanced=new int[SOURCES]; //packet IDs the window moved on since known
+
+    //statistics
+    private long mAcceptedCount=0;
+    private long mDuplicateCount=0;
+    private long mTooOldCount=0;
+    private long mExpiredCount=0;
+    private long mMissedCount=0;
+
+    //params: windowSize: packet IDs remembered per source (1-128), expiryPeriod: ms
+    public ClhDuplicateCache(int windowSize, long expiryPeriod)
+    {
+        mWindowSize=Math.max(1,Math.min(MAX_WINDOW_SIZE,windowSize));
+        mExpiryPeriod=expiryPeriod;
+    }
+
+    /*record a packet
+    @return true if the packet is new, false if it was received before (or is too old to tell)
+     */
+    public boolean accept(byte sourceID, byte packetID, long now)
+    {
+        int s=sourceID&0x7F;
+        if(!mKnown[s] || now>=mLastSeen[s]+mExpiryPeriod)
+        {//first packet of this source, or it has been silent too long
+            if(mKnown[s]) mExpiredCount++;
+            mKnown[s]=true;
+            mHighest[s]=packetID;
+            mWindows[2*s]=1L;
+            mWindows[2*s+1]=0;
+            mAdvanced[s]=0;
+            mLastSeen[s]=now;
+            mAcceptedCount++;
+            return true;
+        }
+
+        int ahead=(byte)(packetID-mHighest[s]);
+        if(ahead>0)
+        {//newer: slide the window forward
+            shift(s,ahead);
+            mWindows[2*s]|=1L;
+            mHighest[s]=packetID;
+            mLastSeen[s]=now;
+            mAdvanced[s]=Math.min(mWindowSize,mAdvanced[s]+ahead);
+            mMissedCount+=ahead-1;
+            mAcceptedCount++;
+            return true;
+        }
+
+        int behind=-ahead;
+        if(behind>=mWindowSize)
+        {
+            mTooOldCount++;
+            return false;
+        }
+
+        int word=2*s+(behind>>6);
+        long bit=1L<<(behind&63);
+        if((mWindows[word]&bit)!=0)
+        {
+            mDuplicateCount++;
+            return false;
+        }
+        mWindows[word]|=bit;
+        mLastSeen[s]=now;
+        if(behind<mAdvanced[s]) mMissedCount--; //counted as missed when the window moved on
+        mAcceptedCount++;
+        return true;
+    }
+
+    //shift the 128 bit window of source s up by n
+    private void shift(int s, int n)
+    {
+        long low=mWindows[2*s];
+        long high=mWindows[2*s+1];
+        if(n>=128)
+        {
+            low=0;
+            high=0;
+        }
+        else if(n>=64)
+        {
+            high=low<<(n-64);
+            low=0;
+        }
+        else
+        {
+            high=(high<<n)|(low>>>(64-n));
+            low=low<<n;
+        }
+        mWindows[2*s]=low;
+        mWindows[2*s+1]=high;
+    }
+
+    public void clear()
+    {
+        for(int i=0;i<SOURCES;i++) mKnown[i]=false;
+    }
+
+    public int getWindowSize()
+    {
+        return mWindowSize;
+    }
+
+    public long getAcceptedCount()
+    {
+        return mAcceptedCount;
+    }
+
+    //packets that were received before
+    public long getDuplicateCount()
+    {
+        return mDuplicateCount;
+    }
+
+    //packets rejected only because they were too far behind the window: possible false positives
+    public long getTooOldCount()
+    {
+        return mTooOldCount;
+    }
+
+    //sources forgotten after being silent for the expiry period
+    public long getExpiredCount()
+    {
+        return mExpiredCount;
+    }
+
+    //packet IDs skipped by their source, upper bound of the packets the scanner missed
+    public long getMissedCount()
+    {
+        return mMissedCount;
+    }
+
+    public double getMissRate()
+    {
+        long total=mAcceptedCount+mMissedCount;
+        return total==0?0:(double)mMissedCount/total;
+    }
+
+    //upper bound of the false positive rate: too old packets of all packets checked
+    public double getFalsePositiveRate()
+    {
+        long total=mAcceptedCount+mDuplicateCount+mTooOldCount;
+        return total==0?0:(double)mTooOldCount/total;
+    }
+}
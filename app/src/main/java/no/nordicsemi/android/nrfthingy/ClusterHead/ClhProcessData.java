@@ -1,50 +1,371 @@
 package no.nordicsemi.android.nrfthingy.ClusterHead;
 
-import android.os.Handler;
 import android.util.Log;
-import android.util.SparseArray;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import cps.wsan.network.EventLoop;
+
+/*processing of the packets that reach a sink
+- the scanner adds packets to the process list, a worker thread of its own takes them off again,
+  so the scanner never waits for processing
+- per stream (source cluster head + Thingy): the sound power samples of the last STATS_WINDOW, in
+  primitive arrays, for max, mean, rate and last seen. The arrays hold the samples of a stream
+  that advertises once per ClhConst.ADVERTISING_INTERVAL, of a faster stream max and mean only
+  cover the last WINDOW_SAMPLES
+- zone: the area of a cluster head, as loud as the loudest of its Thingys (mean over the window).
+  The loudest zone is updated with every packet, listeners hear when it changes
+statistics may be queried from any thread, listeners are called on the worker thread
+ */
 public class ClhProcessData {
+    private static final String LOG_TAG="CLH Process:";
 
     public static final int MAX_PROCESS_LIST_ITEM=128;
-    private int mMaxProcAllowable=MAX_PROCESS_LIST_ITEM;
-    private ArrayList<ClhAdvertisedData> mClhProcessDataList;
+    public static final long STATS_WINDOW=10000; //ms of samples per stream
+    public static final int NO_ZONE=-1;
+
+    private static final int WINDOW_SAMPLES=(int)(STATS_WINDOW/ClhConst.ADVERTISING_INTERVAL); //per stream
+    private static final int MAX_STREAMS=64;
+    private static final int ZONES=128;          //source cluster head ID: 0-127
+    private static final long TICK_PERIOD=1000;  //drop samples that left the window
+
+    public interface LoudestZoneListener {
+        //zone: cluster head ID or NO_ZONE if all are silent, soundPower: its mean sound power
+        void onLoudestZoneChanged(int zone, int soundPower);
+    }
+
+    //filled by the scanner on the loop thread, emptied by the worker
+    private final ClhRingBuffer mClhProcessDataList;
+    private final ClhAdvertisedData mPacket=new ClhAdvertisedData(); //worker only
+    private final AtomicBoolean mDrainScheduled=new AtomicBoolean();
+    private final Runnable mDrainTask=this::drain;
+    private final Runnable mTickTask=this::tick;
+    private volatile EventLoop mWorker;
+    private final List<LoudestZoneListener> mListeners=new CopyOnWriteArrayList<>();
+
+    //streams, <source << 8 | thingy, stream> with -1 for none
+    private final short[] mStreamOf=new short[ZONES<<8];
+    private final byte[] mStreamSource=new byte[MAX_STREAMS];
+    private final byte[] mStreamThingy=new byte[MAX_STREAMS];
+    private int mStreamCount=0;
+
+    //per stream: a ring of samples <time, sound power>, and their sum and max
+    private final long[] mTimes=new long[MAX_STREAMS*WINDOW_SAMPLES];
+    private final int[] mValues=new int[MAX_STREAMS*WINDOW_SAMPLES];
+    private final int[] mFirst=new int[MAX_STREAMS];
+    private final int[] mCount=new int[MAX_STREAMS];
+    private final long[] mSum=new long[MAX_STREAMS];
+    private final int[] mMax=new int[MAX_STREAMS];
+    private final long[] mLastSeen=new long[MAX_STREAMS];
+
+    //per zone: its loudness, and the loudest of all
+    private final int[] mZoneLoudness=new int[ZONES];
+    private final boolean[] mZoneActive=new boolean[ZONES];
+    private int mLoudestZone=NO_ZONE;
+
+    //statistics
+    private long mProcessedCount=0;
+    private long mUntrackedCount=0; //samples of streams beyond MAX_STREAMS
 
 
 
     public ClhProcessData()
     {
-        mClhProcessDataList=new ArrayList<ClhAdvertisedData>(MAX_PROCESS_LIST_ITEM);
-
+        this(new ClhRingBuffer(MAX_PROCESS_LIST_ITEM,ClhRingBuffer.OverflowPolicy.DROP_NEWEST));
     }
 
-    public ClhProcessData(ArrayList<ClhAdvertisedData> ClhProcessDataList,int maxProcAllowable)
+    public ClhProcessData(ClhRingBuffer ClhProcessDataList)
     {
-        mMaxProcAllowable=maxProcAllowable;
         mClhProcessDataList=ClhProcessDataList;
+        Arrays.fill(mStreamOf,(short)-1);
+    }
+
+    //start the worker thread, packets added before are processed then
+    public synchronized void start()
+    {
+        if(mWorker!=null) return;
+        mWorker=new EventLoop("clh process");
+        mWorker.postDelayed(mTickTask,TICK_PERIOD);
+        wake();
     }
 
-    public ArrayList<ClhAdvertisedData> getProcessDataList()
+    public synchronized void stop()
+    {
+        if(mWorker==null) return;
+        mWorker.quit();
+        mWorker=null;
+        mDrainScheduled.set(false);
+    }
+
+    public ClhRingBuffer getProcessDataList()
     {
         return mClhProcessDataList;
     }
 
+    //the list keeps a copy, so data may be reused afterwards
     public void addProcessPacketToBuffer(ClhAdvertisedData data)
     {
-        if(mClhProcessDataList.size()<mMaxProcAllowable) {
-            mClhProcessDataList.add(data);
+        if(mClhProcessDataList.offer(data)) wake();
+    }
+
+    //take the oldest packet from the list into data, return false if the list is empty
+    //only when not started, the worker takes them otherwise
+    public boolean takeProcessPacket(ClhAdvertisedData data)
+    {
+        return mClhProcessDataList.poll(data);
+    }
+
+    //what to drop when the process list is full, see ClhRingBuffer.OverflowPolicy
+    public void setOverflowPolicy(ClhRingBuffer.OverflowPolicy policy)
+    {
+        mClhProcessDataList.setOverflowPolicy(policy);
+    }
+
+    //packets dropped or coalesced because the process list was full
+    public long getOverflows()
+    {
+        return mClhProcessDataList.getOverflows();
+    }
+
+    public void addLoudestZoneListener(LoudestZoneListener listener)
+    {
+        mListeners.add(listener);
+    }
+
+    public void removeLoudestZoneListener(LoudestZoneListener listener)
+    {
+        mListeners.remove(listener);
+    }
+
+    //one drain at a time is enough: it runs until the list is empty
+    private void wake()
+    {
+        EventLoop worker=mWorker;
+        if(worker!=null && mDrainScheduled.compareAndSet(false,true)) worker.execute(mDrainTask);
+    }
+
+    //take all packets off the list, worker thread
+    private void drain()
+    {
+        mDrainScheduled.set(false); //packets added from now on schedule another drain
+        EventLoop worker=mWorker;
+        if(worker==null) return;
+
+        int loudest=mLoudestZone;
+        while(mClhProcessDataList.poll(mPacket))
+        {
+            process(mPacket,worker.now());
         }
+        if(loudest!=mLoudestZone) notifyLoudestZone();
     }
 
-    private void outputTotextbox(){
-        for(int i=0;i<mClhProcessDataList.size();i++)
+    private void tick()
+    {
+        EventLoop worker=mWorker;
+        if(worker==null) return;
+
+        int loudest=mLoudestZone;
+        synchronized(this) {
+            long now=worker.now();
+            for(int stream=0;stream<mStreamCount;stream++)
+            {
+                if(evict(stream,now)) updateZone(mStreamSource[stream]);
+            }
+        }
+        if(loudest!=mLoudestZone) notifyLoudestZone();
+        worker.postDelayed(mTickTask,TICK_PERIOD);
+    }
+
+    private synchronized void process(ClhAdvertisedData packet, long now)
+    {
+        mProcessedCount++;
+        if(packet.getThingyDataType()!=ClhConst.THINGY_DATA_TYPE_SOUND_POWER) return;
+
+        int stream=findStream(packet.getSourceID(),packet.getThingyId(),now);
+        if(stream<0)
         {
-            if(i==10) break; //maximum output 10 string at one tick
+            mUntrackedCount++;
+            return;
+        }
+
+        evict(stream,now);
+        int base=stream*WINDOW_SAMPLES;
+        if(mCount[stream]==WINDOW_SAMPLES)
+        {//window full, drop the oldest sample
+            mSum[stream]-=mValues[base+mFirst[stream]];
+            mFirst[stream]=(mFirst[stream]+1)%WINDOW_SAMPLES;
+            mCount[stream]--;
+        }
+        int value=packet.getSoundPower();
+        int index=base+(mFirst[stream]+mCount[stream])%WINDOW_SAMPLES;
+        mTimes[index]=now;
+        mValues[index]=value;
+        mCount[stream]++;
+        mSum[stream]+=value;
+        mLastSeen[stream]=now;
+        updateMax(stream);
+        updateZone(packet.getSourceID());
+    }
 
+    //stream of a source and Thingy, created on first use, -1 if there are too many
+    private int findStream(byte source, byte thingy, long now)
+    {
+        int key=((source&0x7F)<<8)|(thingy&0xFF);
+        int stream=mStreamOf[key];
+        if(stream>=0) return stream;
 
+        if(mStreamCount<MAX_STREAMS)
+        {
+            stream=mStreamCount++;
+        }
+        else
+        {//take over a stream that went silent
+            stream=-1;
+            for(int i=0;i<MAX_STREAMS;i++)
+            {
+                if(mCount[i]==0 && now>=mLastSeen[i]+STATS_WINDOW) {stream=i; break;}
+            }
+            if(stream<0) return -1;
+            mStreamOf[((mStreamSource[stream]&0x7F)<<8)|(mStreamThingy[stream]&0xFF)]=-1;
+        }
+        mStreamOf[key]=(short)stream;
+        mStreamSource[stream]=(byte)(source&0x7F);
+        mStreamThingy[stream]=thingy;
+        mFirst[stream]=0;
+        mCount[stream]=0;
+        mSum[stream]=0;
+        mLastSeen[stream]=now;
+        return stream;
+    }
+
+    //drop samples that left the window, return whether any did
+    private boolean evict(int stream, long now)
+    {
+        int base=stream*WINDOW_SAMPLES;
+        boolean evicted=false;
+        while(mCount[stream]>0 && now>=mTimes[base+mFirst[stream]]+STATS_WINDOW)
+        {
+            mSum[stream]-=mValues[base+mFirst[stream]];
+            mFirst[stream]=(mFirst[stream]+1)%WINDOW_SAMPLES;
+            mCount[stream]--;
+            evicted=true;
         }
+        if(evicted) updateMax(stream);
+        return evicted;
+    }
+
+    private void updateMax(int stream)
+    {
+        int base=stream*WINDOW_SAMPLES;
+        int max=Integer.MIN_VALUE;
+        for(int i=0;i<mCount[stream];i++)
+        {
+            max=Math.max(max,mValues[base+(mFirst[stream]+i)%WINDOW_SAMPLES]);
+        }
+        mMax[stream]=max;
+    }
+
+    //recompute the loudness of a zone, and the loudest zone if needed
+    private void updateZone(byte source)
+    {
+        int zone=source&0x7F;
+        boolean active=false;
+        int loudness=Integer.MIN_VALUE;
+        for(int stream=0;stream<mStreamCount;stream++)
+        {
+            if(mStreamSource[stream]!=zone || mCount[stream]==0) continue;
+            active=true;
+            loudness=Math.max(loudness,(int)(mSum[stream]/mCount[stream]));
+        }
+        mZoneActive[zone]=active;
+        mZoneLoudness[zone]=loudness;
+
+        if(active && (mLoudestZone==NO_ZONE || loudness>mZoneLoudness[mLoudestZone]))
+        {//louder than the loudest
+            mLoudestZone=zone;
+        }
+        else if(zone==mLoudestZone)
+        {//the loudest got quieter, another may be louder now
+            mLoudestZone=NO_ZONE;
+            for(int i=0;i<ZONES;i++)
+            {
+                if(mZoneActive[i] && (mLoudestZone==NO_ZONE || mZoneLoudness[i]>mZoneLoudness[mLoudestZone])) mLoudestZone=i;
+            }
+        }
+    }
+
+    private void notifyLoudestZone()
+    {
+        int zone;
+        int loudness;
+        synchronized(this) {
+            zone=mLoudestZone;
+            loudness=zone==NO_ZONE?0:mZoneLoudness[zone];
+        }
+        Log.i(LOG_TAG,"loudest zone: "+zone+", sound power: "+loudness);
+        for(LoudestZoneListener listener:mListeners) listener.onLoudestZoneChanged(zone,loudness);
+    }
+
+    //------------------------
+    // queries, from any thread. A stream that is not known reads as 0
+
+    //cluster head ID of the loudest zone, NO_ZONE if all are silent
+    public synchronized int getLoudestZone()
+    {
+        return mLoudestZone;
+    }
+
+    //mean sound power of the loudest Thingy of a zone over the window
+    public synchronized int getZoneLoudness(byte clhID)
+    {
+        int zone=clhID&0x7F;
+        return mZoneActive[zone]?mZoneLoudness[zone]:0;
+    }
+
+    public synchronized int getMax(byte clhID, byte thingyID)
+    {
+        int stream=mStreamOf[((clhID&0x7F)<<8)|(thingyID&0xFF)];
+        return stream<0 || mCount[stream]==0?0:mMax[stream];
+    }
+
+    public synchronized int getMean(byte clhID, byte thingyID)
+    {
+        int stream=mStreamOf[((clhID&0x7F)<<8)|(thingyID&0xFF)];
+        return stream<0 || mCount[stream]==0?0:(int)(mSum[stream]/mCount[stream]);
+    }
+
+    //samples per second over the window
+    public synchronized double getRate(byte clhID, byte thingyID)
+    {
+        int stream=mStreamOf[((clhID&0x7F)<<8)|(thingyID&0xFF)];
+        if(stream<0 || mCount[stream]==0) return 0;
+        if(mCount[stream]<WINDOW_SAMPLES) return mCount[stream]*1000.0/STATS_WINDOW;
+
+        //the samples cover less than the window
+        long span=mTimes[stream*WINDOW_SAMPLES+(mFirst[stream]+WINDOW_SAMPLES-1)%WINDOW_SAMPLES]
+                -mTimes[stream*WINDOW_SAMPLES+mFirst[stream]];
+        return (WINDOW_SAMPLES-1)*1000.0/Math.max(1,span);
+    }
+
+    //time of the last sample (EventLoop time: ms since boot), 0 if never seen
+    public synchronized long getLastSeen(byte clhID, byte thingyID)
+    {
+        int stream=mStreamOf[((clhID&0x7F)<<8)|(thingyID&0xFF)];
+        return stream<0?0:mLastSeen[stream];
+    }
+
+    public synchronized long getProcessedCount()
+    {
+        return mProcessedCount;
+    }
+
+    //sound samples not in the statistics because MAX_STREAMS streams were active
+    public synchronized long getUntrackedCount()
+    {
+        return mUntrackedCount;
     }
 
 }
@@ -0,0 +1,266 @@
+package no.nordicsemi.android.nrfthingy.ClusterHead;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*bounded queue of cluster head packets, for one producer thread and one consumer thread
+- the slots are allocated once: offer() copies a packet into a slot, poll() copies it out again,
+  so queueing never allocates
+- no locks: every slot has a state, and whoever moves it from FULL to BUSY owns it until it sets
+  it back. The producer only takes a slot that is not its own to drop or coalesce a packet when
+  the queue is full, a side that finds a slot BUSY simply tries again
+- when full, the overflow policy decides which packet goes, every case is counted
+- last-value-wins mode: a packet of the same source, Thingy and data type as one that is still
+  queued replaces it in place, so a packet waits behind at most one packet per such key
+several producers: hand the packets over to one thread first (as ClhAdvertise does with the loop)
+ */
+public class ClhRingBuffer {
+
+    public enum OverflowPolicy {
+        DROP_OLDEST,        //make room by dropping the packet at the head of the queue
+        DROP_NEWEST,        //refuse the new packet
+        COALESCE_BY_SOURCE  //replace the newest queued packet of the same source, else drop oldest
+    }
+
+    private static final int STATE_EMPTY=0;
+    private static final int STATE_FULL=1;
+    private static final int STATE_BUSY=2;
+
+    private final ClhAdvertisedData[] mSlots;
+    private final AtomicIntegerArray mStates;
+    private final int mMask;
+
+    //positions only grow, the slot of a position is position & mMask
+    //head: next packet to poll, moved only by whoever owns the slot at the head
+    //tail: next free position, moved only by the producer
+    private final AtomicLong mHead=new AtomicLong();
+    private volatile long mTail=0;
+
+    private volatile OverflowPolicy mPolicy;
+    private final ClhAdvertisedData mScratch=new ClhAdvertisedData(); //for clear(), consumer only
+
+    //overflow counters, written by the producer only
+    private volatile long mDroppedOldest=0;
+    private volatile long mDroppedNewest=0;
+    private volatile long mCoalesced=0;
+
+    //last-value-wins: key -> position of its queued packet, producer only. Keys that collide
+    //overwrite each other, which only costs a replacement, and positions that were polled are
+    //recognised by the head having passed them
+    private volatile boolean mLastValueWins=false;
+    private final int[] mIndexKeys;
+    private final long[] mIndexPositions;
+    private final int mIndexMask;
+    private volatile long mReplaced=0;
+
+    //capacity is rounded up to a power of 2
+    public ClhRingBuffer(int capacity, OverflowPolicy policy)
+    {
+        int size=Integer.highestOneBit(Math.max(1,capacity-1))<<1;
+        if(capacity<=1) size=1;
+        mSlots=new ClhAdvertisedData[size];
+        for(int i=0;i<size;i++) mSlots[i]=new ClhAdvertisedData();
+        mStates=new AtomicIntegerArray(size);
+        mMask=size-1;
+        mPolicy=policy;
+        mIndexKeys=new int[size*2];
+        mIndexPositions=new long[size*2];
+        mIndexMask=size*2-1;
+    }
+
+    /*add a copy of the packet to the tail, producer thread only
+    @return false if the packet was dropped (DROP_NEWEST on a full queue)
+     */
+    public boolean offer(ClhAdvertisedData data)
+    {
+        long tail=mTail;
+        if(mLastValueWins && replace(data,tail))
+        {
+            mReplaced++;
+            return true;
+        }
+
+        while(true)
+        {
+            long head=mHead.get();
+            if(tail-head<mSlots.length) break;
+
+            //full
+            OverflowPolicy policy=mPolicy;
+            if(policy==OverflowPolicy.DROP_NEWEST)
+            {
+                mDroppedNewest++;
+                return false;
+            }
+            if(policy==OverflowPolicy.COALESCE_BY_SOURCE && coalesce(data,head,tail))
+            {
+                mCoalesced++;
+                return true;
+            }
+
+            //drop the oldest, unless the consumer is taking it right now, then it is gone anyway
+            int index=(int)(head&mMask);
+            if(mStates.compareAndSet(index,STATE_FULL,STATE_BUSY))
+            {
+                mStates.set(index,STATE_EMPTY);
+                mHead.set(head+1);
+                mDroppedOldest++;
+            }
+        }
+
+        int index=(int)(tail&mMask);
+        mSlots[index].copyFrom(data);
+        mStates.set(index,STATE_FULL);
+        mTail=tail+1; //publish
+        if(mLastValueWins)
+        {
+            int key=keyOf(data);
+            int entry=indexOf(key);
+            mIndexKeys[entry]=key;
+            mIndexPositions[entry]=tail;
+        }
+        return true;
+    }
+
+    //overwrite the queued packet with the same key as data, producer thread only
+    private boolean replace(ClhAdvertisedData data, long tail)
+    {
+        int key=keyOf(data);
+        int entry=indexOf(key);
+        if(mIndexKeys[entry]!=key) return false;
+        long position=mIndexPositions[entry];
+        if(position<mHead.get() || position>=tail) return false; //polled or dropped already
+
+        //FULL means not yet polled, if the consumer has it, the packet is queued anew
+        int index=(int)(position&mMask);
+        if(!mStates.compareAndSet(index,STATE_FULL,STATE_BUSY)) return false;
+        boolean same=keyOf(mSlots[index])==key;
+        if(same) mSlots[index].copyFrom(data);
+        mStates.set(index,STATE_FULL);
+        return same;
+    }
+
+    //source, Thingy and data type, never 0 so 0 marks an unused index entry
+    private static int keyOf(ClhAdvertisedData data)
+    {
+        return 1+(((data.getSourceID()&0x7F)<<16)|((data.getThingyId()&0xFF)<<8)|(data.getThingyDataType()&0xFF));
+    }
+
+    private int indexOf(int key)
+    {
+        return ((key*0x9E3779B9)>>>16)&mIndexMask;
+    }
+
+    //overwrite the newest queued packet of the same source, producer thread only
+    private boolean coalesce(ClhAdvertisedData data, long head, long tail)
+    {
+        byte source=data.getSourceID();
+        for(long position=tail-1;position>=head;position--)
+        {
+            int index=(int)(position&mMask);
+            if(mSlots[index].getSourceID()!=source) continue; //only a hint until the slot is ours
+            if(!mStates.compareAndSet(index,STATE_FULL,STATE_BUSY)) return false; //being polled
+
+            boolean same=mSlots[index].getSourceID()==source;
+            if(same) mSlots[index].copyFrom(data);
+            mStates.set(index,STATE_FULL);
+            if(same) return true;
+        }
+        return false;
+    }
+
+    /*copy the packet at the head into out and remove it, consumer thread only
+    @return false if the queue is empty
+     */
+    public boolean poll(ClhAdvertisedData out)
+    {
+        while(true)
+        {
+            long head=mHead.get();
+            if(head>=mTail) return false;
+
+            int index=(int)(head&mMask);
+            if(!mStates.compareAndSet(index,STATE_FULL,STATE_BUSY)) continue; //producer has it
+
+            //the producer may have dropped this position and refilled the slot in the meantime
+            if(mHead.get()!=head)
+            {
+                mStates.set(index,STATE_FULL);
+                continue;
+            }
+            out.copyFrom(mSlots[index]);
+            mStates.set(index,STATE_EMPTY);
+            mHead.set(head+1);
+            return true;
+        }
+    }
+
+    //drop all queued packets, consumer thread only
+    public void clear()
+    {
+        while(poll(mScratch));
+    }
+
+    public int size()
+    {
+        return (int)Math.max(0,mTail-mHead.get());
+    }
+
+    public boolean isEmpty()
+    {
+        return size()==0;
+    }
+
+    public int capacity()
+    {
+        return mSlots.length;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy policy)
+    {
+        mPolicy=policy;
+    }
+
+    public OverflowPolicy getOverflowPolicy()
+    {
+        return mPolicy;
+    }
+
+    //turn last-value-wins on or off, from the producer thread or before the queue is used
+    public void setLastValueWins(boolean lastValueWins)
+    {
+        mLastValueWins=lastValueWins;
+    }
+
+    public boolean isLastValueWins()
+    {
+        return mLastValueWins;
+    }
+
+    //packets that replaced a queued packet of the same key in last-value-wins mode
+    public long getReplaced()
+    {
+        return mReplaced;
+    }
+
+    public long getDroppedOldest()
+    {
+        return mDroppedOldest;
+    }
+
+    public long getDroppedNewest()
+    {
+        return mDroppedNewest;
+    }
+
+    public long getCoalesced()
+    {
+        return mCoalesced;
+    }
+
+    //all packets that did not make it to the consumer on their own
+    public long getOverflows()
+    {
+        return mDroppedOldest+mDroppedNewest+mCoalesced;
+    }
+}
@@ -6,7 +6,6 @@ import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
-import android.os.Handler;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -14,29 +13,54 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.UUID;
+
+import cps.wsan.network.AdhocNetwork;
+import cps.wsan.network.BleRadio;
+import cps.wsan.network.EventLoop;
+import cps.wsan.network.NetworkListener;
+import cps.wsan.network.ScanScheduler;
+import cps.wsan.network.TimerWheel;
 
 public class ClhScan {
     private BluetoothAdapter mAdapter = BluetoothAdapter.getDefaultAdapter();
     private BluetoothLeScanner mCLHscanner ;
     private final String LOG_TAG="CLH Scanner:";
 
-    private Handler handler = new Handler();
-    private Handler handler2 = new Handler();
+    private final EventLoop mLoop = EventLoop.getShared(); //scan results are processed on this thread
+    private final TimerWheel mTimers = mLoop.getTimers();
+    private final List<ScanFilter> mFilters = new ArrayList<>();
     private boolean mScanning;
     private byte mClhID=1;
     private boolean mIsSink=false;
-    private ScanSettings mScanSettings;
 
-    private SparseArray<Integer> ClhScanHistoryArray=new SparseArray();
+    //restarts the scan before Android throttles it (see ScanScheduler)
+    private final ScanScheduler mScanScheduler = new ScanScheduler(mLoop, mTimers,
+            new ScanScheduler.Scanner() {
+                @Override
+                public void startScan() {
+                    mCLHscanner.startScan(mFilters, buildScanSettings(), CLHScanCallback);
+                }
+
+                @Override
+                public void stopScan() {
+                    mCLHscanner.stopScan(CLHScanCallback);
+                }
+            });
+
+    private final ClhDuplicateCache mScanHistory=new ClhDuplicateCache(ClhConst.SCAN_HISTORY_WINDOW,ClhConst.SCAN_HISTORY_PERIOD);
 
     //private static final int MAX_PROCESS_LIST_ITEM=128;
     //private ClhAdvertisedData clhAdvData=new ClhAdvertisedData();
     private ClhAdvertise mClhAdvertiser;
-    private ArrayList<ClhAdvertisedData> mClhProcDataList ;
+    private ClhRingBuffer mClhProcDataList ;
     private ClhProcessData mClhProcessData;
-    private ArrayList<ClhAdvertisedData> mClhAdvDataList;
+    private ClhRingBuffer mClhAdvDataList;
     private static final int MAX_ADVERTISE_LIST_ITEM=128;
 
+    //when set, packets come from the shared scanner of this network instead of an own scanner
+    private volatile AdhocNetwork mNetwork;
+
     public ClhScan()
     {
 
@@ -56,7 +80,7 @@ public class ClhScan {
         byte[] advsettings=new byte[16];
         byte[] advData= new byte[256];
         int length;
-        final List<ScanFilter> filters = new ArrayList<>();
+        final List<ScanFilter> filters = mFilters;
 
         if (!mScanning) {
             //verify BLE available
@@ -66,45 +90,17 @@ public class ClhScan {
                 return ClhErrors.ERROR_CLH_BLE_NOT_ENABLE;
             }
 
-            //setting
-            ScanSettings ClhScanSettings = new ScanSettings.Builder()
-                    .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-                    .setMatchMode(ScanSettings.MATCH_MODE_AGGRESSIVE)
-                    .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
-                    .setNumOfMatches(ScanSettings.MATCH_NUM_ONE_ADVERTISEMENT)
-                    .build();
-
             //set filter: filter name
             ScanFilter filter = new ScanFilter.Builder()
                     .setDeviceName(ClhConst.clusterHeadName)
                     .build();
+            filters.clear();
             filters.add(filter);
             Log.i(LOG_TAG, "filters"+ filters.toString());
 
-            mScanSettings =ClhScanSettings;
-// Stops scanning after 60 seconds.
-
-            // Create a timer to stop scanning after a pre-defined scan period.
-            //rest, then restart to avoid auto disable from Android
-           handler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mScanning = false;
-                    mCLHscanner.stopScan(CLHScanCallback);
-                    Log.i(LOG_TAG, "Stop scan");
-                    //start another timer for resting in 1s
-                    handler2.postDelayed(new Runnable() {
-                        @Override
-                        public void run() {
-                            mScanning = true;
-                            mCLHscanner.startScan(filters, mScanSettings, CLHScanCallback);
-                        }
-                    },ClhConst.REST_PERIOD);
-                }
-            }, ClhConst.SCAN_PERIOD);
-
+            //the scheduler starts the scan, and restarts it in time to avoid auto disable from Android
             mScanning = true;
-            mCLHscanner.startScan(filters, ClhScanSettings, CLHScanCallback);
+            mLoop.execute(mScanScheduler::start);
             Log.i(LOG_TAG, "Start scan");
         }
         else
@@ -115,13 +111,57 @@ public class ClhScan {
         return ClhErrors.ERROR_CLH_NO;
     }
 
+    /*receive over the given network rather than with an own scanner: the network scans for all
+    its protocols at once, and filters duplicates for them
+     */
+    public int scanNetwork(AdhocNetwork network)
+    {
+        if (mScanning) return ClhErrors.ERROR_CLH_SCAN_ALREADY_START;
+
+        mNetwork = network;
+        mScanning = true;
+        network.addListener(mNetworkListener);
+        network.scan();
+        Log.i(LOG_TAG, "Start scan on network");
+        return ClhErrors.ERROR_CLH_NO;
+    }
+
     public void stopScanCLH()
     {
+        if (mNetwork != null)
+        {//the scanner belongs to the network, only stop listening
+            mScanning = false;
+            mNetwork.removeListener(mNetworkListener);
+            mNetwork = null;
+            Log.i(LOG_TAG, "Stop scan on network");
+            return;
+        }
         mScanning = false;
-        mCLHscanner.stopScan(CLHScanCallback);
+        mLoop.execute(mScanScheduler::stop); //the scheduler belongs to the loop thread
         Log.i(LOG_TAG, "Stop scan");
     }
 
+    //scan settings for every start of the scheduler
+    private ScanSettings buildScanSettings()
+    {
+        ScanSettings.Builder ClhScanSettingsBuilder = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                .setMatchMode(ScanSettings.MATCH_MODE_AGGRESSIVE)
+                .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+                .setNumOfMatches(ScanSettings.MATCH_NUM_ONE_ADVERTISEMENT);
+        if (BleRadio.isExtendedAdvertisingSupported(mAdapter)) {
+            //also receive extended advertisements of other cluster heads, on any PHY
+            ClhScanSettingsBuilder.setLegacy(false).setPhy(ScanSettings.PHY_LE_ALL_SUPPORTED);
+        }
+        return ClhScanSettingsBuilder.build();
+    }
+
+    //fraction of packets skipped in the packet IDs of their source, see ClhDuplicateCache
+    public double getMissRate()
+    {
+        return mScanHistory.getMissRate();
+    }
+
 
     private ScanCallback CLHScanCallback = new ScanCallback() {
         @Override
@@ -143,7 +183,7 @@ public class ClhScan {
             }
 
             SparseArray<byte[]> manufacturerData = result.getScanRecord().getManufacturerSpecificData(); //get data
-            processScanData(manufacturerData);
+            mLoop.execute(() -> processScanData(manufacturerData)); //leave the main thread free
         }
 
         @Override
@@ -159,6 +199,40 @@ public class ClhScan {
     };
 
 
+    //packets of the network are received on the loop thread already
+    private final NetworkListener mNetworkListener = new NetworkListener() {
+        @Override
+        public void onMessage(UUID uuid, byte[] data) {
+            onMessage(uuid, data, 0, data.length, 0);
+        }
+
+        @Override
+        public void onMessage(UUID uuid, byte[] buffer, int offset, int length, int rssi) {
+            if (!ClhConst.CLH_SERVICE_UUID.equals(uuid) || length < 2) return;
+
+            //check RSSI to remove weak signal ones
+            if (rssi < ClhConst.MIN_SCAN_RSSI_THRESHOLD) {
+                Log.i(LOG_TAG,"low RSSI");
+                return;
+            }
+
+            byte sourceID = buffer[offset];
+            byte packetID = buffer[offset + 1];
+            if (mClhID == sourceID) {
+                Log.i(LOG_TAG,"reflected data, mClhID "+mClhID +", recv:" +sourceID );
+                return;
+            }
+
+            //the network keeps the history of received packets, shared with its other protocols
+            AdhocNetwork network = mNetwork;
+            if (network == null || !network.accept(ClhConst.CLH_SERVICE_UUID, sourceID, packetID)) return;
+
+            ClhAdvertisedData clhAdvData = new ClhAdvertisedData();
+            clhAdvData.parcelAdvData(buffer, offset, length);
+            processPacket(clhAdvData);
+        }
+    };
+
 /*process received data of BLE Manufacturer field
  include:
 - Manufacturer Specification (in manufacturerData.key): "unique packet ID", include
@@ -186,19 +260,12 @@ public class ClhScan {
         }
         Log.i(LOG_TAG,"ID data "+ (receiverID>>8)+ "  "+(receiverID&0xFF) );
 
-        /* check packet has been yet recieved by searching the "unique packet ID" history list
-         - history list include:
-                        Key: unique packet ID
-                        life counter: time of the packet lived in history list
+        /* check packet has been yet recieved in the history of "unique packet ID"s:
+         per source cluster head a window of the last packet IDs, sources silent for a while expire
           --------------*/
 
-        if (ClhScanHistoryArray.indexOfKey(manufacturerData.keyAt(0))<0)
+        if (mScanHistory.accept((byte)(receiverID>>8),(byte)receiverID,mLoop.now()))
         {//not yet received
-            //history not yet full, update new "unique packet ID" to history list, reset life counter
-            if(ClhScanHistoryArray.size()<ClhConst.SCAN_HISTORY_LIST_SIZE)
-            {
-                ClhScanHistoryArray.append(manufacturerData.keyAt(0),0);
-            }
             ClhAdvertisedData clhAdvData = new ClhAdvertisedData();
 
             //add receive data to Advertise list or Process List
@@ -206,20 +273,30 @@ public class ClhScan {
             //Log.i(LOG_TAG," manufacturer value"+ Arrays.toString(manufacturerData.valueAt(0)) );
 
             clhAdvData.parcelAdvData(manufacturerData,0);
-            if(mIsSink)
-            {//if this Cluster Head is the Sink node (ID=0), add data to waiting process list
-                    mClhProcessData.addProcessPacketToBuffer(clhAdvData);
-                    Log.i(LOG_TAG, "Add data to process list, len:" + mClhProcDataList.size());
-            }
-            else {//normal CLuster Head (ID 0..127) add data to advertising list to forward
-                    mClhAdvertiser.addAdvPacketToBuffer(clhAdvData,false);
-                    Log.i(LOG_TAG, "Add data to advertised list, len:" + mClhAdvDataList.size());
-                    Log.i(LOG_TAG, "Advertise list at " + (mClhAdvDataList.size() - 1) + ":"
-                            + Arrays.toString(mClhAdvDataList.get(mClhAdvDataList.size() - 1).getParcelClhData()));
-            }
+            processPacket(clhAdvData);
         }
     }
 
+    //add a new packet to the process list on a sink, or to the advertising list to forward it
+    private void processPacket(ClhAdvertisedData clhAdvData)
+    {
+        if(mIsSink)
+        {//if this Cluster Head is a Sink node, add data to waiting process list
+                mClhProcessData.addProcessPacketToBuffer(clhAdvData);
+                Log.i(LOG_TAG, "Add data to process list, len:" + mClhProcDataList.size());
+        }
+        else {//normal CLuster Head (not a sink) add data to advertising list to forward
+                mClhAdvertiser.addAdvPacketToBuffer(clhAdvData,false);
+                Log.i(LOG_TAG, "Add data to advertised list, len:" + mClhAdvDataList.size());
+                Log.i(LOG_TAG, "Advertise data:" + Arrays.toString(clhAdvData.getParcelClhData()));
+        }
+    }
+
+    //history of received packets, with statistics on duplicates and possible false positives
+    public ClhDuplicateCache getScanHistory(){
+        return mScanHistory;
+    }
+
     public void setClhID(byte clhID, boolean isSink){
         mClhID=clhID;
         mIsSink=isSink;
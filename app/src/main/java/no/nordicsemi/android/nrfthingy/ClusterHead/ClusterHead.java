@@ -1,27 +1,36 @@
 package no.nordicsemi.android.nrfthingy.ClusterHead;
 
-import java.util.ArrayList;
 import java.util.UUID;
 
+import cps.wsan.network.AdhocNetwork;
+
 public class ClusterHead {
     private static final int MAX_ADVERTISE_LIST_ITEM=ClhConst.MAX_ADVERTISE_LIST_ITEM; //max items in waiting list for advertising
     private static final int MAX_PROCESS_LIST_ITEM=ClhConst.MAX_PROCESS_LIST_ITEM; //max items in waiting list for processing
     private boolean mIsSink=false;
     private byte mClhID=1;
-    private final ArrayList<ClhAdvertisedData> mClhAdvDataList =new ArrayList<ClhAdvertisedData>(MAX_ADVERTISE_LIST_ITEM);
-    private final ClhAdvertise mClhAdvertiser=new ClhAdvertise(mClhAdvDataList,MAX_ADVERTISE_LIST_ITEM);
+    private final ClhRingBuffer mClhAdvDataList =new ClhRingBuffer(MAX_ADVERTISE_LIST_ITEM,ClhRingBuffer.OverflowPolicy.DROP_NEWEST);
+    private final ClhAdvertise mClhAdvertiser=new ClhAdvertise(mClhAdvDataList);
 
     private final ClhScan mClhScanner=new ClhScan();
 
-    private final ArrayList<ClhAdvertisedData> mClhProcDataList =new ArrayList<>(MAX_PROCESS_LIST_ITEM);
-    private final ClhProcessData mClhProcessData=new ClhProcessData(mClhProcDataList,MAX_PROCESS_LIST_ITEM);
+    private final ClhRingBuffer mClhProcDataList =new ClhRingBuffer(MAX_PROCESS_LIST_ITEM,ClhRingBuffer.OverflowPolicy.DROP_NEWEST);
+    private final ClhProcessData mClhProcessData=new ClhProcessData(mClhProcDataList);
     public ClusterHead(){}
 
     //construtor,
     //params: id: cluster head ID
     public ClusterHead(byte id)
+    {
+        this(id,false);
+    }
+
+    //construtor,
+    //params: id: cluster head ID, isSink: whether this Cluster Head is one of the sinks
+    public ClusterHead(byte id, boolean isSink)
     {
         if(id>127) id-=127;
+        mIsSink=isSink;
         setClhID(id);
     }
 
@@ -50,6 +59,27 @@ public class ClusterHead {
         return error;
     }
 
+    // init Cluster Head on top of a network instead: the network owns the radio, and the cluster
+    // head advertises and receives through its scheduler and scanner like any other protocol of it
+    public int initClhNetwork(AdhocNetwork network)
+    {
+        mClhAdvertiser.setAdvClhID(mClhID,mIsSink);
+        mClhAdvertiser.setNetwork(network);
+        mClhScanner.setAdvDataObject(mClhAdvertiser);
+        mClhScanner.setProcDataObject(mClhProcessData);
+        mClhProcessData.start(); //idle unless this Cluster Head is a sink
+        mClhScanner.setClhID(mClhID,mIsSink);
+        return mClhScanner.scanNetwork(network);
+    }
+
+    // leave the network again, it keeps running for its other protocols
+    public void stopClhNetwork()
+    {
+        mClhScanner.stopScanCLH();
+        mClhAdvertiser.setNetwork(null);
+        mClhProcessData.stop();
+    }
+
     public int initClhBLEAdvertiser(long advInterval) {
         int error;
         mClhAdvertiser.setAdvInterval(advInterval);
@@ -66,6 +96,7 @@ public class ClusterHead {
         int error;
         mClhScanner.setAdvDataObject(mClhAdvertiser);
         mClhScanner.setProcDataObject(mClhProcessData);
+        mClhProcessData.start(); //idle unless this Cluster Head is a sink
         mClhScanner.setClhID(mClhID,mIsSink);
         error=mClhScanner.BLE_scan();
 
@@ -76,16 +107,26 @@ public class ClusterHead {
         return mClhProcessData;
     }
 
-    public ArrayList<ClhAdvertisedData> getAdvertiseList() {return mClhAdvDataList;}
+    public ClhRingBuffer getAdvertiseList() {return mClhAdvDataList;}
+    //set Cluster Head ID, any Cluster Head can be a sink regardless of its ID (see setSink)
     public final boolean setClhID(byte id){
         mClhID=id;
-        if (mClhID == 0) mIsSink = true;
-        else mIsSink = false;
         if(mClhAdvertiser!=null)    mClhAdvertiser.setAdvClhID(mClhID,mIsSink);
         if(mClhScanner!=null) mClhScanner.setClhID(mClhID,mIsSink);
         return mIsSink;
 
     }
+
+    //make this Cluster Head one of the sinks: a sink processes the packets it receives instead of
+    //forwarding them, so with several sinks every packet is processed by the sink it reaches first
+    public final void setSink(boolean isSink){
+        mIsSink=isSink;
+        setClhID(mClhID);
+    }
+
+    public final boolean isSink(){
+        return mIsSink;
+    }
     public final byte getClhID(){ //return 16 bit from byte 2 and 3 in 128 UUID
         return mClhID;
     }
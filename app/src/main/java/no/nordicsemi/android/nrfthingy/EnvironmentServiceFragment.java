@@ -79,9 +79,8 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 
-import no.nordicsemi.android.nrfthingy.ClusterHead.ClhAdvertise;
-import no.nordicsemi.android.nrfthingy.ClusterHead.ClhErrors;
-import no.nordicsemi.android.nrfthingy.ClusterHead.ClhScan;
+import cps.wsan.network.AdhocNetwork;
+import no.nordicsemi.android.nrfthingy.ClusterHead.ClusterHead;
 import no.nordicsemi.android.nrfthingy.common.ScannerFragmentListener;
 import no.nordicsemi.android.nrfthingy.common.Utils;
 import no.nordicsemi.android.nrfthingy.database.DatabaseContract.ThingyDbColumns;
@@ -277,16 +276,9 @@ public class EnvironmentServiceFragment extends Fragment implements ScannerFragm
 
     //==============
     // PSG edit
-   private Button mAdvertiseButton;
-    private Button mNextButton;
-    private final String LOG_TAG="My Tag:";
-    ClhAdvertise mAdvertiser= new ClhAdvertise();
-    private byte[] mAdvData= {10,1,2,3,4,5,6,7,8,9,10};
-    byte[] mAdvSettings={ClhAdvertise.ADV_SETTING_MODE_LOWLATENCY,
-            ClhAdvertise.ADV_SETTING_SENDNAME_YES,
-            ClhAdvertise.ADV_SETTING_SENDTXPOWER_NO};
-
-    ClhScan mScanner=new ClhScan();
+    //the cluster head runs on the network of this device, which owns the radio, instead of
+    //scanning and advertising on its own next to it
+    private ClusterHead mClusterHead;
 
     public interface EnvironmentServiceListener {
         LinkedHashMap<String, String> getSavedTemperatureData(final BluetoothDevice device);
@@ -346,59 +338,13 @@ public class EnvironmentServiceFragment extends Fragment implements ScannerFragm
         mDatabaseHelper = new DatabaseHelper(getActivity());
 
         //PSG
-/*
-        mAdvertiseButton = (Button) rootView.findViewById(R.id.startClh_btn);
-        mNextButton=(Button) rootView.findViewById(R.id.next_btn);
-
-        mAdvertiser.setAdvInterval(10000);
-        mAdvertiser.setAdvSettings(new byte[] {ClhAdvertise.ADV_SETTING_MODE_LOWLATENCY,
-                                    ClhAdvertise.ADV_SETTING_SENDNAME_YES,
-                                    ClhAdvertise.ADV_SETTING_SENDTXPOWER_NO});
-
-
-
-        int error=mAdvertiser.initCLHAdvertiser();
-        if(error!= ClhErrors.ERROR_CLH_NO)
+        AdhocNetwork network=AdhocNetwork.getShared();
+        if(network!=null)
         {
-            mNextButton.setEnabled(false);
-            mAdvertiseButton.setEnabled(false);
-
+            mClusterHead=new ClusterHead(network.getIp());
+            mClusterHead.initClhNetwork(network);
         }
 
-        mScanner.BLE_scan();
-
-        mAdvertiseButton.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                Resources res = getResources();
-
-                Log.i(LOG_TAG, mAdvertiseButton.getText().toString());
-                if (mAdvertiseButton.getText().toString().equals("Start Advertise")) {
-                    mAdvertiseButton.setText("Stop Advertise");
-                    mAdvData[0]=2;
-                    mAdvData[1]=1;
-                    mAdvertiser.updateCLHdata(mAdvData);
-                    mAdvData[0]=10;
-                    mNextButton.setEnabled(true);
-                }
-                else
-                {
-                    mAdvertiseButton.setText("Start Advertise");
-                    mNextButton.setEnabled(false);
-                    mAdvertiser.stopAdvertiseClhData();
-
-                }
-            }
-        });
-
-        mNextButton.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                mAdvData[1]++;
-                mAdvertiser.updateCLHdata(mAdvData);
-            }
-        });*/
-
 
         if (toolbarEnvironment != null) {
             toolbarEnvironment.inflateMenu(R.menu.environment_card_menu);
@@ -554,6 +500,7 @@ public class EnvironmentServiceFragment extends Fragment implements ScannerFragm
     public void onDestroy() {
         super.onDestroy();
         ThingyListenerHelper.unregisterThingyListener(getContext(), mThingyListener);
+        if (mClusterHead != null) mClusterHead.stopClhNetwork();
     }
 
     @Override
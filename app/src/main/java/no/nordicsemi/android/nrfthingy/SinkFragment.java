@@ -2,6 +2,8 @@ package no.nordicsemi.android.nrfthingy;
 
 import android.bluetooth.BluetoothDevice;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Html;
 import android.text.SpannableStringBuilder;
 import android.util.Log;
@@ -23,6 +25,7 @@ import java.util.Map;
 import java.util.Queue;
 
 import cps.wsan.network.AdhocNetwork;
+import cps.wsan.network.Aggregate;
 import cps.wsan.network.MessageService;
 import cps.wsan.network.NetworkListener;
 import cps.wsan.network.RoutingService;
@@ -35,47 +38,80 @@ public class SinkFragment extends Fragment {
     Map<Byte, Byte> clusterheads;
     Queue<String> eventQueue = new LinkedList<>();
     private static final int EVENT_SIZE = 10;
+    private static final long SIMULTANEOUS_TOLERANCE = 100;
+    private static final String ARG_ADDRESS = "address";
     private int eventCounter = 0;
     AdhocNetwork network;
 
+    // The network calls its listeners on its own thread
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
     @Nullable
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater, @Nullable ViewGroup container, @Nullable Bundle savedInstanceState) {
         final View rootView = inflater.inflate(R.layout.fragment_sink, container, false);
         clusterheads = new HashMap<>();
-        network = new AdhocNetwork((byte) 0);
+        // Events go to the nearest of possibly several sinks, which each need an address of their own
+        byte address = getArguments() == null ? 0 : getArguments().getByte(ARG_ADDRESS);
+        network = AdhocNetwork.getShared(address);
+        network.getRoutingService().setSink(true);
         network.getRoutingService().addListener(new RoutingService.RoutingListener() {
             @Override
             public void onPathAdded(byte dest, byte cost, byte nextHop) {
-                clusterheads.put(dest, nextHop);
-                update();
+                handler.post(() -> {
+                    clusterheads.put(dest, nextHop);
+                    update();
+                });
             }
 
             @Override
             public void onPathUpdated(byte dest, byte cost, byte nextHop) {
-                clusterheads.put(dest, nextHop);
-                update();
+                handler.post(() -> {
+                    clusterheads.put(dest, nextHop);
+                    update();
+                });
             }
 
             @Override
             public void onPathDeleted(byte dest, byte cost, byte nextHop) {
-                clusterheads.remove(dest);
-                update();
+                handler.post(() -> {
+                    clusterheads.remove(dest);
+                    update();
+                });
             }
         });
         network.getMessageService().addListener(new MessageService.MessageListener() {
             @Override
             public void onMessageReceived(byte source, byte[] data) {
                 Log.i("aa", "received msg");
-                event(String.format("Event from <b>%s<b>: %s", source, new String(data)));
+                handler.post(() -> event(String.format("Event from <b>%s<b>: %s", source, new String(data))));
             }
 
             @Override
             public void onMessageForward(byte source, byte nextHop) {
                 // should never happen, as we are the final destination!
             }
+
+            @Override
+            public void onAggregateReceived(Aggregate aggregate) {
+                if (aggregate.size == 0) return;
+                String zone = new String(aggregate.labels[0]);
+                String time = aggregate.errors[0] == Aggregate.UNKNOWN_ERROR ? "unknown time"
+                        : String.format("%s ms (+/- %s)", aggregate.times[0] & 0xFFFFFFFFL, aggregate.errors[0]);
+
+                // Zones that heard something at the same moment probably heard the same sound
+                StringBuilder together = new StringBuilder();
+                for (int i = 1; i < aggregate.size; i++) {
+                    if (aggregate.isSimultaneous(0, i, SIMULTANEOUS_TOLERANCE)) {
+                        together.append(", ").append(new String(aggregate.labels[i]));
+                    }
+                }
+                handler.post(() -> event(String.format("Loudest of %s events: <b>%s</b>%s at %s (level %s, %s)",
+                        aggregate.count, zone, together, aggregate.getMaxOrigin(), aggregate.getMax(), time)));
+            }
         });
         network.scan();
+        network.getTimeSyncService().start();
         Log.i("ss", "starting scna");
         cheadView = rootView.findViewById(R.id.cheadContent);
         eventView = rootView.findViewById(R.id.eventContent);
@@ -87,7 +123,15 @@ public class SinkFragment extends Fragment {
     }
 
     public static SinkFragment newInstance() {
-        return new SinkFragment();
+        return newInstance((byte) 0);
+    }
+
+    public static SinkFragment newInstance(byte address) {
+        SinkFragment fragment = new SinkFragment();
+        final Bundle args = new Bundle();
+        args.putByte(ARG_ADDRESS, address);
+        fragment.setArguments(args);
+        return fragment;
     }
 
     private void update() {
@@ -95,6 +95,7 @@ import cps.wsan.audio.AmplitudeLoud;
 import cps.wsan.network.AdhocNetwork;
 import cps.wsan.network.MessageService;
 import cps.wsan.network.RoutingService;
+import cps.wsan.network.TimeSyncService;
 import no.nordicsemi.android.nrfthingy.common.FileHelper;
 import no.nordicsemi.android.nrfthingy.common.MessageDialogFragment;
 import no.nordicsemi.android.nrfthingy.common.PermissionRationaleDialogFragment;
@@ -137,6 +138,8 @@ public class SoundFragment extends Fragment implements PermissionRationaleDialog
     private VoiceVisualizer mVoiceVisualizer;
     private ArrayList<BluetoothDevice> mDevices;
     private Map<Integer, BluetoothDevice> mEventOrchestrator;
+    // <loudness, global time it was heard at>
+    private Map<Integer, Long> mEventTimes;
     private FragmentAdapter mFragmentAdapter;
     private ThingySdkManager mThingySdkManager;
     private boolean mStartRecordingAudio = false;
@@ -219,6 +222,7 @@ public class SoundFragment extends Fragment implements PermissionRationaleDialog
         super.onCreate(savedInstanceState);
         mDevices = new ArrayList<>();
         mEventOrchestrator = new HashMap<>();
+        mEventTimes = new HashMap<>();
         mThingySdkManager = ThingySdkManager.getInstance();
 
         final int interval = 5000;
@@ -237,11 +241,17 @@ public class SoundFragment extends Fragment implements PermissionRationaleDialog
                     if (maxBluetooth != null) {
                         mThingySdkManager.setConstantLedMode(maxBluetooth, 255, 0, 0);
                         if (maxBluetooth.getName() != null && network != null) {
-                            network.send((byte) (0 & 0xFF), maxBluetooth.getName().replace("Zone", "").getBytes());
+                            // Merged with the events of the other cluster heads on the way to the sink
+                            TimeSyncService timeSync = network.getTimeSyncService();
+                            Long time = mEventTimes.get(maxAmplitude);
+                            network.getMessageService().report(RoutingService.SINKS, maxAmplitude,
+                                    time == null ? timeSync.getGlobalTime() : time, timeSync.getError(),
+                                    maxBluetooth.getName().replace("Zone", "").getBytes());
                         }
                         mClhLog.append("    Loudest was " + maxBluetooth.getAddress() + "\r\n");
                     }
                     mEventOrchestrator.clear();
+                    mEventTimes.clear();
                 }
                 mHandler.postDelayed(this, interval);
             }
@@ -341,7 +351,7 @@ public class SoundFragment extends Fragment implements PermissionRationaleDialog
             public void onClick(View v) {
                 if (network != null) {
                     mClhLog.append("sending hi to sink\r\n");
-                    network.send((byte) (0 & 0xFF), "Hi".getBytes());
+                    network.send(RoutingService.SINKS, "Hi".getBytes());
                 } else {
                     mClhLog.append("net not init\r\n");
                 }
@@ -352,38 +362,39 @@ public class SoundFragment extends Fragment implements PermissionRationaleDialog
             @Override
             public void onClick(View v) {
 
-                network = new AdhocNetwork((byte) Integer.parseInt(mClhIDInput.getText().toString()));
+                network = AdhocNetwork.getShared((byte) Integer.parseInt(mClhIDInput.getText().toString()));
 
                 mClhLog.append("networking as node " + (byte) Integer.parseInt(mClhIDInput.getText().toString()) + " \r\n");
                 network.getRoutingService().addListener(new RoutingService.RoutingListener() {
                     @Override
                     public void onPathAdded(byte dest, byte cost, byte nextHop) {
-                        mClhLog.append("path addedd to " + dest + "; cost:" + cost + "; nexthop:" + nextHop + " \r\n");
+                        mHandler.post(() -> mClhLog.append("path addedd to " + dest + "; cost:" + cost + "; nexthop:" + nextHop + " \r\n"));
                     }
 
                     @Override
                     public void onPathUpdated(byte dest, byte cost, byte nextHop) {
-                        mClhLog.append("path updated to " + dest + "; cost:" + cost + "; nexthop:" + nextHop + " \r\n");
+                        mHandler.post(() -> mClhLog.append("path updated to " + dest + "; cost:" + cost + "; nexthop:" + nextHop + " \r\n"));
                     }
 
                     @Override
                     public void onPathDeleted(byte dest, byte cost, byte nextHop) {
-                        mClhLog.append("path deleted to " + dest + "; cost:" + cost + "; nexthop:" + nextHop + " \r\n");
+                        mHandler.post(() -> mClhLog.append("path deleted to " + dest + "; cost:" + cost + "; nexthop:" + nextHop + " \r\n"));
                     }
                 });
                 network.getMessageService().addListener(new MessageService.MessageListener() {
                     @Override
                     public void onMessageReceived(byte source, byte[] data) {
-                        mClhLog.append("Received an event from " + source + " : " + new String(data) + "\r\n");
+                        mHandler.post(() -> mClhLog.append("Received an event from " + source + " : " + new String(data) + "\r\n"));
                     }
 
                     @Override
                     public void onMessageForward(byte source, byte nextHop) {
-                        mClhLog.append("Received an event from " + source + " for " + nextHop + "\r\n");
+                        mHandler.post(() -> mClhLog.append("Received an event from " + source + " for " + nextHop + "\r\n"));
                     }
                 });
                 mClhLog.append("adhoc scan\r\n");
                 network.scan();
+                network.getTimeSyncService().start();
             }
         });
         mClhIDInput.setText("2");
@@ -772,6 +783,9 @@ public class SoundFragment extends Fragment implements PermissionRationaleDialog
                                     });
 
                                     orchestrator.put(loud, device);
+                                    if (network != null) {
+                                        mEventTimes.put(loud, network.getTimeSyncService().getGlobalTime());
+                                    }
                                     buf = ByteBuffer.allocate(2000000); //goodluck garbage collector of android.
                                 }
                                 if (ticksFingerprint >= delayTicksFingerprint) {
@@ -0,0 +1,55 @@
+package cps.wsan.network;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DuplicateFilterTest {
+
+    private static final long RESET_PERIOD = 80 * 1000;
+    private static final byte SOURCE = 1;
+
+    @Test
+    public void repeatsAreRejected() {
+        DuplicateFilter filter = new DuplicateFilter(RESET_PERIOD);
+        assertTrue(filter.accept(SOURCE, (byte) 5, 0));
+        assertFalse(filter.accept(SOURCE, (byte) 5, 10));
+        assertTrue(filter.accept(SOURCE, (byte) 4, 20));
+        assertFalse(filter.accept(SOURCE, (byte) 4, 30));
+        assertEquals(2, filter.getReceived());
+    }
+
+    @Test
+    public void sequenceNumbersWrapAround() {
+        DuplicateFilter filter = new DuplicateFilter(RESET_PERIOD);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue("message " + i, filter.accept(SOURCE, (byte) i, i));
+            assertFalse("message " + i + " again", filter.accept(SOURCE, (byte) i, i));
+        }
+        assertEquals(0, filter.getMissed());
+    }
+
+    @Test
+    public void farBehindStartsSourceOver() {
+        DuplicateFilter filter = new DuplicateFilter(RESET_PERIOD);
+        assertTrue(filter.accept(SOURCE, (byte) 0, 0));
+
+        // The source sent 150 messages we never heard, which looks like 106 back
+        assertTrue(filter.accept(SOURCE, (byte) 150, 1000));
+        assertEquals(1, filter.getResets());
+        assertFalse(filter.accept(SOURCE, (byte) 150, 1000));
+        assertTrue(filter.accept(SOURCE, (byte) 151, 1000));
+        assertTrue(filter.accept(SOURCE, (byte) 149, 1000));
+    }
+
+    @Test
+    public void withinWindowIsNoReset() {
+        DuplicateFilter filter = new DuplicateFilter(RESET_PERIOD);
+        assertTrue(filter.accept(SOURCE, (byte) 100, 0));
+        assertTrue(filter.accept(SOURCE, (byte) (100 - DuplicateFilter.WINDOW + 1), 0));
+        assertFalse(filter.accept(SOURCE, (byte) 100, 0));
+        assertEquals(0, filter.getResets());
+    }
+}
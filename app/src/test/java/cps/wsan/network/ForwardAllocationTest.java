@@ -0,0 +1,212 @@
+package cps.wsan.network;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that a node receives and forwards messages without allocating, by counting the bytes the
+ * test thread allocates while packets are handed to the node. The radio and clock are test doubles
+ * that don't allocate anything of their own.
+ */
+public class ForwardAllocationTest {
+
+    private static final byte SINK = 0;
+    private static final byte RELAY = 1;
+    private static final byte SOURCE = 2;
+
+    private static final int WARMUP = 20000;
+    private static final int MEASURED = 2000;
+
+    private ManualClock clock;
+    private TestRadio sinkRadio;
+    private TestRadio relayRadio;
+    private AdhocNetwork relay;
+    private com.sun.management.ThreadMXBean threads;
+
+    @Before
+    public void setUp() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        clock = new ManualClock();
+        TimerWheel timers = new TimerWheel(clock);
+        sinkRadio = new TestRadio();
+        relayRadio = new TestRadio();
+
+        AdhocNetwork sink = new AdhocNetwork(SINK, sinkRadio, clock, timers);
+        sink.getRoutingService().setSink(true);
+        sink.scan();
+        relay = new AdhocNetwork(RELAY, relayRadio, clock, timers);
+        relay.scan();
+
+        // Let the relay learn its route to the sink
+        for (int i = 0; i < 300 && relay.getRoutingService().getNextHop(SINK) != SINK; i++) exchange();
+        assertEquals(SINK, relay.getRoutingService().getNextHop(SINK));
+    }
+
+    @Test
+    public void forwardingDoesNotAllocate() {
+        assertForwardsWithoutAllocating((byte) 0);
+    }
+
+    @Test
+    public void reliableForwardingDoesNotAllocate() {
+        assertForwardsWithoutAllocating(MessageService.RELIABLE);
+    }
+
+    private void assertForwardsWithoutAllocating(byte flags) {
+        byte[][] packets = new byte[WARMUP + MEASURED][];
+        for (int i = 0; i < packets.length; i++) {
+            byte[] packet = new byte[MessageView.HEADER + 2];
+            MessageView.writeHeader(packet, RELAY, SOURCE, SOURCE, SINK, (byte) i, flags);
+            packets[i] = packet;
+        }
+
+        long forwarded = relay.getAdvertisedPackets();
+        long allocated = 0;
+        long overhead = 0;
+        for (int i = 0; i < packets.length; i++) {
+            long before = allocatedBytes();
+            relayRadio.receiver.onReceive(MessageService.UUID, packets[i], -60);
+            long after = allocatedBytes();
+            long empty = allocatedBytes();
+
+            if (i >= WARMUP) {
+                allocated += after - before;
+                overhead += empty - after;
+            }
+
+            // Give the advertiser time for the message and its acknowledgement, which keeps the
+            // queues from overflowing, and keep the route alive
+            exchange();
+            exchange();
+        }
+
+        assertTrue("Nothing was forwarded", relay.getAdvertisedPackets() - forwarded >= MEASURED);
+        assertEquals("Bytes allocated while forwarding " + MEASURED + " messages",
+                0, Math.max(0, allocated - overhead));
+    }
+
+    private long allocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Lets time pass for an advertise period, and passes what both nodes advertise to the other.
+     */
+    private void exchange() {
+        clock.advance(AdhocNetwork.ADVERTISE_PERIOD);
+        sinkRadio.deliverTo(relayRadio);
+        relayRadio.deliverTo(sinkRadio);
+    }
+
+    /**
+     * Virtual time that keeps its tasks in preallocated arrays, so it doesn't allocate while it is
+     * measured. Tasks run in the order of their time.
+     */
+    private static class ManualClock implements Clock {
+
+        private final Runnable[] tasks = new Runnable[256];
+        private final long[] times = new long[256];
+        private long now;
+
+        @Override
+        public long now() {
+            return now;
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delay) {
+            for (int i = 0; i < tasks.length; i++) {
+                if (tasks[i] == null) {
+                    tasks[i] = task;
+                    times[i] = now + delay;
+                    return;
+                }
+            }
+            throw new IllegalStateException("Too many tasks");
+        }
+
+        void advance(long delay) {
+            long end = now + delay;
+            while (true) {
+                int next = -1;
+                for (int i = 0; i < tasks.length; i++) {
+                    if (tasks[i] == null || times[i] > end) continue;
+                    if (next == -1 || times[i] < times[next]) next = i;
+                }
+                if (next == -1) break;
+
+                now = Math.max(now, times[next]);
+                Runnable task = tasks[next];
+                tasks[next] = null;
+                task.run();
+            }
+            now = end;
+        }
+
+    }
+
+    /**
+     * A radio that only remembers what it advertises, and hands it over when asked to.
+     */
+    private static class TestRadio implements Radio {
+
+        public Receiver receiver;
+        private UUID uuid;
+        private final byte[] data = new byte[LEGACY_ADVERTISING_DATA_LENGTH];
+        private int length;
+
+        @Override
+        public int getMaxAdvertisingDataLength() {
+            return LEGACY_ADVERTISING_DATA_LENGTH;
+        }
+
+        @Override
+        public void startAdvertising(int advertiser, UUID uuid, byte[] data) {
+            // Like the controller, take a snapshot, as the buffer goes back to the pool
+            this.uuid = uuid;
+            System.arraycopy(data, 0, this.data, 0, data.length);
+            length = data.length;
+        }
+
+        @Override
+        public void stopAdvertising(int advertiser) {
+            uuid = null;
+        }
+
+        @Override
+        public long getAdvertiseFailures() {
+            return 0;
+        }
+
+        @Override
+        public void startScan(Receiver receiver) {
+            this.receiver = receiver;
+        }
+
+        @Override
+        public void stopScan() {
+            receiver = null;
+        }
+
+        void deliverTo(TestRadio other) {
+            if (uuid != null && other.receiver != null) {
+                other.receiver.onReceive(uuid, Arrays.copyOf(data, length), -60);
+            }
+        }
+
+    }
+}
@@ -0,0 +1,135 @@
+package cps.wsan.sim;
+
+import org.junit.Test;
+
+import cps.wsan.network.PropagationService;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs whole meshes in the simulator. The nodes place themselves and boot at random moments, and
+ * the stack itself draws random delays, so the same seed still doesn't give the exact same run.
+ * The bounds leave room for that.
+ */
+public class SimulationTest {
+
+    private static final long DURATION = 120 * 1000;
+    private static final long TRAFFIC_START = DURATION / 2;
+    private static final int MESSAGES_PER_NODE = 5;
+    private static final int FLOODS = 8;
+
+    @Test
+    public void singleHopMeshDeliversAlmostEverything() {
+        Simulation simulation = new Simulation(30, 60, 60, 1);
+        Simulation.Report report = simulation.run(DURATION, TRAFFIC_START, MESSAGES_PER_NODE);
+
+        assertConverged(report, 30 * 1000);
+        assertDelivered(report, 0.9);
+    }
+
+    @Test
+    public void multiHopMeshForwards() {
+        Simulation simulation = new Simulation(30, 150, 150, 1);
+        Simulation.Report report = simulation.run(DURATION, TRAFFIC_START, MESSAGES_PER_NODE);
+
+        assertConverged(report, 30 * 1000);
+        assertTrue("Nothing was forwarded\n" + report, report.forwards > 0);
+        assertDelivered(report, 0.6);
+    }
+
+    @Test
+    public void reliableAggregatesArrive() {
+        Simulation simulation = new Simulation(30, 60, 60, 2);
+        simulation.setReliable(true);
+        simulation.setAggregating(true);
+        Simulation.Report report = simulation.run(DURATION, TRAFFIC_START, MESSAGES_PER_NODE);
+
+        assertConverged(report, 30 * 1000);
+        assertDelivered(report, 0.85);
+    }
+
+    @Test
+    public void fragmentsAreReassembled() {
+        Simulation simulation = new Simulation(30, 60, 60, 6);
+        simulation.setFraming(true);
+        simulation.setReliable(true);
+        simulation.setPayloadLength(60);
+        Simulation.Report report = simulation.run(DURATION, TRAFFIC_START, MESSAGES_PER_NODE);
+
+        assertConverged(report, 30 * 1000);
+        assertDelivered(report, 0.7);
+    }
+
+    // Every address in use, with a few sinks to share the traffic of so many nodes
+    @Test
+    public void largeMeshConverges() {
+        long duration = 240 * 1000;
+        Simulation simulation = new Simulation(Simulation.MAX_NODES, 300, 300, 2);
+        simulation.setFraming(true);
+        simulation.setSinks(4);
+        Simulation.Report report = simulation.run(duration, duration / 2, MESSAGES_PER_NODE);
+
+        assertConverged(report, 60 * 1000);
+        assertDelivered(report, 0.55);
+    }
+
+    @Test
+    public void clocksConvergeToRoot() {
+        long duration = 300 * 1000;
+        Simulation simulation = new Simulation(30, 150, 150, 4);
+        simulation.setTimeSync(true);
+        Simulation.Report report = simulation.run(duration, duration / 5, 0);
+
+        assertTrue("Too few synchronized\n" + report, report.synced >= report.nodes * 9 / 10);
+        assertTrue("Never compared\n" + report, report.syncSamples > 0);
+        assertTrue("Too far off\n" + report, report.syncError < 100);
+        assertTrue("Error bound too often exceeded\n" + report,
+                report.syncViolations <= report.syncSamples / 20);
+    }
+
+    @Test
+    public void floodsReachEveryone() {
+        assertFlooded(PropagationService.Suppression.NONE);
+    }
+
+    @Test
+    public void counterSuppressedFloodsReachEveryone() {
+        Simulation.Report report = assertFlooded(PropagationService.Suppression.COUNTER);
+        assertTrue("Nothing was suppressed\n" + report, report.suppressed > 0);
+    }
+
+    @Test
+    public void distanceSuppressedFloodsReachEveryone() {
+        Simulation.Report report = assertFlooded(PropagationService.Suppression.DISTANCE);
+        assertTrue("Nothing was suppressed\n" + report, report.suppressed > 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooManyNodes() {
+        new Simulation(Simulation.MAX_NODES + 1, 300, 300, 1);
+    }
+
+    // Without messages, so that the floods don't have to wait behind them
+    private static Simulation.Report assertFlooded(PropagationService.Suppression suppression) {
+        Simulation simulation = new Simulation(30, 150, 150, 5);
+        simulation.setFloods(FLOODS);
+        simulation.setSuppression(suppression);
+        Simulation.Report report = simulation.run(DURATION, TRAFFIC_START, 0);
+
+        assertTrue("Nothing was flooded\n" + report, report.floods > 0);
+        assertTrue("Nothing was passed on\n" + report, report.rebroadcasts > 0);
+        assertTrue("Flood reached too few\n" + report, report.getFloodCoverage() >= 0.9);
+        return report;
+    }
+
+    private static void assertConverged(Simulation.Report report, long limit) {
+        assertTrue("Never converged\n" + report, report.convergenceTime >= 0);
+        assertTrue("Converged too late\n" + report, report.convergenceTime <= limit);
+    }
+
+    private static void assertDelivered(Simulation.Report report, double ratio) {
+        assertTrue("Nothing was sent\n" + report, report.sent > 0);
+        assertTrue("More delivered than sent\n" + report, report.delivered <= report.sent);
+        assertTrue("Delivered too little\n" + report, report.getDeliveryRatio() >= ratio);
+    }
+}
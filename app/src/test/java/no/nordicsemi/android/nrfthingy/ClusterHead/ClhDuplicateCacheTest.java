@@ -0,0 +1,121 @@
+package no.nordicsemi.android.nrfthingy.ClusterHead;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClhDuplicateCacheTest {
+    private static final long EXPIRY=30*1000;
+
+    @Test
+    public void repeatsAreRejected()
+    {
+        ClhDuplicateCache cache=new ClhDuplicateCache(64,EXPIRY);
+        assertTrue(cache.accept((byte)1,(byte)5,0));
+        assertFalse(cache.accept((byte)1,(byte)5,10));
+        assertTrue(cache.accept((byte)1,(byte)6,20));
+        assertFalse(cache.accept((byte)1,(byte)5,30));
+        assertFalse(cache.accept((byte)1,(byte)6,40));
+
+        assertEquals(2,cache.getAcceptedCount());
+        assertEquals(3,cache.getDuplicateCount());
+    }
+
+    @Test
+    public void sourcesAreApart()
+    {
+        ClhDuplicateCache cache=new ClhDuplicateCache(64,EXPIRY);
+        assertTrue(cache.accept((byte)1,(byte)5,0));
+        assertTrue(cache.accept((byte)2,(byte)5,0));
+        assertFalse(cache.accept((byte)1,(byte)5,0));
+        assertFalse(cache.accept((byte)2,(byte)5,0));
+    }
+
+    @Test
+    public void latePacketsAreAcceptedOnce()
+    {
+        ClhDuplicateCache cache=new ClhDuplicateCache(128,EXPIRY);
+        assertTrue(cache.accept((byte)1,(byte)0,0));
+        assertTrue(cache.accept((byte)1,(byte)100,0));
+        assertEquals(99,cache.getMissedCount());
+
+        //70 behind and never seen, across both words of the window
+        assertTrue(cache.accept((byte)1,(byte)30,0));
+        assertFalse(cache.accept((byte)1,(byte)30,0));
+        assertFalse(cache.accept((byte)1,(byte)0,0));
+        assertFalse(cache.accept((byte)1,(byte)100,0));
+        assertEquals(98,cache.getMissedCount());
+    }
+
+    @Test
+    public void packetIdsWrapAround()
+    {
+        ClhDuplicateCache cache=new ClhDuplicateCache(64,EXPIRY);
+        for(int i=0;i<1000;i++)
+        {
+            assertTrue("packet "+i,cache.accept((byte)1,(byte)i,i));
+            assertFalse("packet "+i+" again",cache.accept((byte)1,(byte)i,i));
+        }
+        assertEquals(0,cache.getMissedCount());
+    }
+
+    @Test
+    public void tooOldIsRejectedAndCounted()
+    {
+        ClhDuplicateCache cache=new ClhDuplicateCache(16,EXPIRY);
+        assertTrue(cache.accept((byte)1,(byte)0,0));
+        assertTrue(cache.accept((byte)1,(byte)20,0));
+
+        //never seen, but out of the window
+        assertFalse(cache.accept((byte)1,(byte)3,0));
+        assertEquals(1,cache.getTooOldCount());
+        assertTrue(cache.getFalsePositiveRate()>0);
+    }
+
+    @Test
+    public void silentSourceIsForgotten()
+    {
+        ClhDuplicateCache cache=new ClhDuplicateCache(64,EXPIRY);
+        assertTrue(cache.accept((byte)1,(byte)5,0));
+        assertFalse(cache.accept((byte)1,(byte)5,EXPIRY-1));
+
+        //restarted with the same packet ID after the expiry period
+        assertTrue(cache.accept((byte)1,(byte)5,2*EXPIRY));
+        assertEquals(1,cache.getExpiredCount());
+    }
+
+    @Test
+    public void clearForgetsAll()
+    {
+        ClhDuplicateCache cache=new ClhDuplicateCache(64,EXPIRY);
+        assertTrue(cache.accept((byte)1,(byte)5,0));
+        cache.clear();
+        assertTrue(cache.accept((byte)1,(byte)5,0));
+    }
+
+    //new packets arrive up to 3 IDs late and are repeated by other cluster heads
+    @Test
+    public void reorderedAndRepeatedTraffic()
+    {
+        ClhDuplicateCache cache=new ClhDuplicateCache(64,EXPIRY);
+        Random random=new Random(1);
+        int[] next=new int[10];
+        long now=0;
+        for(int i=0;i<100_000;i++)
+        {
+            now+=10;
+            int source=random.nextInt(next.length);
+            int id=next[source]++;
+            int repeat=Math.max(0,id-random.nextInt(4));
+
+            assertTrue("new packet "+i,cache.accept((byte)source,(byte)id,now));
+            assertFalse("repeated packet "+i,cache.accept((byte)source,(byte)repeat,now));
+        }
+        assertEquals(0,cache.getTooOldCount());
+        assertEquals(0,cache.getMissedCount());
+    }
+}
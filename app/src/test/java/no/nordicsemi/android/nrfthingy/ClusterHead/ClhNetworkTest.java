@@ -0,0 +1,100 @@
+package no.nordicsemi.android.nrfthingy.ClusterHead;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import cps.wsan.network.AdhocNetwork;
+import cps.wsan.network.AdvertiseScheduler;
+import cps.wsan.network.MessageService;
+import cps.wsan.sim.SimClock;
+import cps.wsan.sim.SimMedium;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*cluster head packets sent through simulated AdhocNetworks, as initClhNetwork runs them
+- a relay advertises the packets of another cluster head, a sink scans for them with ClhScan
+- every packet is on the air many times, and some are forwarded twice, the sink has to process
+  each packet once, as told by the duplicate filter its network shares with its other protocols
+ */
+public class ClhNetworkTest {
+    private static final byte RELAY=1;
+    private static final byte SINK=2;
+    private static final byte SOURCE=3; //the cluster head the relay forwards for
+    private static final long DURATION=20*1000;
+
+    private SimClock mClock;
+    private AdhocNetwork mRelay;
+    private AdhocNetwork mSink;
+    private ClhScan mScanner;
+    private ClhProcessData mProcessor;
+
+    @Before
+    public void setUp()
+    {
+        mClock=new SimClock();
+        SimMedium medium=new SimMedium(mClock,new Random(1));
+        mRelay=new AdhocNetwork(RELAY,medium.createRadio(0,0),mClock);
+        mSink=new AdhocNetwork(SINK,medium.createRadio(5,0),mClock);
+        mRelay.scan();
+
+        //not started, so the packets stay in the process list
+        mProcessor=new ClhProcessData();
+        mScanner=new ClhScan();
+        mScanner.setProcDataObject(mProcessor);
+        mScanner.setClhID(SINK,true);
+        assertEquals(ClhErrors.ERROR_CLH_NO,mScanner.scanNetwork(mSink));
+    }
+
+    @Test
+    public void copiesAreProcessedOnce()
+    {
+        advertise(0,5);
+        advertise(0,6);
+        advertise(5000,5); //forwarded again over another path
+        mClock.runUntil(DURATION);
+
+        int[] expected={5,6};
+        ClhAdvertisedData out=new ClhAdvertisedData();
+        for(int id:expected)
+        {
+            assertTrue("packet "+id+" never arrived",mProcessor.takeProcessPacket(out));
+            assertEquals(SOURCE,out.getSourceID());
+            assertEquals(id,out.getPacketID());
+        }
+        assertFalse("packet processed twice",mProcessor.takeProcessPacket(out));
+    }
+
+    @Test
+    public void filterIsSharedPerProtocol()
+    {
+        advertise(0,5);
+        mClock.runUntil(DURATION);
+
+        //the network recorded the packet for the cluster heads, but not for its other protocols
+        assertFalse(mSink.accept(ClhConst.CLH_SERVICE_UUID,SOURCE,(byte)5));
+        assertTrue(mSink.accept(MessageService.UUID,SOURCE,(byte)5));
+    }
+
+    @Test
+    public void stoppedScannerIgnoresNetwork()
+    {
+        mScanner.stopScanCLH();
+        advertise(0,5);
+        mClock.runUntil(DURATION);
+
+        assertFalse(mProcessor.takeProcessPacket(new ClhAdvertisedData()));
+        assertTrue(mSink.accept(ClhConst.CLH_SERVICE_UUID,SOURCE,(byte)5));
+    }
+
+    //[source][packet ID][destination][hop count][thingy][type][sound power x2], as ClhAdvertise queues it
+    private void advertise(long at, int id)
+    {
+        byte[] packet={SOURCE,(byte)id,0,1,0,0,0,40};
+        mClock.postDelayed(() -> mRelay.advertise(ClhConst.CLH_SERVICE_UUID,packet,
+                AdvertiseScheduler.Priority.DATA,AdhocNetwork.MESSAGE_TTL),at);
+    }
+}
@@ -0,0 +1,243 @@
+package no.nordicsemi.android.nrfthingy.ClusterHead;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*ClhRingBuffer on its own, and raced by a producer and a consumer thread
+- every packet carries a counter in bytes 1-3 and two check bytes made from it in bytes 6-7, so the
+  consumer sees a packet that was copied while it was overwritten (torn)
+- the counter only grows, so the consumer also sees packets that come out of order
+- every packet offered is consumed, dropped, coalesced or replaced, the counters have to add up
+ */
+public class ClhRingBufferTest {
+    private static final int STRESS_PACKETS=5_000_000;
+    private static final int SOURCES=4;
+    private static final byte END_SOURCE=0x7F;
+    private static final long TIMEOUT=60*1000;
+
+    @Test
+    public void dropOldestKeepsNewest()
+    {
+        ClhRingBuffer queue=new ClhRingBuffer(4,ClhRingBuffer.OverflowPolicy.DROP_OLDEST);
+        for(int i=0;i<6;i++) assertTrue(queue.offer(packet(0,i,0,0)));
+
+        assertEquals(4,queue.size());
+        assertEquals(2,queue.getDroppedOldest());
+        ClhAdvertisedData out=new ClhAdvertisedData();
+        for(int i=2;i<6;i++)
+        {
+            assertTrue(queue.poll(out));
+            assertEquals(i,valueOf(out));
+        }
+        assertFalse(queue.poll(out));
+    }
+
+    @Test
+    public void dropNewestRefusesPacket()
+    {
+        ClhRingBuffer queue=new ClhRingBuffer(4,ClhRingBuffer.OverflowPolicy.DROP_NEWEST);
+        for(int i=0;i<4;i++) assertTrue(queue.offer(packet(0,i,0,0)));
+        assertFalse(queue.offer(packet(0,4,0,0)));
+
+        assertEquals(1,queue.getDroppedNewest());
+        ClhAdvertisedData out=new ClhAdvertisedData();
+        assertTrue(queue.poll(out));
+        assertEquals(0,valueOf(out));
+    }
+
+    @Test
+    public void coalesceReplacesNewestOfSource()
+    {
+        ClhRingBuffer queue=new ClhRingBuffer(4,ClhRingBuffer.OverflowPolicy.COALESCE_BY_SOURCE);
+        queue.offer(packet(1,0,0,0));
+        queue.offer(packet(2,1,0,0));
+        queue.offer(packet(1,2,0,0));
+        queue.offer(packet(2,3,0,0));
+        queue.offer(packet(1,4,0,0));
+
+        assertEquals(1,queue.getCoalesced());
+        int[] expected={0,1,4,3};
+        ClhAdvertisedData out=new ClhAdvertisedData();
+        for(int value:expected)
+        {
+            assertTrue(queue.poll(out));
+            assertEquals(value,valueOf(out));
+        }
+    }
+
+    @Test
+    public void lastValueWinsReplacesInPlace()
+    {
+        ClhRingBuffer queue=new ClhRingBuffer(4,ClhRingBuffer.OverflowPolicy.DROP_NEWEST);
+        queue.setLastValueWins(true);
+        queue.offer(packet(1,0,0,10));
+        queue.offer(packet(1,1,1,10));
+        queue.offer(packet(1,2,0,10));
+        queue.offer(packet(2,3,0,10));
+
+        assertEquals(3,queue.size());
+        assertEquals(1,queue.getReplaced());
+        int[] expected={2,1,3};
+        ClhAdvertisedData out=new ClhAdvertisedData();
+        for(int value:expected)
+        {
+            assertTrue(queue.poll(out));
+            assertEquals(value,valueOf(out));
+        }
+
+        //polled already, so queued anew
+        queue.offer(packet(1,4,0,10));
+        assertEquals(1,queue.size());
+        assertEquals(1,queue.getReplaced());
+    }
+
+    @Test
+    public void dropOldestRacingPoll() throws InterruptedException
+    {
+        stress(ClhRingBuffer.OverflowPolicy.DROP_OLDEST);
+    }
+
+    @Test
+    public void dropNewestRacingPoll() throws InterruptedException
+    {
+        stress(ClhRingBuffer.OverflowPolicy.DROP_NEWEST);
+    }
+
+    @Test
+    public void coalesceRacingPoll() throws InterruptedException
+    {
+        stress(ClhRingBuffer.OverflowPolicy.COALESCE_BY_SOURCE);
+    }
+
+    //2 Thingies per source, so that the producer keeps replacing packets the consumer is taking
+    @Test
+    public void replaceRacingPoll() throws InterruptedException
+    {
+        stress(ClhRingBuffer.OverflowPolicy.DROP_NEWEST,true);
+    }
+
+    private void stress(ClhRingBuffer.OverflowPolicy policy) throws InterruptedException
+    {
+        stress(policy,false);
+    }
+
+    //the producer offers as fast as it can, the consumer polls as fast as it can
+    private void stress(ClhRingBuffer.OverflowPolicy policy, boolean lastValueWins) throws InterruptedException
+    {
+        final ClhRingBuffer queue=new ClhRingBuffer(16,policy);
+        queue.setLastValueWins(lastValueWins);
+        final Consumer consumer=new Consumer(queue,
+                policy!=ClhRingBuffer.OverflowPolicy.COALESCE_BY_SOURCE && !lastValueWins);
+        Thread thread=new Thread(consumer);
+        thread.start();
+
+        long offered=0;
+        ClhAdvertisedData data=new ClhAdvertisedData();
+        for(int i=0;i<STRESS_PACKETS;i++)
+        {
+            fill(data,i%SOURCES,i,lastValueWins?(i/SOURCES)%2:0,10);
+            queue.offer(data);
+            offered++;
+            if((i&1023)==0) Thread.yield();
+        }
+        fill(data,END_SOURCE,0,0,0);
+        while(true)
+        {
+            offered++;
+            if(queue.offer(data)) break;
+            Thread.yield();
+        }
+
+        thread.join(TIMEOUT);
+        assertFalse("consumer never saw the last packet",thread.isAlive());
+        assertEquals("torn packets",0,consumer.mTorn);
+        assertEquals("packets out of order",0,consumer.mMisordered);
+        assertEquals("packets lost",offered,
+                consumer.mConsumed+queue.getOverflows()+queue.getReplaced());
+        assertTrue("nothing was consumed",consumer.mConsumed>0);
+        if(lastValueWins) assertTrue("nothing was replaced",queue.getReplaced()>0);
+    }
+
+    //polls until it gets the packet of END_SOURCE, checking every packet on the way
+    static class Consumer implements Runnable {
+        private final ClhRingBuffer mQueue;
+        private final boolean mInOrder; //whether the packets of all sources come out in order
+        private final long[] mLast;
+        long mConsumed=0; //including the last packet
+        long mTorn=0;
+        long mMisordered=0;
+
+        Consumer(ClhRingBuffer queue, boolean inOrder)
+        {
+            mQueue=queue;
+            mInOrder=inOrder;
+            mLast=new long[END_SOURCE+1];
+            java.util.Arrays.fill(mLast,-1);
+        }
+
+        @Override
+        public void run()
+        {
+            ClhAdvertisedData out=new ClhAdvertisedData();
+            long last=-1;
+            while(true)
+            {
+                if(!mQueue.poll(out)) continue;
+                mConsumed++;
+                if(out.getSourceID()==END_SOURCE) return;
+
+                if(!isIntact(out)) mTorn++;
+                int key=keyOf(out);
+                long value=valueOf(out);
+                if(value<=mLast[key]) mMisordered++;
+                mLast[key]=value;
+                if(mInOrder && value<=last) mMisordered++;
+                last=value;
+            }
+        }
+
+        //one counter per source and Thingy
+        int keyOf(ClhAdvertisedData data)
+        {
+            return data.getSourceID()*2+data.getThingyId();
+        }
+    }
+
+    static ClhAdvertisedData packet(int source, int value, int thingy, int type)
+    {
+        ClhAdvertisedData data=new ClhAdvertisedData();
+        fill(data,source,value,thingy,type);
+        return data;
+    }
+
+    //[source][value x3][thingy][type][check x2]
+    static void fill(ClhAdvertisedData data, int source, int value, int thingy, int type)
+    {
+        byte[] bytes=new byte[8];
+        bytes[0]=(byte)source;
+        bytes[1]=(byte)(value>>16);
+        bytes[2]=(byte)(value>>8);
+        bytes[3]=(byte)value;
+        bytes[4]=(byte)thingy;
+        bytes[5]=(byte)type;
+        bytes[6]=(byte)(value*31);
+        bytes[7]=(byte)~value;
+        data.parcelAdvData(bytes,0,bytes.length);
+    }
+
+    static int valueOf(ClhAdvertisedData data)
+    {
+        byte[] bytes=data.getParcelClhData();
+        return ((bytes[1]&0xFF)<<16)|((bytes[2]&0xFF)<<8)|(bytes[3]&0xFF);
+    }
+
+    static boolean isIntact(ClhAdvertisedData data)
+    {
+        byte[] bytes=data.getParcelClhData();
+        int value=valueOf(data);
+        return bytes[6]==(byte)(value*31) && bytes[7]==(byte)~value;
+    }
+}